@@ -27,9 +27,12 @@
  */
 package org.hisp.dhis.integration.esavi;
 
+import java.util.Arrays;
+
 import javax.servlet.Servlet;
 
 import org.apache.camel.component.servlet.CamelHttpTransportServlet;
+import org.hisp.dhis.integration.esavi.replay.Replay;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
@@ -41,6 +44,12 @@ public class Application
     public static void main( String[] args )
     {
         System.setProperty( "file.encoding", "UTF-8" );
+
+        if ( args.length > 0 && Replay.COMMAND.equals( args[0] ) )
+        {
+            System.exit( Replay.run( Arrays.copyOfRange( args, 1, args.length ) ) );
+        }
+
         SpringApplication.run( Application.class, args );
     }
 
@@ -50,6 +59,10 @@ public class Application
         ServletRegistrationBean<Servlet> registration = new ServletRegistrationBean<>( new CamelHttpTransportServlet(),
             "/fhir/baseR4/*" );
         registration.setName( "CamelServlet" );
+        // releases the container thread while a case is processed, see the
+        // threads() step in DhisEsaviRoute
+        registration.setAsyncSupported( true );
+        registration.addInitParameter( "async", "true" );
         return registration;
     }
 }
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.esavi.config.properties.ArchiveProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Archive of the payloads handled per tracked entity (the DHIS2 payload, the
+ * generated QuestionnaireResponse and its validation outcome).
+ * <p>
+ * Records are handed over to a bounded queue and written by a single
+ * background thread, so requests never wait on disk I/O and never clobber
+ * each other. Each record is appended as its own gzip member to a rolling
+ * segment file, and a small index (one {@code .idx} file per segment) allows
+ * looking up the latest record of a given type by tracked entity.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OutputArchive
+{
+    public static final String TRACKED_ENTITY = "TrackedEntity.dhis2.json";
+
+    public static final String QUESTIONNAIRE_RESPONSE = "QuestionnaireResponse.fhir.json";
+
+    public static final String VALIDATE = "validate.fhir.json";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".gz";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final long RETENTION_CHECK_INTERVAL = Duration.ofMinutes( 1 ).toMillis();
+
+    private final ArchiveProperties archiveProperties;
+
+    private final Map<String, Map<String, Location>> index = new ConcurrentHashMap<>();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private final Object idle = new Object();
+
+    private BlockingQueue<Record> queue;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    private Path directory;
+
+    // only accessed by the writer thread once started
+
+    private int segment;
+
+    private OutputStream segmentOut;
+
+    private Writer indexOut;
+
+    private long segmentOffset;
+
+    private long lastRetentionCheck;
+
+    @PostConstruct
+    public void start()
+        throws IOException
+    {
+        if ( !archiveProperties.isEnabled() )
+        {
+            log.info( "Output archive is disabled." );
+            return;
+        }
+
+        directory = Paths.get( archiveProperties.getDirectory() );
+        Files.createDirectories( directory );
+
+        for ( int existing : segments() )
+        {
+            loadIndex( existing );
+            segment = existing;
+        }
+
+        applyRetention();
+
+        queue = new ArrayBlockingQueue<>( archiveProperties.getQueueCapacity() );
+        running = true;
+
+        writer = new Thread( this::write, "esavi-archive-writer" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    @PreDestroy
+    public void stop()
+        throws InterruptedException
+    {
+        if ( writer == null )
+        {
+            return;
+        }
+
+        running = false;
+        writer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+    }
+
+    public boolean isEnabled()
+    {
+        return archiveProperties.isEnabled();
+    }
+
+    /**
+     * Whether the current DHIS2 payload should be archived, according to
+     * the configured sample rate.
+     */
+    public boolean sampleDhis2Payload()
+    {
+        return running
+            && ThreadLocalRandom.current().nextDouble() < archiveProperties.getDhis2PayloadSampleRate();
+    }
+
+    /**
+     * Queues a record for writing, never blocks.
+     *
+     * @return false if the archive is disabled or the record was dropped
+     *         because the queue is full
+     */
+    public boolean archive( String trackedEntityId, String type, byte[] payload )
+    {
+        if ( !running || trackedEntityId == null || payload == null )
+        {
+            return false;
+        }
+
+        pending.incrementAndGet();
+
+        if ( !queue.offer( new Record( trackedEntityId, type, payload, System.currentTimeMillis() ) ) )
+        {
+            done( 1 );
+            log.debug( "Archive queue full, dropped {} for {} ({} dropped so far).", type, trackedEntityId,
+                dropped.incrementAndGet() );
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Processor archiving the current body of the exchange for the tracked
+     * entity found in the {@code trackedEntityId} header.
+     */
+    public Processor writer( String type )
+    {
+        return exchange -> {
+            byte[] payload = exchange.getIn().getBody( byte[].class );
+            exchange.getIn().setBody( payload );
+
+            archive( exchange.getIn().getHeader( "trackedEntityId", String.class ), type, payload );
+        };
+    }
+
+    /**
+     * Latest archived record of the given type for a tracked entity.
+     */
+    public Optional<byte[]> read( String trackedEntityId, String type )
+    {
+        Location location = index.getOrDefault( trackedEntityId, Map.of() ).get( type );
+
+        if ( location == null )
+        {
+            return Optional.empty();
+        }
+
+        try ( FileChannel channel = FileChannel.open( segmentFile( location.getSegment() ),
+            StandardOpenOption.READ ) )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( location.getLength() );
+
+            while ( buffer.hasRemaining() && channel.read( buffer, location.getOffset() + buffer.position() ) >= 0 )
+            {
+                // keep reading until the record is complete
+            }
+
+            try ( GZIPInputStream in = new GZIPInputStream( new ByteArrayInputStream( buffer.array() ) ) )
+            {
+                return Optional.of( in.readAllBytes() );
+            }
+        }
+        catch ( NoSuchFileException e )
+        {
+            // segment removed by retention
+            return Optional.empty();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * When the latest record of the given type for a tracked entity was
+     * archived.
+     */
+    public Optional<Instant> archivedAt( String trackedEntityId, String type )
+    {
+        return Optional.ofNullable( index.getOrDefault( trackedEntityId, Map.of() ).get( type ) )
+            .map( location -> Instant.ofEpochMilli( location.getTimestamp() ) );
+    }
+
+    /**
+     * Waits until all queued records have been written.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean flush( Duration timeout )
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+
+        synchronized ( idle )
+        {
+            while ( pending.get() > 0 )
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if ( remaining <= 0 )
+                {
+                    return false;
+                }
+
+                idle.wait( remaining );
+            }
+        }
+
+        return true;
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Number of records written so far.
+     */
+    public long getWritten()
+    {
+        return written.get();
+    }
+
+    /**
+     * Total time spent compressing and writing records.
+     */
+    public long getWriteNanos()
+    {
+        return writeNanos.get();
+    }
+
+    public int getQueueSize()
+    {
+        return queue == null ? 0 : queue.size();
+    }
+
+    private void write()
+    {
+        List<Record> batch = new ArrayList<>();
+
+        while ( running || !queue.isEmpty() )
+        {
+            try
+            {
+                Record record = queue.poll( 1, TimeUnit.SECONDS );
+
+                if ( record == null )
+                {
+                    if ( System.currentTimeMillis() - lastRetentionCheck > RETENTION_CHECK_INTERVAL )
+                    {
+                        applyRetention();
+                    }
+
+                    continue;
+                }
+
+                batch.add( record );
+                queue.drainTo( batch );
+
+                long start = System.nanoTime();
+                append( batch );
+                writeNanos.addAndGet( System.nanoTime() - start );
+                written.addAndGet( batch.size() );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                log.error( "Failed to write " + batch.size() + " archive record(s)", e );
+            }
+            finally
+            {
+                done( batch.size() );
+                batch.clear();
+            }
+        }
+
+        closeSegment();
+    }
+
+    private void append( List<Record> batch )
+        throws IOException
+    {
+        List<Location> locations = new ArrayList<>( batch.size() );
+
+        for ( Record record : batch )
+        {
+            if ( segmentOut == null || segmentOffset >= archiveProperties.getSegmentSize().toBytes() )
+            {
+                roll();
+            }
+
+            byte[] compressed = gzip( record.getPayload() );
+            segmentOut.write( compressed );
+
+            Location location = new Location( segment, segmentOffset, compressed.length, record.getTimestamp() );
+            indexOut.write( record.getTrackedEntityId() + '\t' + record.getType() + '\t' + location.getOffset() + '\t'
+                + location.getLength() + '\t' + location.getTimestamp() + '\n' );
+
+            segmentOffset += compressed.length;
+            locations.add( location );
+        }
+
+        segmentOut.flush();
+        indexOut.flush();
+
+        for ( int i = 0; i < batch.size(); i++ )
+        {
+            index.computeIfAbsent( batch.get( i ).getTrackedEntityId(), k -> new ConcurrentHashMap<>() )
+                .put( batch.get( i ).getType(), locations.get( i ) );
+        }
+    }
+
+    private void roll()
+        throws IOException
+    {
+        closeSegment();
+
+        segment++;
+        Path segmentFile = segmentFile( segment );
+
+        segmentOut = new BufferedOutputStream( Files.newOutputStream( segmentFile, StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND ) );
+        indexOut = Files.newBufferedWriter( indexFile( segment ), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND );
+        segmentOffset = Files.size( segmentFile );
+
+        applyRetention();
+    }
+
+    private void closeSegment()
+    {
+        try
+        {
+            if ( segmentOut != null )
+            {
+                segmentOut.close();
+            }
+
+            if ( indexOut != null )
+            {
+                indexOut.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Failed to close archive segment " + segment, e );
+        }
+        finally
+        {
+            segmentOut = null;
+            indexOut = null;
+        }
+    }
+
+    private void applyRetention()
+    {
+        lastRetentionCheck = System.currentTimeMillis();
+
+        List<Integer> segments = segments();
+        segments.remove( Integer.valueOf( segment ) );
+
+        long expiresBefore = Instant.now().minus( archiveProperties.getRetention() ).toEpochMilli();
+        int maxSegments = archiveProperties.getMaxSegments();
+
+        for ( int i = 0; i < segments.size(); i++ )
+        {
+            int candidate = segments.get( i );
+            boolean overLimit = maxSegments > 0 && segments.size() - i >= maxSegments;
+
+            try
+            {
+                if ( overLimit || Files.getLastModifiedTime( segmentFile( candidate ) ).toMillis() < expiresBefore )
+                {
+                    Files.deleteIfExists( segmentFile( candidate ) );
+                    Files.deleteIfExists( indexFile( candidate ) );
+
+                    index.values().forEach( types -> types.values().removeIf( l -> l.getSegment() == candidate ) );
+                    index.values().removeIf( Map::isEmpty );
+                }
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Failed to apply retention to archive segment " + candidate, e );
+            }
+        }
+    }
+
+    private void loadIndex( int existing )
+        throws IOException
+    {
+        Path indexFile = indexFile( existing );
+
+        if ( !Files.exists( indexFile ) )
+        {
+            return;
+        }
+
+        for ( String line : Files.readAllLines( indexFile, StandardCharsets.UTF_8 ) )
+        {
+            String[] columns = line.split( "\t" );
+
+            if ( columns.length == 5 )
+            {
+                index.computeIfAbsent( columns[0], k -> new ConcurrentHashMap<>() ).put( columns[1],
+                    new Location( existing, Long.parseLong( columns[2] ), Integer.parseInt( columns[3] ),
+                        Long.parseLong( columns[4] ) ) );
+            }
+        }
+    }
+
+    private List<Integer> segments()
+    {
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            return files.map( file -> file.getFileName().toString() )
+                .filter( name -> name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) )
+                .map( name -> Integer
+                    .valueOf( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) ) )
+                .sorted()
+                .collect( Collectors.toList() );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private Path segmentFile( int number )
+    {
+        return directory.resolve( String.format( "%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX ) );
+    }
+
+    private Path indexFile( int number )
+    {
+        return directory.resolve( String.format( "%s%06d%s", SEGMENT_PREFIX, number, INDEX_SUFFIX ) );
+    }
+
+    private void done( int records )
+    {
+        if ( pending.addAndGet( -records ) <= 0 )
+        {
+            synchronized ( idle )
+            {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private static byte[] gzip( byte[] payload )
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( payload.length / 4 + 64 );
+
+        try ( GZIPOutputStream gzip = new GZIPOutputStream( out ) )
+        {
+            gzip.write( payload );
+        }
+
+        return out.toByteArray();
+    }
+
+    @Value
+    private static class Record
+    {
+        String trackedEntityId;
+
+        String type;
+
+        byte[] payload;
+
+        long timestamp;
+    }
+
+    @Value
+    private static class Location
+    {
+        int segment;
+
+        long offset;
+
+        int length;
+
+        long timestamp;
+    }
+}
@@ -27,22 +27,49 @@
  */
 package org.hisp.dhis.integration.esavi.config;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import lombok.RequiredArgsConstructor;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hisp.dhis.integration.esavi.archive.OutputArchive;
 import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
 import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.config.properties.HttpClientProperties;
+import org.hisp.dhis.integration.esavi.tracing.TracingClientInterceptor;
+import org.hisp.dhis.integration.esavi.tracing.TracingSecurityContext;
 import org.hisp.dhis.integration.sdk.Dhis2ClientBuilder;
 import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.internal.security.BasicCredentialsSecurityContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.GZipContentInterceptor;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 
 @Configuration
 @RequiredArgsConstructor
 public class MainConfiguration
 {
+    /**
+     * Upper bound on how often idle FHIR connections are looked for.
+     */
+    private static final long MAX_EVICTION_INTERVAL = 30_000;
+
     private final DhisProperties dhis2Properties;
 
     private final FhirProperties fhirProperties;
@@ -50,20 +77,144 @@ public class MainConfiguration
     @Bean
     public Dhis2Client dhis2Client()
     {
+        HttpClientProperties http = dhis2Properties.getHttp();
+
+        // OkHttp negotiates HTTP/2 over TLS and gzip responses by itself
         return Dhis2ClientBuilder
-            .newClient( dhis2Properties.getBaseUrl(), dhis2Properties.getUsername(), dhis2Properties.getPassword() )
+            .newClient( dhis2Properties.getBaseUrl(),
+                new TracingSecurityContext( new BasicCredentialsSecurityContext( dhis2Properties.getUsername(),
+                    dhis2Properties.getPassword() ) ),
+                http.getMaxConnections(), http.getKeepAlive().toMillis(), http.getCallTimeout().toMillis(),
+                http.getReadTimeout().toMillis(), http.getWriteTimeout().toMillis(),
+                http.getConnectTimeout().toMillis() )
             .build();
     }
 
     @Bean
     public FhirContext fhirContext()
     {
-        return fhirProperties.getFhirVersion().newContext();
+        FhirContext fhirContext = fhirProperties.getFhirVersion().newContext();
+
+        // scanning the model classes takes seconds, do it while the rest of
+        // the application starts instead of on first use
+        Thread warmUp = new Thread( () -> {
+            for ( String resourceType : List.of( "Bundle", "QuestionnaireResponse", "OperationOutcome" ) )
+            {
+                fhirContext.getResourceDefinition( resourceType );
+            }
+
+            fhirContext.newJsonParser();
+        }, "fhir-context-warm-up" );
+        warmUp.setDaemon( true );
+        warmUp.start();
+
+        return fhirContext;
+    }
+
+    @Bean( destroyMethod = "shutdown" )
+    public PoolingHttpClientConnectionManager fhirConnectionManager()
+    {
+        HttpClientProperties http = fhirProperties.getHttp();
+
+        // no TTL: connections live as long as they are in use, idle ones are closed by the evictor below
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal( http.getMaxConnections() );
+        connectionManager.setDefaultMaxPerRoute( http.getMaxConnectionsPerRoute() );
+
+        return connectionManager;
+    }
+
+    /**
+     * Closes pooled FHIR connections idle for longer than {@code keep-alive}.
+     * The client builder only starts an evictor for a connection manager it
+     * owns, and this one is shared.
+     */
+    @Bean( initMethod = "start", destroyMethod = "shutdown" )
+    public IdleConnectionEvictor fhirIdleConnectionEvictor( PoolingHttpClientConnectionManager fhirConnectionManager )
+    {
+        long keepAlive = fhirProperties.getHttp().getKeepAlive().toMillis();
+
+        return new IdleConnectionEvictor( fhirConnectionManager, Math.min( keepAlive, MAX_EVICTION_INTERVAL ),
+            TimeUnit.MILLISECONDS, keepAlive, TimeUnit.MILLISECONDS );
+    }
+
+    @Bean
+    public IGenericClient fhirClient( FhirContext fhirContext, PoolingHttpClientConnectionManager fhirConnectionManager )
+    {
+        HttpClientProperties http = fhirProperties.getHttp();
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout( (int) http.getConnectTimeout().toMillis() )
+            .setSocketTimeout( (int) http.getReadTimeout().toMillis() )
+            .setConnectionRequestTimeout( (int) http.getConnectionRequestTimeout().toMillis() )
+            .build();
+
+        // content compression (Accept-Encoding: gzip, deflate) is enabled by default
+        CloseableHttpClient httpClient = HttpClients.custom()
+            .setConnectionManager( fhirConnectionManager )
+            .setConnectionManagerShared( true )
+            .setKeepAliveStrategy( keepAliveStrategy( http.getKeepAlive().toMillis() ) )
+            .setDefaultRequestConfig( requestConfig )
+            .build();
+
+        IRestfulClientFactory clientFactory = fhirContext.getRestfulClientFactory();
+        clientFactory.setHttpClient( httpClient );
+        // skip fetching the server CapabilityStatement before the first call
+        clientFactory.setServerValidationMode( ServerValidationModeEnum.NEVER );
+
+        IGenericClient fhirClient = fhirContext.newRestfulGenericClient( fhirProperties.getServerUrl() );
+        fhirClient.registerInterceptor( new TracingClientInterceptor() );
+
+        if ( http.isCompressRequests() )
+        {
+            fhirClient.registerInterceptor( new GZipContentInterceptor() );
+        }
+
+        return fhirClient;
+    }
+
+    @Bean
+    public MeterBinder fhirConnectionPoolMetrics( PoolingHttpClientConnectionManager fhirConnectionManager )
+    {
+        return registry -> {
+            Gauge.builder( "esavi.http.pool.leased", fhirConnectionManager, cm -> cm.getTotalStats().getLeased() )
+                .tag( "client", "fhir" ).description( "Connections in use" ).register( registry );
+            Gauge.builder( "esavi.http.pool.available", fhirConnectionManager,
+                cm -> cm.getTotalStats().getAvailable() )
+                .tag( "client", "fhir" ).description( "Idle connections kept alive" ).register( registry );
+            Gauge.builder( "esavi.http.pool.pending", fhirConnectionManager, cm -> cm.getTotalStats().getPending() )
+                .tag( "client", "fhir" ).description( "Requests waiting for a connection" ).register( registry );
+            Gauge.builder( "esavi.http.pool.max", fhirConnectionManager, cm -> cm.getTotalStats().getMax() )
+                .tag( "client", "fhir" ).description( "Maximum number of connections" ).register( registry );
+        };
+    }
+
+    /**
+     * Keeps a connection reusable for {@code keepAlive} after a response,
+     * or shorter if the server announces a shorter {@code Keep-Alive}
+     * timeout. Without a strategy, connections are kept indefinitely unless
+     * the server sends one.
+     */
+    public static ConnectionKeepAliveStrategy keepAliveStrategy( long keepAlive )
+    {
+        return ( response, context ) -> {
+            long server = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration( response, context );
+
+            return server > 0 ? Math.min( server, keepAlive ) : keepAlive;
+        };
     }
 
     @Bean
-    public IGenericClient fhirClient( FhirContext fhirContext )
+    public MeterBinder outputArchiveMetrics( OutputArchive outputArchive )
     {
-        return fhirContext.newRestfulGenericClient( fhirProperties.getServerUrl() );
+        return registry -> {
+            FunctionTimer.builder( "esavi.archive.write", outputArchive, OutputArchive::getWritten,
+                OutputArchive::getWriteNanos, TimeUnit.NANOSECONDS )
+                .description( "Records compressed and written to the archive" ).register( registry );
+            Gauge.builder( "esavi.archive.queue", outputArchive, OutputArchive::getQueueSize )
+                .description( "Records waiting to be written" ).register( registry );
+            FunctionCounter.builder( "esavi.archive.dropped", outputArchive, OutputArchive::getDropped )
+                .description( "Records dropped because the queue was full" ).register( registry );
+        };
     }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config;
+
+import lombok.RequiredArgsConstructor;
+
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.config.properties.ResilienceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+
+/**
+ * Circuit breakers and bulkheads of the remote dependencies. The circuit
+ * breakers are looked up by bean name from the circuitBreaker() steps of the
+ * routes. There is one bulkhead per dependency, shared by every route and the
+ * bulk export calling it, so the concurrent calls to a dependency are bounded
+ * as a whole; a full bulkhead is not a failure of the dependency and does not
+ * count towards its breaker.
+ */
+@Configuration
+@RequiredArgsConstructor
+public class ResilienceConfiguration
+{
+    private final DhisProperties dhis2Properties;
+
+    private final FhirProperties fhirProperties;
+
+    @Bean
+    public CircuitBreakerRegistry circuitBreakerRegistry()
+    {
+        return CircuitBreakerRegistry.ofDefaults();
+    }
+
+    @Bean
+    public CircuitBreaker dhis2CircuitBreaker( CircuitBreakerRegistry circuitBreakerRegistry )
+    {
+        return circuitBreakerRegistry.circuitBreaker( "dhis2", circuitBreakerConfig( dhis2Properties.getResilience() ) );
+    }
+
+    @Bean
+    public CircuitBreaker fhirCircuitBreaker( CircuitBreakerRegistry circuitBreakerRegistry )
+    {
+        return circuitBreakerRegistry.circuitBreaker( "fhir", circuitBreakerConfig( fhirProperties.getResilience() ) );
+    }
+
+    @Bean
+    public BulkheadRegistry bulkheadRegistry()
+    {
+        return BulkheadRegistry.ofDefaults();
+    }
+
+    @Bean
+    public Bulkhead dhis2Bulkhead( BulkheadRegistry bulkheadRegistry )
+    {
+        return bulkheadRegistry.bulkhead( "dhis2", bulkheadConfig( dhis2Properties.getResilience() ) );
+    }
+
+    @Bean
+    public Bulkhead fhirBulkhead( BulkheadRegistry bulkheadRegistry )
+    {
+        return bulkheadRegistry.bulkhead( "fhir", bulkheadConfig( fhirProperties.getResilience() ) );
+    }
+
+    /**
+     * Exposes the available and maximum concurrent calls of every bulkhead as
+     * resilience4j.bulkhead.* metrics tagged with the bulkhead name.
+     */
+    @Bean
+    public TaggedBulkheadMetrics bulkheadMetrics( BulkheadRegistry bulkheadRegistry )
+    {
+        return TaggedBulkheadMetrics.ofBulkheadRegistry( bulkheadRegistry );
+    }
+
+    /**
+     * Exposes state, call outcomes and not permitted calls of every breaker as
+     * resilience4j.circuitbreaker.* metrics tagged with the breaker name.
+     */
+    @Bean
+    public TaggedCircuitBreakerMetrics circuitBreakerMetrics( CircuitBreakerRegistry circuitBreakerRegistry )
+    {
+        return TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry( circuitBreakerRegistry );
+    }
+
+    private static CircuitBreakerConfig circuitBreakerConfig( ResilienceProperties resilience )
+    {
+        return CircuitBreakerConfig.custom()
+            .failureRateThreshold( resilience.getFailureRateThreshold() )
+            .slowCallDurationThreshold( resilience.getSlowCallDurationThreshold() )
+            .slowCallRateThreshold( resilience.getSlowCallRateThreshold() )
+            .slidingWindowSize( resilience.getSlidingWindowSize() )
+            .minimumNumberOfCalls( resilience.getMinimumNumberOfCalls() )
+            .waitDurationInOpenState( resilience.getWaitDurationInOpenState() )
+            .permittedNumberOfCallsInHalfOpenState( resilience.getPermittedCallsInHalfOpenState() )
+            .ignoreExceptions( BulkheadFullException.class )
+            .build();
+    }
+
+    private static BulkheadConfig bulkheadConfig( ResilienceProperties resilience )
+    {
+        return BulkheadConfig.custom()
+            .maxConcurrentCalls( resilience.getMaxConcurrentCalls() )
+            .maxWaitDuration( resilience.getMaxWait() )
+            .build();
+    }
+}
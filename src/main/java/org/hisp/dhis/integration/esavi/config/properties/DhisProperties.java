@@ -52,4 +52,8 @@ public class DhisProperties
 
     @NotNull
     private String esaviProgramStageId;
+
+    private HttpClientProperties http = new HttpClientProperties();
+
+    private ResilienceProperties resilience = new ResilienceProperties();
 }
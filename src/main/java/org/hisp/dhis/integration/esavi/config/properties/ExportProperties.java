@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config.properties;
+
+import java.time.Duration;
+
+import lombok.Data;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties( "dhis2-to-esavi.export" )
+public class ExportProperties
+{
+    /**
+     * Tracked entities per tracker page.
+     */
+    private int pageSize = 50;
+
+    /**
+     * Concurrent page fetches the export starts with.
+     */
+    private int initialConcurrency = 2;
+
+    private int minConcurrency = 1;
+
+    private int maxConcurrency = 16;
+
+    /**
+     * Latency above the baseline latency times this factor is treated as
+     * DHIS2 being under load, and the concurrency is reduced.
+     */
+    private double latencyTolerance = 2.0;
+
+    /**
+     * Factor the concurrency is multiplied with on overload or 5xx.
+     */
+    private double backoffRatio = 0.5;
+
+    /**
+     * Attempts per page before the export gives up on it.
+     */
+    private int maxAttempts = 3;
+
+    /**
+     * Pause before a failed page is retried.
+     */
+    private Duration retryDelay = Duration.ofSeconds( 2 );
+
+    private ShardingProperties sharding = new ShardingProperties();
+}
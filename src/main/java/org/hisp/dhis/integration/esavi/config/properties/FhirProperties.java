@@ -45,4 +45,73 @@ public class FhirProperties
     private FhirVersionEnum fhirVersion = FhirVersionEnum.R4;
 
     private boolean disabled;
+
+    private WriteStrategy writeStrategy = WriteStrategy.IDENTIFIER;
+
+    private Validation validation = new Validation();
+
+    private HttpClientProperties http = new HttpClientProperties();
+
+    private ResilienceProperties resilience = new ResilienceProperties();
+
+    public enum ValidationMode
+    {
+        /**
+         * Validate using the $validate operation of the configured FHIR server.
+         */
+        REMOTE,
+
+        /**
+         * Validate in-process against the definitions found in
+         * {@link Validation#getPackageDirectory()}.
+         */
+        EMBEDDED
+    }
+
+    /**
+     * How the QuestionnaireResponse of a case is written to the FHIR server.
+     */
+    public enum WriteStrategy
+    {
+        /**
+         * Conditional update on the business identifier of the case
+         * ({@code PUT QuestionnaireResponse?identifier=system|value}) in a
+         * batch; the server searches the identifier for every entry. Cases
+         * without an identifier are written as {@link #CLIENT_ID}.
+         */
+        IDENTIFIER,
+
+        /**
+         * Update with the tracked entity id as client-assigned resource id
+         * ({@code PUT QuestionnaireResponse/id}) in a batch, no search.
+         * The server must allow client-assigned ids.
+         */
+        CLIENT_ID,
+
+        /**
+         * As {@link #CLIENT_ID}, in a transaction: a failed entry fails the
+         * whole bundle, which the outbox then retries.
+         */
+        TRANSACTION
+    }
+
+    @Data
+    public static class Validation
+    {
+        private ValidationMode mode = ValidationMode.REMOTE;
+
+        /**
+         * Directory holding the unpacked PAHO ESAVI IG package
+         * (StructureDefinitions, Questionnaire, CodeSystems, ValueSets). Only
+         * used in embedded mode, if not set validation runs against the core
+         * definitions only.
+         */
+        private String packageDirectory;
+
+        /**
+         * Number of validation results to keep for repeated identical
+         * payloads, 0 disables the cache.
+         */
+        private int cacheSize = 1000;
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config.properties;
+
+import java.time.Duration;
+
+import javax.validation.constraints.AssertTrue;
+
+import lombok.Data;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.annotation.Validated;
+
+@Data
+@Component
+@Validated
+@ConfigurationProperties( "dhis2-to-esavi.hook" )
+public class HookProperties
+{
+    /**
+     * Registers the {@code /hooks/tracker} endpoint.
+     */
+    private boolean enabled;
+
+    /**
+     * Quiet period after the last change notification of a tracked entity
+     * before it is fetched.
+     */
+    private Duration debounce = Duration.ofSeconds( 2 );
+
+    /**
+     * Longest a tracked entity that keeps changing waits before it is
+     * fetched.
+     */
+    private Duration maxDelay = Duration.ofSeconds( 30 );
+
+    /**
+     * Tracked entities waiting to be fetched, notifications beyond it are
+     * answered with 503.
+     */
+    private int capacity = 10_000;
+
+    /**
+     * Tracked entities fetched at the same time.
+     */
+    private int concurrency = 4;
+
+    /**
+     * Notifications have to carry it in the X-Hook-Token header, required
+     * when the hook is enabled.
+     */
+    private String token;
+
+    @AssertTrue( message = "token is required when the hook is enabled" )
+    public boolean isTokenSetWhenEnabled()
+    {
+        return !enabled || (token != null && !token.isBlank());
+    }
+}
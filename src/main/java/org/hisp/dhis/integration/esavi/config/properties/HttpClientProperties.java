@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config.properties;
+
+import java.time.Duration;
+
+import lombok.Data;
+
+/**
+ * Transport settings shared by the DHIS2 and FHIR clients.
+ */
+@Data
+public class HttpClientProperties
+{
+    private Duration connectTimeout = Duration.ofSeconds( 10 );
+
+    private Duration readTimeout = Duration.ofSeconds( 60 );
+
+    private Duration writeTimeout = Duration.ofSeconds( 60 );
+
+    /**
+     * Timeout of a complete call (DHIS2 only), 0 means no timeout.
+     */
+    private Duration callTimeout = Duration.ZERO;
+
+    /**
+     * Time to wait for a connection from the pool (FHIR only).
+     */
+    private Duration connectionRequestTimeout = Duration.ofSeconds( 10 );
+
+    /**
+     * How long idle connections are kept open, reusing them avoids paying
+     * for a new TCP and TLS handshake on every request. A shorter
+     * {@code Keep-Alive} timeout announced by the FHIR server wins. This is
+     * not a time to live: a connection in use is never closed for its age.
+     */
+    private Duration keepAlive = Duration.ofMinutes( 5 );
+
+    /**
+     * Size of the connection pool (for DHIS2 this is the number of idle
+     * connections kept alive).
+     */
+    private int maxConnections = 20;
+
+    /**
+     * Connections per host (FHIR only).
+     */
+    private int maxConnectionsPerRoute = 20;
+
+    /**
+     * Compress request bodies with gzip (FHIR only), responses are always
+     * requested compressed.
+     */
+    private boolean compressRequests;
+}
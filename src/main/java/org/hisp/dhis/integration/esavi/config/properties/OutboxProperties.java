@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config.properties;
+
+import java.time.Duration;
+
+import lombok.Data;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+@Data
+@Component
+@ConfigurationProperties( "dhis2-to-esavi.outbox" )
+public class OutboxProperties
+{
+    /**
+     * Submits every converted case to the FHIR server through the on-disk
+     * journal.
+     */
+    private boolean enabled;
+
+    private String directory = "./output/outbox";
+
+    /**
+     * Skips bundles whose canonical hash is the same as the one last
+     * submitted for the tracked entity.
+     */
+    private boolean deduplicate = true;
+
+    private DataSize segmentSize = DataSize.ofMegabytes( 16 );
+
+    /**
+     * Records delivered at the same time.
+     */
+    private int concurrency = 4;
+
+    /**
+     * Delivery attempts before a record is moved to the dead letter journal.
+     */
+    private int maxAttempts = 10;
+
+    private Duration initialBackoff = Duration.ofSeconds( 1 );
+
+    private Duration maxBackoff = Duration.ofMinutes( 5 );
+
+    /**
+     * Undelivered records above which fetching from DHIS2 is held back.
+     */
+    private long highWatermark = 10_000;
+
+    /**
+     * How long a DHIS2 fetch waits for the queue to drain below the high
+     * watermark before the request is rejected.
+     */
+    private Duration backpressureWait = Duration.ofSeconds( 5 );
+}
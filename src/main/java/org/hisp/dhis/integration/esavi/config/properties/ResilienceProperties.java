@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config.properties;
+
+import java.time.Duration;
+
+import lombok.Data;
+
+/**
+ * Bulkhead and circuit breaker settings of a remote dependency.
+ */
+@Data
+public class ResilienceProperties
+{
+    /**
+     * Maximum number of concurrent calls to the dependency.
+     */
+    private int maxConcurrentCalls = 20;
+
+    /**
+     * How long a call waits for a free slot before it is rejected, this is
+     * the (time bounded) queue of the bulkhead.
+     */
+    private Duration maxWait = Duration.ofSeconds( 2 );
+
+    /**
+     * Percentage of failed calls that opens the circuit.
+     */
+    private float failureRateThreshold = 50;
+
+    /**
+     * Calls slower than this count as slow calls.
+     */
+    private Duration slowCallDurationThreshold = Duration.ofSeconds( 10 );
+
+    /**
+     * Percentage of slow calls that opens the circuit.
+     */
+    private float slowCallRateThreshold = 80;
+
+    /**
+     * Number of recent calls the failure and slow call rates are computed
+     * over.
+     */
+    private int slidingWindowSize = 50;
+
+    private int minimumNumberOfCalls = 10;
+
+    /**
+     * How long calls fail fast before the dependency is tried again.
+     */
+    private Duration waitDurationInOpenState = Duration.ofSeconds( 30 );
+
+    private int permittedCallsInHalfOpenState = 5;
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.config.properties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * Coordinated bulk export across gateway nodes sharing a lease directory.
+ */
+@Data
+public class ShardingProperties
+{
+    private boolean enabled;
+
+    /**
+     * Directory shared by all nodes, holding the partition plan and the
+     * leases.
+     */
+    private String directory = "./output/export-leases";
+
+    /**
+     * Identifies this node in the leases, defaults to host name and process
+     * id.
+     */
+    private String nodeId;
+
+    /**
+     * Organisation units whose subtrees are the partitions. When empty, the
+     * organisation units at {@code org-unit-level} are used.
+     */
+    private List<String> orgUnits = new ArrayList<>();
+
+    private int orgUnitLevel = 3;
+
+    /**
+     * How long a lease is valid without being renewed, after which the
+     * partition is handed to another node.
+     */
+    private Duration leaseDuration = Duration.ofMinutes( 2 );
+
+    private Duration renewInterval = Duration.ofSeconds( 30 );
+
+    /**
+     * Attempts per partition before it is given up.
+     */
+    private int maxAttempts = 3;
+}
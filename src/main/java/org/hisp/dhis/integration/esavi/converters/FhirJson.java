@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.converters;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.DataFormat;
+import org.apache.camel.spi.DataFormatName;
+import org.apache.camel.support.service.ServiceSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+/**
+ * FHIR JSON encoding and parsing on top of the single, pre-warmed
+ * {@link FhirContext} bean. {@code marshal().fhirJson( "R4", true )} creates
+ * a context of its own for every data format, and a new parser for every
+ * message; here each thread keeps one parser per encoding and pretty
+ * printing, which is safe as parsers are never reconfigured after creation.
+ * <p>
+ * Also a Camel {@link DataFormat}, used as {@code marshal( fhirJson )} in the
+ * routes. The marshalled compact JSON is the canonical form of a case: it is
+ * what is stored, archived and submitted, and what is served unless the
+ * client negotiates pretty printing or XML, which are encoded from the
+ * resource instead.
+ */
+@Component
+public class FhirJson extends ServiceSupport implements DataFormat, DataFormatName
+{
+    private final FhirContext fhirContext;
+
+    /**
+     * Per thread: compact JSON, pretty JSON, compact XML and pretty XML.
+     */
+    private final ThreadLocal<IParser[]> parsers = ThreadLocal.withInitial( () -> new IParser[4] );
+
+    public FhirJson( FhirContext fhirContext )
+    {
+        this.fhirContext = fhirContext;
+    }
+
+    public FhirContext getFhirContext()
+    {
+        return fhirContext;
+    }
+
+    /**
+     * The parser of this thread for the given encoding, JSON or XML. It must
+     * not be reconfigured.
+     */
+    public IParser parser( EncodingEnum encoding, boolean prettyPrint )
+    {
+        if ( encoding != EncodingEnum.JSON && encoding != EncodingEnum.XML )
+        {
+            throw new IllegalArgumentException( "Unsupported encoding: " + encoding );
+        }
+
+        IParser[] threadParsers = parsers.get();
+        int slot = (encoding == EncodingEnum.XML ? 2 : 0) + (prettyPrint ? 1 : 0);
+
+        if ( threadParsers[slot] == null )
+        {
+            threadParsers[slot] = encoding.newParser( fhirContext ).setPrettyPrint( prettyPrint );
+        }
+
+        return threadParsers[slot];
+    }
+
+    /**
+     * Compact, as stored, archived and submitted.
+     */
+    public String encode( IBaseResource resource )
+    {
+        return parser( EncodingEnum.JSON, false ).encodeResourceToString( resource );
+    }
+
+    public String encodePretty( IBaseResource resource )
+    {
+        return parser( EncodingEnum.JSON, true ).encodeResourceToString( resource );
+    }
+
+    /**
+     * Encodes the resource straight to the stream, with the parser of this
+     * thread for the encoding.
+     */
+    public void encode( IBaseResource resource, EncodingEnum encoding, boolean prettyPrint, OutputStream stream )
+        throws IOException
+    {
+        Writer writer = new OutputStreamWriter( stream, StandardCharsets.UTF_8 );
+        parser( encoding, prettyPrint ).encodeResourceToWriter( resource, writer );
+        writer.flush();
+    }
+
+    public <T extends IBaseResource> T parse( Class<T> type, String json )
+    {
+        return parser( EncodingEnum.JSON, false ).parseResource( type, json );
+    }
+
+    @Override
+    public void marshal( Exchange exchange, Object graph, OutputStream stream )
+        throws Exception
+    {
+        IBaseResource resource = graph instanceof IBaseResource ? (IBaseResource) graph
+            : exchange.getContext().getTypeConverter().mandatoryConvertTo( IBaseResource.class, exchange, graph );
+
+        encode( resource, EncodingEnum.JSON, false, stream );
+
+        exchange.getMessage().setHeader( Exchange.CONTENT_TYPE, EncodingEnum.JSON.getResourceContentTypeNonLegacy() );
+    }
+
+    @Override
+    public Object unmarshal( Exchange exchange, InputStream stream )
+    {
+        return parser( EncodingEnum.JSON, false ).parseResource( new InputStreamReader( stream, StandardCharsets.UTF_8 ) );
+    }
+
+    @Override
+    public String getDataFormatName()
+    {
+        return "fhirJson";
+    }
+}
@@ -35,11 +35,15 @@ import org.apache.camel.TypeConverters;
 import org.apache.camel.component.fhir.internal.FhirConstants;
 import org.hisp.dhis.api.model.v2_38_1.TrackedEntity;
 import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
 import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.util.UrlUtil;
+
 @Component
 @RequiredArgsConstructor
 public class TrackedEntityToBundleConverter implements TypeConverters
@@ -47,21 +51,46 @@ public class TrackedEntityToBundleConverter implements TypeConverters
     @Autowired
     private final DhisProperties dhisProperties;
 
+    @Autowired
+    private final FhirProperties fhirProperties;
+
     @Converter
     public Bundle teToBundle( TrackedEntity trackedEntity, Exchange exchange )
     {
-        Bundle bundle = new Bundle().setType( Bundle.BundleType.BATCH );
+        return contextToBundle( new EsaviContext( trackedEntity, dhisProperties ), exchange );
+    }
+
+    @Converter
+    public Bundle contextToBundle( EsaviContext ctx, Exchange exchange )
+    {
+        FhirProperties.WriteStrategy writeStrategy = fhirProperties.getWriteStrategy();
+        Bundle bundle = new Bundle().setType( writeStrategy == FhirProperties.WriteStrategy.TRANSACTION
+            ? Bundle.BundleType.TRANSACTION : Bundle.BundleType.BATCH );
 
-        QuestionnaireResponse questionnaireResponse = EsaviProfile.create( trackedEntity, dhisProperties );
+        QuestionnaireResponse questionnaireResponse = EsaviProfile.create( ctx );
 
         bundle.addEntry()
             .setResource( questionnaireResponse )
             .getRequest()
-            .setUrl( "QuestionnaireResponse?identifier=" + questionnaireResponse.getId() )
+            .setUrl( requestUrl( questionnaireResponse, writeStrategy ) )
             .setMethod( Bundle.HTTPVerb.PUT );
 
         exchange.getIn().setHeader( FhirConstants.PROPERTY_PREFIX + "bundle", bundle );
 
         return bundle;
     }
+
+    private static String requestUrl( QuestionnaireResponse questionnaireResponse,
+        FhirProperties.WriteStrategy writeStrategy )
+    {
+        Identifier identifier = questionnaireResponse.getIdentifier();
+
+        if ( writeStrategy == FhirProperties.WriteStrategy.IDENTIFIER && identifier.hasValue() )
+        {
+            return "QuestionnaireResponse?identifier=" + (identifier.hasSystem() ? identifier.getSystem() + "|" : "")
+                + UrlUtil.escapeUrlParam( identifier.getValue() );
+        }
+
+        return "QuestionnaireResponse/" + questionnaireResponse.getIdElement().getIdPart();
+    }
 }
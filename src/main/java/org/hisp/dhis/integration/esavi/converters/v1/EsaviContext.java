@@ -39,7 +39,10 @@ import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -48,33 +51,103 @@ import static org.springframework.util.StringUtils.hasText;
 @Data
 public class EsaviContext
 {
-    private final static Map<String, Map<String, String>> optionSets = new ConcurrentHashMap<>();
+    static final String TRACKED_ENTITY = "trackedEntity";
+
+    static final String UPDATED_AT = "updatedAt";
+
+    static final String ATTRIBUTES = "attributes";
+
+    static final String ATTRIBUTE = "attribute";
+
+    static final String VALUE = "value";
+
+    static final String ENROLLMENTS = "enrollments";
+
+    static final String ORG_UNIT_NAME = "orgUnitName";
+
+    static final String EVENTS = "events";
+
+    static final String PROGRAM_STAGE = "programStage";
+
+    static final String COMPLETED_AT = "completedAt";
+
+    static final String DATA_VALUES = "dataValues";
+
+    static final String DATA_ELEMENT = "dataElement";
 
-    private final TrackedEntity trackedEntity;
+    /**
+     * Fields of the tracked entity read by this context (and the profile through it), plus the timestamps used to
+     * version responses. Used as {@code fields} filter when fetching tracked entities, so DHIS2 does not serialize
+     * notes, relationships, audit fields etc. that would be thrown away here. Built from the same field names
+     * {@link EsaviContextReader} matches on, so a field read there cannot be missing here.
+     */
+    public static final String FIELDS = fields( TRACKED_ENTITY, UPDATED_AT,
+        nested( ATTRIBUTES, ATTRIBUTE, VALUE ),
+        nested( ENROLLMENTS, ORG_UNIT_NAME, UPDATED_AT,
+            nested( EVENTS, PROGRAM_STAGE, COMPLETED_AT, UPDATED_AT,
+                nested( DATA_VALUES, DATA_ELEMENT, VALUE ) ) ) );
+
+    private final static Map<String, Map<String, String>> optionSets = new ConcurrentHashMap<>();
 
     private final Map<String, String> dataValues = new HashMap<>();
 
     private final Map<String, String> attributes = new HashMap<>();
 
-    private final DhisProperties dhisProperties;
+    /**
+     * {@code updatedAt} of the tracked entity, its enrollment and events.
+     */
+    private final List<String> timestamps = new ArrayList<>();
+
+    private String trackedEntityId;
+
+    private String orgUnitName;
+
+    private boolean enrolled;
 
     private String completedDate;
 
+    /**
+     * Empty context, to be filled by {@link EsaviContextReader}.
+     */
+    public EsaviContext()
+    {
+    }
+
     public EsaviContext( TrackedEntity trackedEntity, DhisProperties dhisProperties )
     {
-        this.trackedEntity = trackedEntity;
-        this.dhisProperties = dhisProperties;
-        setup();
+        setup( trackedEntity, dhisProperties.getEsaviProgramStageId() );
     }
 
-    public Enrollment__2 getEnrollment()
+    public String getOrgUnitName()
     {
-        if ( trackedEntity.getEnrollments().isEmpty() )
+        if ( !enrolled )
         {
             throw new RuntimeException( "No enrollments found." );
         }
 
-        return trackedEntity.getEnrollments().get().get( 0 );
+        return orgUnitName;
+    }
+
+    /**
+     * Sets the completed date from the {@code completedAt} of the ESAVI event, null for an uncompleted event.
+     */
+    public void setCompletedAt( String completedAt )
+    {
+        if ( completedAt == null )
+        {
+            completedDate = null;
+            return;
+        }
+
+        try
+        {
+            completedDate = new SimpleDateFormat( "yyyy-MM-dd" ).format(
+                new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS" ).parse( completedAt ) );
+        }
+        catch ( ParseException e )
+        {
+            throw new RuntimeException( e );
+        }
     }
 
     public String dataElement( String id )
@@ -196,40 +269,35 @@ public class EsaviContext
         return optionSets;
     }
 
-    private void setup()
+    private void setup( TrackedEntity trackedEntity, String esaviProgramStageId )
     {
+        trackedEntityId = trackedEntity.getTrackedEntity().orElse( null );
+        trackedEntity.getUpdatedAt().ifPresent( updatedAt -> timestamps.add( timestamp( updatedAt ) ) );
+
         for ( Attribute__2 attribute : trackedEntity.getAttributes().get() )
         {
             attributes.put( attribute.getAttribute().get(), attribute.getValue().get() );
         }
 
-        if ( trackedEntity.getEnrollments().get().isEmpty() )
+        if ( trackedEntity.getEnrollments().isEmpty() || trackedEntity.getEnrollments().get().isEmpty() )
         {
             return;
         }
 
         Enrollment__2 enrollment = trackedEntity.getEnrollments().get().get( 0 );
 
+        enrolled = true;
+        orgUnitName = enrollment.getOrgUnitName().orElse( null );
+        enrollment.getUpdatedAt().ifPresent( updatedAt -> timestamps.add( timestamp( updatedAt ) ) );
+
         for ( Event__2 event : enrollment.getEvents().get() )
         {
+            event.getUpdatedAt().ifPresent( updatedAt -> timestamps.add( timestamp( updatedAt ) ) );
+
             if ( event.getProgramStage().isPresent() && event.getProgramStage().get()
-                .equals( dhisProperties.getEsaviProgramStageId() ) )
+                .equals( esaviProgramStageId ) )
             {
-                try
-                {
-                    if (event.getCompletedAt().isEmpty()) {
-                        // uncompleted event
-                        completedDate = null;
-                    } else {
-                        completedDate = new SimpleDateFormat("yyyy-MM-dd").format(
-                                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").parse(
-                                        (String) event.getCompletedAt().get()));
-                    }
-                }
-                catch ( ParseException e )
-                {
-                    throw new RuntimeException( e );
-                }
+                setCompletedAt( (String) event.getCompletedAt().orElse( null ) );
             }
             for ( DataValue__3 dataValue : event.getDataValues().get() )
             {
@@ -238,6 +306,16 @@ public class EsaviContext
         }
     }
 
+    private static String timestamp( Object value )
+    {
+        if ( value instanceof Date )
+        {
+            return ((Date) value).toInstant().toString();
+        }
+
+        return String.valueOf( value );
+    }
+
     public static void addOptionSet( OptionSet optionSet )
     {
         if ( optionSet == null || optionSets.containsKey( optionSet.getId().get() ) )
@@ -252,4 +330,14 @@ public class EsaviContext
             optionSets.get( optionSet.getId().get() ).put( option.getCode().get(), option.getName().get() );
         }
     }
+
+    private static String fields( String... fields )
+    {
+        return String.join( ",", fields );
+    }
+
+    private static String nested( String field, String... fields )
+    {
+        return field + "[" + fields( fields ) + "]";
+    }
 }
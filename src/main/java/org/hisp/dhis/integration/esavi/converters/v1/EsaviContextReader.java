@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.converters.v1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a {@code tracker/trackedEntities} response straight into
+ * {@link EsaviContext}s in a single streaming pass, without building the
+ * generated model (or any other object tree) first. Only what the context
+ * needs is kept, everything else is skipped while parsing.
+ */
+public class EsaviContextReader
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String esaviProgramStageId;
+
+    public EsaviContextReader( String esaviProgramStageId )
+    {
+        this.esaviProgramStageId = esaviProgramStageId;
+    }
+
+    public List<EsaviContext> read( InputStream inputStream )
+        throws IOException
+    {
+        List<EsaviContext> contexts = new ArrayList<>();
+
+        try ( JsonParser parser = JSON_FACTORY.createParser( inputStream ) )
+        {
+            expect( parser, parser.nextToken(), JsonToken.START_OBJECT );
+
+            while ( parser.nextToken() == JsonToken.FIELD_NAME )
+            {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                // "instances" up to 2.40, "trackedEntities" from 2.41
+                if ( token == JsonToken.START_ARRAY
+                    && ("instances".equals( field ) || "trackedEntities".equals( field )) )
+                {
+                    while ( parser.nextToken() == JsonToken.START_OBJECT )
+                    {
+                        contexts.add( readTrackedEntity( parser ) );
+                    }
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return contexts;
+    }
+
+    /**
+     * Reads a sequence of JSON documents, such as NDJSON or concatenated
+     * archive records, handing every tracked entity found to the consumer as
+     * soon as it is read. A document is either a tracked entities response or
+     * a single tracked entity; other documents are skipped.
+     *
+     * @return the number of documents skipped
+     */
+    public long readAll( InputStream inputStream, Consumer<EsaviContext> consumer )
+        throws IOException
+    {
+        long skipped = 0;
+
+        try ( JsonParser parser = JSON_FACTORY.createParser( inputStream ) )
+        {
+            JsonToken document;
+
+            while ( (document = parser.nextToken()) != null )
+            {
+                if ( document != JsonToken.START_OBJECT )
+                {
+                    parser.skipChildren();
+                    skipped++;
+                    continue;
+                }
+
+                EsaviContext ctx = new EsaviContext();
+                boolean page = false;
+
+                while ( parser.nextToken() == JsonToken.FIELD_NAME )
+                {
+                    String field = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+
+                    if ( token == JsonToken.START_ARRAY
+                        && ("instances".equals( field ) || "trackedEntities".equals( field )) )
+                    {
+                        page = true;
+
+                        while ( parser.nextToken() == JsonToken.START_OBJECT )
+                        {
+                            consumer.accept( readTrackedEntity( parser ) );
+                        }
+                    }
+                    else
+                    {
+                        readTrackedEntityField( parser, ctx, field, token );
+                    }
+                }
+
+                if ( page )
+                {
+                    continue;
+                }
+
+                if ( ctx.getTrackedEntityId() != null )
+                {
+                    consumer.accept( ctx );
+                }
+                else
+                {
+                    skipped++;
+                }
+            }
+        }
+
+        return skipped;
+    }
+
+    private EsaviContext readTrackedEntity( JsonParser parser )
+        throws IOException
+    {
+        EsaviContext ctx = new EsaviContext();
+
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            readTrackedEntityField( parser, ctx, field, parser.nextToken() );
+        }
+
+        return ctx;
+    }
+
+    private void readTrackedEntityField( JsonParser parser, EsaviContext ctx, String field, JsonToken token )
+        throws IOException
+    {
+        if ( EsaviContext.TRACKED_ENTITY.equals( field ) )
+        {
+            ctx.setTrackedEntityId( parser.getValueAsString() );
+        }
+        else if ( EsaviContext.UPDATED_AT.equals( field ) )
+        {
+            addTimestamp( parser, ctx );
+        }
+        else if ( EsaviContext.ATTRIBUTES.equals( field ) && token == JsonToken.START_ARRAY )
+        {
+            while ( parser.nextToken() == JsonToken.START_OBJECT )
+            {
+                readAttribute( parser, ctx );
+            }
+        }
+        else if ( EsaviContext.ENROLLMENTS.equals( field ) && token == JsonToken.START_ARRAY )
+        {
+            readEnrollments( parser, ctx );
+        }
+        else
+        {
+            parser.skipChildren();
+        }
+    }
+
+    private void readAttribute( JsonParser parser, EsaviContext ctx )
+        throws IOException
+    {
+        String attribute = null;
+        String value = null;
+
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if ( EsaviContext.ATTRIBUTE.equals( field ) )
+            {
+                attribute = parser.getValueAsString();
+            }
+            else if ( EsaviContext.VALUE.equals( field ) )
+            {
+                value = parser.getValueAsString();
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+
+        if ( attribute != null )
+        {
+            ctx.getAttributes().put( attribute, value );
+        }
+    }
+
+    private void readEnrollments( JsonParser parser, EsaviContext ctx )
+        throws IOException
+    {
+        // like EsaviContext, only the first enrollment is used
+        if ( parser.nextToken() != JsonToken.START_OBJECT )
+        {
+            return;
+        }
+
+        ctx.setEnrolled( true );
+
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if ( EsaviContext.ORG_UNIT_NAME.equals( field ) )
+            {
+                ctx.setOrgUnitName( parser.getValueAsString() );
+            }
+            else if ( EsaviContext.UPDATED_AT.equals( field ) )
+            {
+                addTimestamp( parser, ctx );
+            }
+            else if ( EsaviContext.EVENTS.equals( field ) && token == JsonToken.START_ARRAY )
+            {
+                while ( parser.nextToken() == JsonToken.START_OBJECT )
+                {
+                    readEvent( parser, ctx );
+                }
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+
+        while ( parser.nextToken() != JsonToken.END_ARRAY )
+        {
+            parser.skipChildren();
+        }
+    }
+
+    private void readEvent( JsonParser parser, EsaviContext ctx )
+        throws IOException
+    {
+        String programStage = null;
+        String completedAt = null;
+
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if ( EsaviContext.PROGRAM_STAGE.equals( field ) )
+            {
+                programStage = parser.getValueAsString();
+            }
+            else if ( EsaviContext.COMPLETED_AT.equals( field ) )
+            {
+                completedAt = parser.getValueAsString();
+            }
+            else if ( EsaviContext.UPDATED_AT.equals( field ) )
+            {
+                addTimestamp( parser, ctx );
+            }
+            else if ( EsaviContext.DATA_VALUES.equals( field ) && token == JsonToken.START_ARRAY )
+            {
+                while ( parser.nextToken() == JsonToken.START_OBJECT )
+                {
+                    readDataValue( parser, ctx );
+                }
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+
+        if ( esaviProgramStageId.equals( programStage ) )
+        {
+            ctx.setCompletedAt( completedAt );
+        }
+    }
+
+    private void readDataValue( JsonParser parser, EsaviContext ctx )
+        throws IOException
+    {
+        String dataElement = null;
+        String value = null;
+
+        while ( parser.nextToken() == JsonToken.FIELD_NAME )
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if ( EsaviContext.DATA_ELEMENT.equals( field ) )
+            {
+                dataElement = parser.getValueAsString();
+            }
+            else if ( EsaviContext.VALUE.equals( field ) )
+            {
+                value = parser.getValueAsString();
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+
+        if ( dataElement != null )
+        {
+            ctx.getDataValues().put( dataElement, value );
+        }
+    }
+
+    private static void addTimestamp( JsonParser parser, EsaviContext ctx )
+        throws IOException
+    {
+        String value = parser.getValueAsString();
+
+        if ( value != null )
+        {
+            ctx.getTimestamps().add( value );
+        }
+    }
+
+    private static void expect( JsonParser parser, JsonToken actual, JsonToken expected )
+        throws JsonParseException
+    {
+        if ( actual != expected )
+        {
+            throw new JsonParseException( parser, "Expected " + expected + " but found " + actual );
+        }
+    }
+}
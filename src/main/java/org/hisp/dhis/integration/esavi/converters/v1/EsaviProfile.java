@@ -44,6 +44,11 @@ import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 
 public final class EsaviProfile {
 
+    /**
+     * Version of this mapping, bump whenever the generated QuestionnaireResponse changes for the same DHIS2 data.
+     */
+    public static final String VERSION = "1";
+
     public static final String OPTIONSET_WHODRUG_COVID = "PrAA7nJPXke";
     public static final String OPTIONSET_MEDDRA = "OzARj1D09Dm";
     public static final String OPTIONSET_DILUENTS = "NdEeGMVaObK";
@@ -69,10 +74,12 @@ public final class EsaviProfile {
     }
 
     public static QuestionnaireResponse create(TrackedEntity trackedEntity, DhisProperties dhisProperties) {
-        EsaviContext ctx = new EsaviContext(trackedEntity, dhisProperties);
+        return create(new EsaviContext(trackedEntity, dhisProperties));
+    }
 
+    public static QuestionnaireResponse create(EsaviContext ctx) {
         QuestionnaireResponse response = new QuestionnaireResponse();
-        response.setId(trackedEntity.getTrackedEntity().get());
+        response.setId(ctx.getTrackedEntityId());
         try {
             Date authored = new SimpleDateFormat("yyyy-MM-dd").parse(ctx.getCompletedDate());
             response.setAuthored(authored);
@@ -211,7 +218,7 @@ public final class EsaviProfile {
                 new StringType("nombreOrganizacionNotificadora"));
 
         item.addAnswer()
-                .setValue(new StringType(ctx.getEnrollment().getOrgUnitName().get()));
+                .setValue(new StringType(ctx.getOrgUnitName()));
 
         return item;
     }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.export;
+
+/**
+ * Additive increase, multiplicative decrease concurrency limit. The limit
+ * grows by one for every {@code limit} calls answered within
+ * {@code latencyTolerance} times the baseline latency, and is multiplied by
+ * {@code backoffRatio} when a call is slower than that or failed with an
+ * overload (5xx, timeout). The baseline is a slowly moving average of the
+ * latencies of every call that did not fail, slow ones included, so after a
+ * lasting rise in latency the limit backs off for a while and then grows
+ * again instead of staying at {@code minLimit}.
+ */
+public class AimdLimiter
+{
+    private static final double BASELINE_SMOOTHING = 0.05;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double latencyTolerance;
+
+    private final double backoffRatio;
+
+    private double limit;
+
+    private double baselineNanos = -1;
+
+    private int inFlight;
+
+    public AimdLimiter( int initialLimit, int minLimit, int maxLimit, double latencyTolerance, double backoffRatio )
+    {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.max( minLimit, Math.min( maxLimit, initialLimit ) );
+    }
+
+    /**
+     * Blocks until a call is allowed under the current limit.
+     */
+    public synchronized void acquire()
+        throws InterruptedException
+    {
+        while ( inFlight >= getLimit() )
+        {
+            wait();
+        }
+
+        inFlight++;
+    }
+
+    /**
+     * Records a completed call.
+     *
+     * @param latencyNanos time the call took
+     * @param overloaded true if the call failed in a way that indicates
+     *        overload
+     */
+    public synchronized void release( long latencyNanos, boolean overloaded )
+    {
+        inFlight--;
+
+        if ( overloaded || (baselineNanos > 0 && latencyNanos > baselineNanos * latencyTolerance) )
+        {
+            limit = Math.max( minLimit, limit * backoffRatio );
+        }
+        else
+        {
+            limit = Math.min( maxLimit, limit + 1 / limit );
+        }
+
+        if ( !overloaded )
+        {
+            baselineNanos = baselineNanos < 0 ? latencyNanos
+                : baselineNanos + BASELINE_SMOOTHING * (latencyNanos - baselineNanos);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Gives back a call acquired but not made, without a latency to record.
+     */
+    public synchronized void cancel()
+    {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+}
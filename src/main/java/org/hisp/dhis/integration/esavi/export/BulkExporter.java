@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.ExportProperties;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.outbox.Outbox;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.api.Dhis2Response;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.hisp.dhis.integration.sdk.api.operation.GetOperation;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Exports every ESAVI case of the program, fetching tracker pages
+ * concurrently through {@link #dhis2Client}, within the DHIS2 bulkhead shared
+ * with the request routes. The number of pages in flight
+ * is driven by an {@link AimdLimiter}, so the export speeds up while DHIS2
+ * answers in stable time and backs off when latency or 5xx responses rise.
+ * Each case is handed to {@link #SINK} as an {@link EsaviContext}. Pages are
+ * not fetched while the {@link Outbox} is above its high watermark.
+ */
+@Slf4j
+@Component
+public class BulkExporter
+{
+    public static final String SINK = "direct:export-esavi-case";
+
+    private static final String PROGRAM_ID = "aFGRl00bzio";
+
+    private final Dhis2Client dhis2Client;
+
+    private final Bulkhead dhis2Bulkhead;
+
+    private final ProducerTemplate producerTemplate;
+
+    private final ExportProperties exportProperties;
+
+    private final EsaviContextReader esaviContextReader;
+
+    private final Outbox outbox;
+
+    private final Timer pageTimer;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile AimdLimiter limiter;
+
+    public BulkExporter( Dhis2Client dhis2Client, @Qualifier( "dhis2Bulkhead" ) Bulkhead dhis2Bulkhead,
+        ProducerTemplate producerTemplate, DhisProperties dhisProperties, ExportProperties exportProperties,
+        Outbox outbox, MeterRegistry meterRegistry )
+    {
+        this.dhis2Client = dhis2Client;
+        this.dhis2Bulkhead = dhis2Bulkhead;
+        this.producerTemplate = producerTemplate;
+        this.exportProperties = exportProperties;
+        this.esaviContextReader = new EsaviContextReader( dhisProperties.getEsaviProgramStageId() );
+        this.outbox = outbox;
+
+        this.pageTimer = Timer.builder( "esavi.export.page" )
+            .description( "Latency of the DHIS2 tracker page fetches of the bulk export" )
+            .register( meterRegistry );
+        Gauge.builder( "esavi.export.concurrency.limit", this,
+            exporter -> exporter.limiter == null ? 0 : exporter.limiter.getLimit() )
+            .description( "Concurrent DHIS2 page fetches allowed by the adaptive limiter" )
+            .register( meterRegistry );
+        Gauge.builder( "esavi.export.concurrency.in-flight", this,
+            exporter -> exporter.limiter == null ? 0 : exporter.limiter.getInFlight() )
+            .description( "DHIS2 page fetches in flight" )
+            .register( meterRegistry );
+    }
+
+    public boolean isRunning()
+    {
+        return running.get();
+    }
+
+    /**
+     * Starts an export in the background.
+     *
+     * @return false if an export is already running
+     */
+    public boolean start()
+    {
+        if ( !running.compareAndSet( false, true ) )
+        {
+            return false;
+        }
+
+        log.info( "Export started" );
+
+        Run run = new Run( null, "ACCESSIBLE", new AtomicBoolean() );
+        export( run ).whenComplete( ( result, e ) -> running.set( false ) );
+
+        return true;
+    }
+
+    /**
+     * Exports the cases of an organisation unit, used for one partition of a
+     * sharded export, and waits for it to finish.
+     *
+     * @param ouMode {@code DESCENDANTS} for the subtree, {@code SELECTED} for
+     *        the organisation unit alone
+     * @param cancelled set to stop the export early
+     * @return false if the export was aborted or cancelled
+     */
+    public boolean export( String orgUnit, String ouMode, AtomicBoolean cancelled )
+    {
+        Run run = new Run( orgUnit, ouMode, cancelled );
+        export( run ).join();
+
+        return !run.aborted.get();
+    }
+
+    private CompletableFuture<Void> export( Run run )
+    {
+        AimdLimiter runLimiter = new AimdLimiter( exportProperties.getInitialConcurrency(),
+            exportProperties.getMinConcurrency(), exportProperties.getMaxConcurrency(),
+            exportProperties.getLatencyTolerance(), exportProperties.getBackoffRatio() );
+        limiter = runLimiter;
+
+        ExecutorService executorService = Executors.newFixedThreadPool( exportProperties.getMaxConcurrency(),
+            runnable -> new Thread( runnable, "esavi-export" ) );
+
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[exportProperties.getMaxConcurrency()];
+
+        for ( int i = 0; i < workers.length; i++ )
+        {
+            workers[i] = CompletableFuture.runAsync( () -> work( run, runLimiter ), executorService );
+        }
+
+        return CompletableFuture.allOf( workers ).whenComplete( ( result, e ) -> {
+            executorService.shutdown();
+
+            if ( e != null )
+            {
+                run.aborted.set( true );
+            }
+
+            log.info( "Export{} {}: {} pages, {} cases, {} failed cases, final concurrency limit {}",
+                run.orgUnit == null ? "" : " of " + run.orgUnit + " (" + run.ouMode + ")",
+                run.aborted.get() ? "aborted" : "done", run.pages.get(), run.cases.get(), run.failedCases.get(),
+                runLimiter.getLimit() );
+        } );
+    }
+
+    private void work( Run run, AimdLimiter limiter )
+    {
+        while ( !run.aborted.get() )
+        {
+            int page = run.nextPage.getAndIncrement();
+
+            if ( page > run.lastPage.get() )
+            {
+                return;
+            }
+
+            List<EsaviContext> contexts;
+
+            try
+            {
+                awaitOutbox();
+                contexts = fetch( run, limiter, page );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                run.aborted.set( true );
+                return;
+            }
+            catch ( Exception e )
+            {
+                log.error( "Giving up on page " + page + ", aborting export", e );
+                run.aborted.set( true );
+                return;
+            }
+
+            run.pages.incrementAndGet();
+
+            if ( contexts.size() < exportProperties.getPageSize() )
+            {
+                run.lastPage.accumulateAndGet( page, Math::min );
+            }
+
+            for ( EsaviContext context : contexts )
+            {
+                try
+                {
+                    producerTemplate.sendBodyAndHeader( SINK, context, "trackedEntityId",
+                        context.getTrackedEntityId() );
+                    run.cases.incrementAndGet();
+                }
+                catch ( Exception e )
+                {
+                    log.warn( "Failed to export tracked entity " + context.getTrackedEntityId(), e );
+                    run.failedCases.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void awaitOutbox()
+        throws InterruptedException
+    {
+        while ( true )
+        {
+            try
+            {
+                outbox.awaitCapacity();
+                return;
+            }
+            catch ( RejectedExecutionException e )
+            {
+                log.debug( "Export held back: {}", e.getMessage() );
+            }
+        }
+    }
+
+    private List<EsaviContext> fetch( Run run, AimdLimiter limiter, int page )
+        throws Exception
+    {
+        GetOperation request = dhis2Client.get( "tracker/trackedEntities" )
+            .withParameter( "program", PROGRAM_ID )
+            .withParameter( "ouMode", run.ouMode )
+            .withParameter( "page", String.valueOf( page ) )
+            .withParameter( "pageSize", String.valueOf( exportProperties.getPageSize() ) )
+            .withParameter( "fields", EsaviContext.FIELDS );
+
+        if ( run.orgUnit != null )
+        {
+            request = request.withParameter( "orgUnit", run.orgUnit );
+        }
+
+        for ( int attempt = 1;; attempt++ )
+        {
+            limiter.acquire();
+
+            try
+            {
+                acquireDhis2Permission();
+            }
+            catch ( InterruptedException e )
+            {
+                limiter.cancel();
+                throw e;
+            }
+
+            // only DHIS2 is timed: the wait for the bulkhead and the parsing are not its latency
+            long start = System.nanoTime();
+            boolean overloaded = false;
+            Exception failure = null;
+            byte[] body = null;
+
+            try ( Dhis2Response response = request.transfer(); InputStream inputStream = response.read() )
+            {
+                body = inputStream.readAllBytes();
+            }
+            catch ( RemoteDhis2ClientException e )
+            {
+                overloaded = e.getHttpStatusCode() >= 500;
+                failure = e;
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                // connection failures and timeouts
+                overloaded = true;
+                failure = e;
+            }
+            finally
+            {
+                dhis2Bulkhead.onComplete();
+
+                long latency = System.nanoTime() - start;
+                limiter.release( latency, overloaded );
+                pageTimer.record( latency, TimeUnit.NANOSECONDS );
+            }
+
+            if ( failure == null )
+            {
+                return esaviContextReader.read( new ByteArrayInputStream( body ) );
+            }
+
+            if ( !overloaded || attempt >= exportProperties.getMaxAttempts() )
+            {
+                throw failure;
+            }
+
+            log.warn( "Page {} failed (attempt {}), concurrency limit now {}: {}", page, attempt,
+                limiter.getLimit(), failure.getMessage() );
+            Thread.sleep( exportProperties.getRetryDelay().toMillis() );
+        }
+    }
+
+    /**
+     * Waits for a permit of the DHIS2 bulkhead. A full bulkhead means the
+     * requests on this node hold the permits, not that DHIS2 is overloaded,
+     * so the page is just not sent yet.
+     */
+    private void acquireDhis2Permission()
+        throws InterruptedException
+    {
+        while ( true )
+        {
+            try
+            {
+                dhis2Bulkhead.acquirePermission();
+                return;
+            }
+            catch ( BulkheadFullException e )
+            {
+                log.debug( "Export held back: {}", e.getMessage() );
+                Thread.sleep( exportProperties.getRetryDelay().toMillis() );
+            }
+        }
+    }
+
+    private static class Run
+    {
+        final String orgUnit;
+
+        final String ouMode;
+
+        final AtomicInteger nextPage = new AtomicInteger( 1 );
+
+        // first page that came back short, pages after it are not fetched
+        final AtomicInteger lastPage = new AtomicInteger( Integer.MAX_VALUE );
+
+        final AtomicBoolean aborted;
+
+        final AtomicInteger pages = new AtomicInteger();
+
+        final AtomicLong cases = new AtomicLong();
+
+        final AtomicLong failedCases = new AtomicLong();
+
+        Run( String orgUnit, String ouMode, AtomicBoolean aborted )
+        {
+            this.orgUnit = orgUnit;
+            this.ouMode = ouMode;
+            this.aborted = aborted;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.Value;
+
+/**
+ * Partition plan and leases of a sharded export, kept as plain files in a
+ * directory shared by the nodes. Every read-modify-write happens under an
+ * exclusive lock on the {@code .lock} file of the directory, and lease files
+ * are replaced atomically.
+ * <p>
+ * A node claims a partition that is neither done nor failed and whose lease
+ * is missing or expired, and renews the lease while it works on it. The
+ * lease carries a token that changes with every claim, so a node whose lease
+ * expired and was claimed by another node finds out on its next renewal.
+ * <p>
+ * The plan is identified by a run id, which also keys its lease files. Once
+ * every partition is done or failed, the next {@link #plan} replaces it with
+ * a new run and deletes the leases of the completed one.
+ */
+public class LeaseDirectory
+{
+    private static final String PLAN = "plan.tsv";
+
+    private static final String LOCK = ".lock";
+
+    private static final String LEASE_SUFFIX = ".lease";
+
+    private static final String RUN = "run";
+
+    private final Path directory;
+
+    private final String nodeId;
+
+    private final Duration leaseDuration;
+
+    private final int maxAttempts;
+
+    private final Clock clock;
+
+    public LeaseDirectory( Path directory, String nodeId, Duration leaseDuration, int maxAttempts, Clock clock )
+        throws IOException
+    {
+        this.directory = directory;
+        this.nodeId = nodeId;
+        this.leaseDuration = leaseDuration;
+        this.maxAttempts = maxAttempts;
+        this.clock = clock;
+
+        Files.createDirectories( directory );
+    }
+
+    /**
+     * Reads the partition plan of the export in progress, or writes a new
+     * one returned by the planner if there is none or the previous export is
+     * complete.
+     */
+    public Plan plan( Callable<List<Partition>> planner )
+        throws Exception
+    {
+        return locked( () -> {
+            Optional<Plan> current = readPlan();
+            Status completed = null;
+
+            if ( current.isPresent() )
+            {
+                Status status = count( current.get() );
+
+                if ( status.getRemaining() > 0 )
+                {
+                    return current.get();
+                }
+
+                completed = status;
+            }
+
+            deleteLeases();
+
+            Plan plan = new Plan( UUID.randomUUID().toString(), planner.call(), completed );
+            write( directory.resolve( PLAN ), plan.format().getBytes( StandardCharsets.UTF_8 ) );
+
+            return plan;
+        } );
+    }
+
+    /**
+     * Whether the plan is still the one of the export in progress, and not
+     * replaced by a new export after it completed.
+     */
+    public boolean isCurrent( Plan plan )
+        throws Exception
+    {
+        return locked( () -> isCurrentPlan( plan ) );
+    }
+
+    /**
+     * Claims the first partition of the plan that is available, none once
+     * the plan was replaced.
+     */
+    public Optional<Lease> claim( Plan plan )
+        throws Exception
+    {
+        return locked( () -> {
+            if ( !isCurrentPlan( plan ) )
+            {
+                return Optional.empty();
+            }
+
+            Instant now = clock.instant();
+
+            for ( Partition partition : plan.getPartitions() )
+            {
+                Properties lease = read( plan.getRunId(), partition );
+                State state = State.valueOf( lease.getProperty( "state", State.OPEN.name() ) );
+                int attempts = Integer.parseInt( lease.getProperty( "attempts", "0" ) );
+
+                if ( state == State.DONE || state == State.FAILED
+                    || (state == State.LEASED && now.isBefore( expiresAt( lease ) )) )
+                {
+                    continue;
+                }
+
+                if ( attempts >= maxAttempts )
+                {
+                    lease.setProperty( "state", State.FAILED.name() );
+                    write( plan.getRunId(), partition, lease );
+                    continue;
+                }
+
+                String token = UUID.randomUUID().toString();
+                lease.setProperty( "state", State.LEASED.name() );
+                lease.setProperty( "owner", nodeId );
+                lease.setProperty( "token", token );
+                lease.setProperty( "expiresAt", now.plus( leaseDuration ).toString() );
+                lease.setProperty( "attempts", String.valueOf( attempts + 1 ) );
+                write( plan.getRunId(), partition, lease );
+
+                return Optional.of( new Lease( plan.getRunId(), partition, token, attempts + 1 ) );
+            }
+
+            return Optional.empty();
+        } );
+    }
+
+    /**
+     * Extends the lease.
+     *
+     * @return false if the lease was lost to another node
+     */
+    public boolean renew( Lease lease )
+        throws Exception
+    {
+        return locked( () -> {
+            Properties current = read( lease.getRunId(), lease.getPartition() );
+
+            if ( !isHeld( current, lease ) )
+            {
+                return false;
+            }
+
+            current.setProperty( "expiresAt", clock.instant().plus( leaseDuration ).toString() );
+            write( lease.getRunId(), lease.getPartition(), current );
+
+            return true;
+        } );
+    }
+
+    /**
+     * Marks the partition as done.
+     */
+    public void complete( Lease lease )
+        throws Exception
+    {
+        finish( lease, State.DONE );
+    }
+
+    /**
+     * Hands the partition back after a failed attempt, it is claimed again
+     * until it runs out of attempts.
+     */
+    public void release( Lease lease )
+        throws Exception
+    {
+        finish( lease, lease.getAttempt() >= maxAttempts ? State.FAILED : State.OPEN );
+    }
+
+    /**
+     * Number of partitions in each state, expired leases count as open.
+     */
+    public Status status( Plan plan )
+        throws Exception
+    {
+        return locked( () -> count( plan ) );
+    }
+
+    private void finish( Lease lease, State state )
+        throws Exception
+    {
+        locked( () -> {
+            Properties current = read( lease.getRunId(), lease.getPartition() );
+
+            if ( isHeld( current, lease ) )
+            {
+                current.setProperty( "state", state.name() );
+                current.remove( "token" );
+                write( lease.getRunId(), lease.getPartition(), current );
+            }
+
+            return null;
+        } );
+    }
+
+    private Status count( Plan plan )
+        throws IOException
+    {
+        Instant now = clock.instant();
+        int open = 0;
+        int leased = 0;
+        int done = 0;
+        int failed = 0;
+
+        for ( Partition partition : plan.getPartitions() )
+        {
+            Properties lease = read( plan.getRunId(), partition );
+            State state = State.valueOf( lease.getProperty( "state", State.OPEN.name() ) );
+
+            if ( state == State.DONE )
+            {
+                done++;
+            }
+            else if ( state == State.FAILED )
+            {
+                failed++;
+            }
+            else if ( state == State.LEASED && now.isBefore( expiresAt( lease ) ) )
+            {
+                leased++;
+            }
+            else
+            {
+                open++;
+            }
+        }
+
+        return new Status( open, leased, done, failed );
+    }
+
+    private boolean isCurrentPlan( Plan plan )
+        throws IOException
+    {
+        return readPlan().map( current -> current.getRunId().equals( plan.getRunId() ) ).orElse( false );
+    }
+
+    private Optional<Plan> readPlan()
+        throws IOException
+    {
+        Path plan = directory.resolve( PLAN );
+
+        if ( !Files.exists( plan ) )
+        {
+            return Optional.empty();
+        }
+
+        return Optional.of( Plan.parse( Files.readAllLines( plan, StandardCharsets.UTF_8 ) ) );
+    }
+
+    private void deleteLeases()
+        throws IOException
+    {
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            for ( Path file : (Iterable<Path>) files::iterator )
+            {
+                if ( file.getFileName().toString().endsWith( LEASE_SUFFIX ) )
+                {
+                    Files.deleteIfExists( file );
+                }
+            }
+        }
+    }
+
+    private static boolean isHeld( Properties current, Lease lease )
+    {
+        return State.LEASED.name().equals( current.getProperty( "state" ) )
+            && lease.getToken().equals( current.getProperty( "token" ) );
+    }
+
+    private static Instant expiresAt( Properties lease )
+    {
+        return Instant.parse( lease.getProperty( "expiresAt", Instant.EPOCH.toString() ) );
+    }
+
+    private synchronized <T> T locked( Callable<T> action )
+        throws Exception
+    {
+        // the file lock excludes other nodes, the monitor other threads of this node
+        try ( FileChannel channel = FileChannel.open( directory.resolve( LOCK ), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE ); FileLock lock = channel.lock() )
+        {
+            return action.call();
+        }
+    }
+
+    private Properties read( String runId, Partition partition )
+        throws IOException
+    {
+        Properties properties = new Properties();
+
+        try ( InputStream inputStream = Files.newInputStream( leaseFile( runId, partition ) ) )
+        {
+            properties.load( inputStream );
+        }
+        catch ( NoSuchFileException e )
+        {
+            // never claimed
+        }
+
+        return properties;
+    }
+
+    private void write( String runId, Partition partition, Properties lease )
+        throws IOException
+    {
+        Path temp = Files.createTempFile( directory, partition.getId(), ".tmp" );
+
+        try ( OutputStream outputStream = Files.newOutputStream( temp ) )
+        {
+            lease.store( outputStream, null );
+        }
+
+        Files.move( temp, leaseFile( runId, partition ), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    private void write( Path file, byte[] content )
+        throws IOException
+    {
+        Path temp = Files.createTempFile( directory, file.getFileName().toString(), ".tmp" );
+        Files.write( temp, content );
+        Files.move( temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    private Path leaseFile( String runId, Partition partition )
+    {
+        return directory.resolve( runId + "-" + partition.getId() + LEASE_SUFFIX );
+    }
+
+    private enum State
+    {
+        OPEN,
+        LEASED,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * The cases of an organisation unit subtree ({@code DESCENDANTS}), or of
+     * the organisation unit alone ({@code SELECTED}).
+     */
+    @Value
+    public static class Partition
+    {
+        String orgUnit;
+
+        String ouMode;
+
+        public String getId()
+        {
+            return orgUnit + "-" + ouMode.toLowerCase();
+        }
+
+        String format()
+        {
+            return orgUnit + '\t' + ouMode;
+        }
+
+        static Partition parse( String line )
+        {
+            String[] fields = line.split( "\t" );
+            return new Partition( fields[0], fields[1] );
+        }
+    }
+
+    /**
+     * The partitions of one export run.
+     */
+    @Value
+    public static class Plan
+    {
+        String runId;
+
+        List<Partition> partitions;
+
+        /**
+         * Status of the completed export this plan replaced, null if there
+         * was none.
+         */
+        Status replaced;
+
+        String format()
+        {
+            return RUN + '\t' + runId + "\n"
+                + partitions.stream().map( Partition::format ).collect( Collectors.joining( "\n" ) );
+        }
+
+        static Plan parse( List<String> lines )
+        {
+            String runId = null;
+            List<Partition> partitions = new ArrayList<>();
+
+            for ( String line : lines )
+            {
+                if ( line.startsWith( RUN + '\t' ) )
+                {
+                    runId = line.substring( RUN.length() + 1 );
+                }
+                else if ( !line.isBlank() )
+                {
+                    partitions.add( Partition.parse( line ) );
+                }
+            }
+
+            // a plan written before runs were identified
+            return new Plan( runId != null ? runId : "", partitions, null );
+        }
+    }
+
+    @Value
+    public static class Lease
+    {
+        String runId;
+
+        Partition partition;
+
+        String token;
+
+        int attempt;
+    }
+
+    @Value
+    public static class Status
+    {
+        int open;
+
+        int leased;
+
+        int done;
+
+        int failed;
+
+        /**
+         * Partitions not done or failed yet.
+         */
+        public int getRemaining()
+        {
+            return open + leased;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.export;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hisp.dhis.integration.esavi.config.properties.ExportProperties;
+import org.hisp.dhis.integration.esavi.config.properties.ShardingProperties;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.api.Dhis2Response;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+
+/**
+ * Bulk export shared by several gateway nodes. The cases are partitioned by
+ * organisation unit subtree, so every partition is a plain tracker query, and
+ * each node started with {@link #start()} claims partitions from the shared
+ * {@link LeaseDirectory} and exports them through the {@link BulkExporter}
+ * until none is left. A node keeps its lease alive while it works on a
+ * partition; partitions of a node that stopped renewing are claimed by the
+ * others once the lease expired. Starting it after every partition is done
+ * or failed starts a new export.
+ */
+@Slf4j
+@Component
+public class ShardedExport
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final BulkExporter bulkExporter;
+
+    private final Dhis2Client dhis2Client;
+
+    private final Bulkhead dhis2Bulkhead;
+
+    private final ShardingProperties shardingProperties;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public ShardedExport( BulkExporter bulkExporter, Dhis2Client dhis2Client,
+        @Qualifier( "dhis2Bulkhead" ) Bulkhead dhis2Bulkhead, ExportProperties exportProperties )
+    {
+        this.bulkExporter = bulkExporter;
+        this.dhis2Client = dhis2Client;
+        this.dhis2Bulkhead = dhis2Bulkhead;
+        this.shardingProperties = exportProperties.getSharding();
+    }
+
+    public boolean isEnabled()
+    {
+        return shardingProperties.isEnabled();
+    }
+
+    /**
+     * Starts working on the partitions in the background.
+     *
+     * @return false if this node is already working on them
+     */
+    public boolean start()
+    {
+        if ( !running.compareAndSet( false, true ) )
+        {
+            return false;
+        }
+
+        Thread thread = new Thread( () -> {
+            try
+            {
+                run();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch ( Exception e )
+            {
+                log.error( "Sharded export failed", e );
+            }
+            finally
+            {
+                running.set( false );
+            }
+        }, "esavi-export-shards" );
+        thread.setDaemon( true );
+        thread.start();
+
+        return true;
+    }
+
+    void run()
+        throws Exception
+    {
+        String nodeId = nodeId();
+        LeaseDirectory leases = new LeaseDirectory( Paths.get( shardingProperties.getDirectory() ), nodeId,
+            shardingProperties.getLeaseDuration(), shardingProperties.getMaxAttempts(), Clock.systemUTC() );
+        LeaseDirectory.Plan plan = leases.plan( this::partitions );
+
+        if ( plan.getReplaced() != null )
+        {
+            log.info( "Previous sharded export completed ({} partitions done, {} failed), starting export {}",
+                plan.getReplaced().getDone(), plan.getReplaced().getFailed(), plan.getRunId() );
+        }
+
+        log.info( "Sharded export {} started on node {}, {} partitions", plan.getRunId(), nodeId,
+            plan.getPartitions().size() );
+
+        ScheduledExecutorService renewals = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "esavi-export-lease" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        try
+        {
+            while ( true )
+            {
+                if ( !leases.isCurrent( plan ) )
+                {
+                    log.info( "Sharded export {} was completed and replaced by a new export", plan.getRunId() );
+                    return;
+                }
+
+                Optional<LeaseDirectory.Lease> lease = leases.claim( plan );
+
+                if ( lease.isPresent() )
+                {
+                    export( leases, lease.get(), renewals );
+                    continue;
+                }
+
+                LeaseDirectory.Status status = leases.status( plan );
+
+                if ( status.getRemaining() == 0 )
+                {
+                    log.info( "Sharded export {} finished on node {}: {} partitions done, {} failed",
+                        plan.getRunId(), nodeId, status.getDone(), status.getFailed() );
+                    return;
+                }
+
+                // partitions leased by other nodes are claimed here if their node stops renewing
+                Thread.sleep( shardingProperties.getRenewInterval().toMillis() );
+            }
+        }
+        finally
+        {
+            renewals.shutdownNow();
+        }
+    }
+
+    private void export( LeaseDirectory leases, LeaseDirectory.Lease lease,
+        ScheduledExecutorService renewals )
+        throws Exception
+    {
+        LeaseDirectory.Partition partition = lease.getPartition();
+        AtomicBoolean lost = new AtomicBoolean();
+        long interval = shardingProperties.getRenewInterval().toMillis();
+
+        ScheduledFuture<?> renewal = renewals.scheduleWithFixedDelay( () -> {
+            try
+            {
+                if ( !leases.renew( lease ) )
+                {
+                    lost.set( true );
+                }
+            }
+            catch ( Exception e )
+            {
+                // the lease expires unless a later renewal succeeds
+                log.warn( "Failed to renew the lease of partition " + partition.getId(), e );
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS );
+
+        log.info( "Exporting partition {} (attempt {})", partition.getId(), lease.getAttempt() );
+
+        boolean done;
+
+        try
+        {
+            done = bulkExporter.export( partition.getOrgUnit(), partition.getOuMode(), lost );
+        }
+        finally
+        {
+            renewal.cancel( false );
+        }
+
+        if ( lost.get() )
+        {
+            log.warn( "Lease of partition {} was lost to another node", partition.getId() );
+        }
+        else if ( done )
+        {
+            leases.complete( lease );
+        }
+        else
+        {
+            leases.release( lease );
+        }
+    }
+
+    /**
+     * The subtrees of the organisation units configured, or of those at the
+     * configured level. With a level, the organisation units above it are
+     * partitions of their own, so cases registered there are not missed.
+     */
+    private List<LeaseDirectory.Partition> partitions()
+        throws Exception
+    {
+        List<LeaseDirectory.Partition> partitions = new ArrayList<>();
+
+        if ( !shardingProperties.getOrgUnits().isEmpty() )
+        {
+            shardingProperties.getOrgUnits()
+                .forEach( orgUnit -> partitions.add( new LeaseDirectory.Partition( orgUnit, "DESCENDANTS" ) ) );
+            return partitions;
+        }
+
+        int level = shardingProperties.getOrgUnitLevel();
+
+        for ( String orgUnit : orgUnits( "level:eq:" + level ) )
+        {
+            partitions.add( new LeaseDirectory.Partition( orgUnit, "DESCENDANTS" ) );
+        }
+
+        for ( String orgUnit : orgUnits( "level:lt:" + level ) )
+        {
+            partitions.add( new LeaseDirectory.Partition( orgUnit, "SELECTED" ) );
+        }
+
+        return partitions;
+    }
+
+    private List<String> orgUnits( String filter )
+        throws Exception
+    {
+        List<String> ids = new ArrayList<>();
+        dhis2Bulkhead.acquirePermission();
+
+        try ( Dhis2Response response = dhis2Client.get( "organisationUnits" )
+            .withParameter( "filter", filter )
+            .withParameter( "fields", "id" )
+            .withParameter( "paging", "false" )
+            .transfer(); InputStream inputStream = response.read() )
+        {
+            JsonNode organisationUnits = OBJECT_MAPPER.readTree( inputStream ).path( "organisationUnits" );
+            organisationUnits.forEach( organisationUnit -> ids.add( organisationUnit.path( "id" ).asText() ) );
+        }
+        finally
+        {
+            dhis2Bulkhead.onComplete();
+        }
+
+        return ids;
+    }
+
+    private String nodeId()
+        throws Exception
+    {
+        if ( shardingProperties.getNodeId() != null )
+        {
+            return shardingProperties.getNodeId();
+        }
+
+        return InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+    }
+}
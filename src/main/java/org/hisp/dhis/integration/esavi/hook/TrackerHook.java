@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.hook;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.HookProperties;
+import org.hisp.dhis.integration.esavi.config.properties.PipelineProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Receives DHIS2 tracker change notifications (event hooks) and builds the
+ * changed cases through {@link #BUILD}, instead of waiting for them to be
+ * polled. A build always fetches the case again: a request for the same
+ * tracked entity in flight may have read it before the change.
+ * <p>
+ * Notifications for the same tracked entity are debounced: the case is
+ * fetched once no notification arrived for {@code debounce}, and at the
+ * latest {@code max-delay} after the first one, so a burst of changes costs a
+ * single fetch. The tracked entities waiting or being fetched are bounded by
+ * {@code capacity}; beyond it notifications are answered with 503 so that
+ * DHIS2 retries them.
+ */
+@Slf4j
+@Component
+public class TrackerHook
+{
+    public static final String BUILD = "direct:hook-build-esavi-case";
+
+    public static final String TOKEN_HEADER = "X-Hook-Token";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final HookProperties hookProperties;
+
+    private final PipelineProperties pipelineProperties;
+
+    private final String esaviProgramStageId;
+
+    private final CaseBuilder caseBuilder;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final AtomicInteger building = new AtomicInteger();
+
+    private final Counter coalesced;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService workers;
+
+    @Autowired
+    public TrackerHook( HookProperties hookProperties, PipelineProperties pipelineProperties,
+        DhisProperties dhisProperties, ProducerTemplate producerTemplate, MeterRegistry meterRegistry )
+    {
+        this( hookProperties, pipelineProperties, dhisProperties.getEsaviProgramStageId(),
+            trackedEntityId -> producerTemplate.send( BUILD,
+                exchange -> exchange.getIn().setHeader( "trackedEntityId", trackedEntityId ) ).getException(),
+            meterRegistry );
+    }
+
+    public TrackerHook( HookProperties hookProperties, PipelineProperties pipelineProperties,
+        String esaviProgramStageId, CaseBuilder caseBuilder, MeterRegistry meterRegistry )
+    {
+        this.hookProperties = hookProperties;
+        this.pipelineProperties = pipelineProperties;
+        this.esaviProgramStageId = esaviProgramStageId;
+        this.caseBuilder = caseBuilder;
+        this.meterRegistry = meterRegistry;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "esavi-hook-debounce" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        this.workers = Executors.newFixedThreadPool( hookProperties.getConcurrency(), runnable -> {
+            Thread thread = new Thread( runnable, "esavi-hook" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        this.coalesced = Counter.builder( "esavi.hook.coalesced" )
+            .description( "Change notifications folded into a fetch already waiting for the same tracked entity" )
+            .register( meterRegistry );
+        Gauge.builder( "esavi.hook.pending", this, TrackerHook::getPending )
+            .description( "Tracked entities waiting to be fetched or being fetched after a change notification" )
+            .register( meterRegistry );
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public boolean isEnabled()
+    {
+        return hookProperties.isEnabled();
+    }
+
+    /**
+     * Accepts a change notification: a tracked entity, an event, or an array
+     * of them, optionally wrapped in {@code instances} or {@code events}.
+     * Answers 202, 401 on a wrong or missing token, 400 on an unreadable body
+     * and 503 when full.
+     */
+    public void receive( Exchange exchange )
+    {
+        Message message = exchange.getMessage();
+        String token = hookProperties.getToken();
+
+        // fails closed, the token is required when the hook is enabled
+        if ( token == null || token.isEmpty() || !MessageDigest.isEqual( token.getBytes( StandardCharsets.UTF_8 ),
+            message.getHeader( TOKEN_HEADER, "", String.class ).getBytes( StandardCharsets.UTF_8 ) ) )
+        {
+            respond( message, 401 );
+            return;
+        }
+
+        List<String> trackedEntityIds;
+
+        try
+        {
+            trackedEntityIds = trackedEntityIds( OBJECT_MAPPER.readTree( message.getBody( byte[].class ) ) );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            count( "invalid" );
+            respond( message, 400 );
+            return;
+        }
+
+        try
+        {
+            trackedEntityIds.forEach( this::notifyChanged );
+            respond( message, 202 );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            count( "rejected" );
+            respond( message, 503 );
+            message.setHeader( "Retry-After", pipelineProperties.getRetryAfterSeconds() );
+        }
+    }
+
+    /**
+     * Schedules a fetch of the tracked entity, or postpones the fetch already
+     * waiting for it.
+     *
+     * @throws RejectedExecutionException if too many tracked entities are
+     *         waiting
+     */
+    public void notifyChanged( String trackedEntityId )
+    {
+        long now = System.nanoTime();
+
+        Pending scheduled = pending.compute( trackedEntityId, ( id, existing ) -> {
+            if ( existing == null )
+            {
+                if ( getPending() >= hookProperties.getCapacity() )
+                {
+                    throw new RejectedExecutionException( "Too many tracked entities waiting to be fetched" );
+                }
+
+                return new Pending( now, now + hookProperties.getDebounce().toNanos() );
+            }
+
+            coalesced.increment();
+            existing.dueAt = Math.min( now + hookProperties.getDebounce().toNanos(),
+                existing.firstSeen + hookProperties.getMaxDelay().toNanos() );
+            return existing;
+        } );
+
+        count( "accepted" );
+
+        long dueAt = scheduled.dueAt;
+        scheduler.schedule( () -> due( trackedEntityId, scheduled, dueAt ), dueAt - now, TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * Tracked entities waiting to be fetched or being fetched.
+     */
+    public int getPending()
+    {
+        return pending.size() + building.get();
+    }
+
+    private void due( String trackedEntityId, Pending scheduled, long dueAt )
+    {
+        // a later notification moved the fetch, its own task takes care of it
+        if ( scheduled.dueAt != dueAt || !pending.remove( trackedEntityId, scheduled ) )
+        {
+            return;
+        }
+
+        building.incrementAndGet();
+        workers.execute( () -> build( trackedEntityId ) );
+    }
+
+    private void build( String trackedEntityId )
+    {
+        try
+        {
+            Throwable failure = caseBuilder.build( trackedEntityId );
+
+            if ( failure != null )
+            {
+                log.warn( "Failed to build tracked entity " + trackedEntityId + " after a change notification",
+                    failure );
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            log.warn( "Failed to build tracked entity " + trackedEntityId + " after a change notification", e );
+        }
+        finally
+        {
+            building.decrementAndGet();
+        }
+    }
+
+    private List<String> trackedEntityIds( JsonNode body )
+    {
+        List<JsonNode> notifications = new ArrayList<>();
+        collect( body, notifications );
+
+        List<String> trackedEntityIds = new ArrayList<>();
+
+        for ( JsonNode notification : notifications )
+        {
+            String programStage = notification.path( "programStage" ).asText( null );
+            String trackedEntityId = notification.hasNonNull( "trackedEntity" )
+                ? notification.get( "trackedEntity" ).asText()
+                : notification.path( "trackedEntityInstance" ).asText( null );
+
+            if ( trackedEntityId == null || (programStage != null && !programStage.equals( esaviProgramStageId )) )
+            {
+                count( "ignored" );
+                continue;
+            }
+
+            trackedEntityIds.add( trackedEntityId );
+        }
+
+        return trackedEntityIds;
+    }
+
+    private static void collect( JsonNode node, List<JsonNode> notifications )
+    {
+        if ( node.isArray() )
+        {
+            node.forEach( element -> collect( element, notifications ) );
+        }
+        else if ( node.has( "instances" ) || node.has( "events" ) )
+        {
+            collect( node.path( "instances" ), notifications );
+            collect( node.path( "events" ), notifications );
+        }
+        else if ( node.isObject() )
+        {
+            notifications.add( node );
+        }
+    }
+
+    private void count( String result )
+    {
+        Counter.builder( "esavi.hook.notifications" )
+            .description( "Change notifications received, by result" )
+            .tag( "result", result )
+            .register( meterRegistry )
+            .increment();
+    }
+
+    private static void respond( Message message, int status )
+    {
+        message.setHeader( Exchange.HTTP_RESPONSE_CODE, status );
+        message.setBody( "" );
+    }
+
+    /**
+     * Builds a case, returning the failure if there was one.
+     */
+    @FunctionalInterface
+    public interface CaseBuilder
+    {
+        Throwable build( String trackedEntityId );
+    }
+
+    private static class Pending
+    {
+        final long firstSeen;
+
+        volatile long dueAt;
+
+        Pending( long firstSeen, long dueAt )
+        {
+            this.firstSeen = firstSeen;
+            this.dueAt = dueAt;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.http;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Conditional GET support for the QuestionnaireResponse endpoint. The
+ * version of a response is derived from the latest {@code updatedAt} of the
+ * tracked entity, its enrollments and events, together with
+ * {@link EsaviProfile#VERSION}. Conditional requests are answered after a
+ * cheap probe of those timestamps, without fetching or converting the case.
+ */
+@Component
+public class ConditionalGet
+{
+    public static final String NOT_MODIFIED = "notModified";
+
+    /**
+     * Exchange property set once the probe answered, even when the tracked
+     * entity was not found.
+     */
+    public static final String PROBED = "probed";
+
+    /**
+     * Exchange property holding the latest {@code updatedAt} of the case,
+     * set by the probe and when tagging a fetched case.
+     */
+    public static final String UPDATED_AT = "updatedAt";
+
+    public static final String PROBE_FIELDS = "trackedEntity,updatedAt,enrollments[updatedAt,events[updatedAt]]";
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    public boolean isConditional( Exchange exchange )
+    {
+        return exchange.getIn().getHeader( IF_NONE_MATCH ) != null
+            || exchange.getIn().getHeader( IF_MODIFIED_SINCE ) != null;
+    }
+
+    /**
+     * Reads the probe response, sets the version headers and flags the
+     * exchange with {@link #NOT_MODIFIED} if the client copy is current.
+     */
+    public void probe( Exchange exchange )
+        throws IOException
+    {
+        Message in = exchange.getIn();
+        JsonNode instances = OBJECT_MAPPER.readTree( in.getBody( byte[].class ) ).path( "instances" );
+        in.setBody( null );
+
+        List<String> timestamps = new ArrayList<>();
+
+        if ( instances.size() > 0 )
+        {
+            instances.get( 0 ).findValues( "updatedAt" ).forEach( value -> timestamps.add( value.asText() ) );
+        }
+
+        Instant updatedAt = latest( timestamps );
+        exchange.setProperty( PROBED, true );
+        exchange.setProperty( UPDATED_AT, updatedAt );
+
+        boolean notModified = setVersionHeaders( in, updatedAt ) && isNotModified( in );
+
+        in.removeHeader( IF_NONE_MATCH );
+        in.removeHeader( IF_MODIFIED_SINCE );
+
+        if ( notModified )
+        {
+            exchange.setProperty( NOT_MODIFIED, true );
+            in.setHeader( Exchange.HTTP_RESPONSE_CODE, 304 );
+        }
+    }
+
+    /**
+     * Sets the version headers of the response from a fetched case.
+     */
+    public void tagResponse( Exchange exchange )
+    {
+        EsaviContext ctx = exchange.getIn().getBody( EsaviContext.class );
+        Instant updatedAt = latest( ctx.getTimestamps() );
+
+        exchange.setProperty( UPDATED_AT, updatedAt );
+        setVersionHeaders( exchange.getIn(), updatedAt );
+    }
+
+    /**
+     * Sets the version headers of a response built from a case last updated
+     * at the given time.
+     */
+    public void tagResponse( Message message, Instant updatedAt )
+    {
+        setVersionHeaders( message, updatedAt );
+    }
+
+    private boolean setVersionHeaders( Message in, Instant updatedAt )
+    {
+        if ( updatedAt == null )
+        {
+            return false;
+        }
+
+        in.setHeader( "ETag", "W/\"" + EsaviProfile.VERSION + "-" + Long.toString( updatedAt.toEpochMilli(), 36 )
+            + "\"" );
+        in.setHeader( "Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format( updatedAt.atOffset(
+            ZoneOffset.UTC ) ) );
+
+        return true;
+    }
+
+    private boolean isNotModified( Message in )
+    {
+        String ifNoneMatch = in.getHeader( IF_NONE_MATCH, String.class );
+
+        // If-Modified-Since is ignored when If-None-Match is present (RFC 7232)
+        if ( ifNoneMatch != null )
+        {
+            String etag = weak( in.getHeader( "ETag", String.class ) );
+
+            for ( String candidate : ifNoneMatch.split( "," ) )
+            {
+                if ( "*".equals( candidate.trim() ) || etag.equals( weak( candidate.trim() ) ) )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        try
+        {
+            Instant ifModifiedSince = Instant.from( DateTimeFormatter.RFC_1123_DATE_TIME.parse(
+                in.getHeader( IF_MODIFIED_SINCE, String.class ) ) );
+            Instant lastModified = Instant.from( DateTimeFormatter.RFC_1123_DATE_TIME.parse(
+                in.getHeader( "Last-Modified", String.class ) ) );
+
+            return !lastModified.isAfter( ifModifiedSince );
+        }
+        catch ( DateTimeParseException e )
+        {
+            return false;
+        }
+    }
+
+    private static String weak( String etag )
+    {
+        return etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+    }
+
+    private static Instant latest( List<String> timestamps )
+    {
+        return timestamps.stream().map( ConditionalGet::parse ).filter( Objects::nonNull ).max( Instant::compareTo )
+            .map( instant -> instant.truncatedTo( ChronoUnit.MILLIS ) ).orElse( null );
+    }
+
+    private static Instant parse( String timestamp )
+    {
+        try
+        {
+            // DHIS2 timestamps carry no offset, they are in server time
+            return LocalDateTime.parse( timestamp ).toInstant( ZoneOffset.UTC );
+        }
+        catch ( DateTimeParseException e )
+        {
+            try
+            {
+                return Instant.parse( timestamp );
+            }
+            catch ( DateTimeParseException ignored )
+            {
+                return null;
+            }
+        }
+    }
+}
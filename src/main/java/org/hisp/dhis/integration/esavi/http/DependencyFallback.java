@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.http;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.esavi.archive.OutputArchive;
+import org.hisp.dhis.integration.esavi.config.properties.PipelineProperties;
+import org.hisp.dhis.integration.esavi.store.CaseStore;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Fallbacks of the circuitBreaker() steps around DHIS2 and the FHIR server.
+ * When DHIS2 cannot be reached the stored, or else the latest archived,
+ * QuestionnaireResponse of the case is served, marked as stale, and without
+ * one the request fails fast with 503. Every fallback is counted by dependency and reason.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DependencyFallback
+{
+    public static final String DHIS2 = "dhis2";
+
+    public static final String FHIR = "fhir";
+
+    /**
+     * Exchange property set when the response was produced by a fallback.
+     */
+    public static final String FALLBACK = "fallback";
+
+    private final OutputArchive outputArchive;
+
+    private final PipelineProperties pipelineProperties;
+
+    private final MeterRegistry meterRegistry;
+
+    private final CaseStore caseStore;
+
+    /**
+     * Answers with the stored or latest archived QuestionnaireResponse of the
+     * case, with a Warning and an Age header. Without a copy, failures
+     * of DHIS2 itself are rethrown and rejected calls answered with 503.
+     */
+    public Processor staleCase()
+    {
+        return exchange -> {
+            Throwable cause = cause( exchange );
+            String reason = record( DHIS2, cause );
+            Message message = exchange.getMessage();
+            String trackedEntityId = message.getHeader( SingleFlight.KEY_HEADER, String.class );
+
+            Optional<CaseStore.Entry> stored = caseStore.get( trackedEntityId );
+            Optional<byte[]> stale = stored.map( CaseStore.Entry::getPayload )
+                .or( () -> outputArchive.read( trackedEntityId, OutputArchive.QUESTIONNAIRE_RESPONSE ) );
+            exchange.setProperty( FALLBACK, true );
+
+            if ( stale.isPresent() )
+            {
+                long age = stored.map( CaseStore.Entry::getVerifiedAt )
+                    .or( () -> outputArchive.archivedAt( trackedEntityId, OutputArchive.QUESTIONNAIRE_RESPONSE ) )
+                    .map( archivedAt -> Duration.between( archivedAt, Instant.now() ).toSeconds() ).orElse( 0L );
+
+                log.warn( "DHIS2 unavailable ({}), serving archived copy of tracked entity {}", reason,
+                    trackedEntityId );
+
+                message.setBody( stale.get() );
+                message.setHeader( Exchange.HTTP_RESPONSE_CODE, 200 );
+                message.setHeader( Exchange.CONTENT_TYPE, EncodingEnum.JSON.getResourceContentTypeNonLegacy() );
+                message.setHeader( "Warning", "110 - \"Response is Stale\"" );
+                message.setHeader( "Age", Math.max( age, 0 ) );
+            }
+            else if ( "error".equals( reason ) && cause instanceof Exception )
+            {
+                throw (Exception) cause;
+            }
+            else
+            {
+                message.setBody( "" );
+                message.setHeader( Exchange.HTTP_RESPONSE_CODE, 503 );
+                message.setHeader( "Retry-After", pipelineProperties.getRetryAfterSeconds() );
+            }
+        };
+    }
+
+    /**
+     * Answers the validation with a transient warning instead of failing the
+     * request.
+     */
+    public Processor skipValidation()
+    {
+        return exchange -> {
+            String reason = record( FHIR, cause( exchange ) );
+
+            OperationOutcome operationOutcome = new OperationOutcome();
+            operationOutcome.addIssue().setSeverity( OperationOutcome.IssueSeverity.WARNING )
+                .setCode( OperationOutcome.IssueType.TRANSIENT )
+                .setDiagnostics( "FHIR server unavailable (" + reason + "), QuestionnaireResponse not validated" );
+
+            exchange.getMessage().setBody( operationOutcome );
+        };
+    }
+
+    /**
+     * Only records the failure, the request continues as an unconditional
+     * one.
+     */
+    public Processor skipProbe()
+    {
+        return exchange -> record( DHIS2, cause( exchange ) );
+    }
+
+    private String record( String dependency, Throwable cause )
+    {
+        String reason = reason( cause );
+
+        Counter.builder( "esavi.dependency.fallback" )
+            .description( "Calls answered by a fallback, by dependency and reason" )
+            .tag( "dependency", dependency )
+            .tag( "reason", reason )
+            .register( meterRegistry )
+            .increment();
+
+        return reason;
+    }
+
+    private static Throwable cause( Exchange exchange )
+    {
+        return exchange.getProperty( Exchange.EXCEPTION_CAUGHT, Throwable.class );
+    }
+
+    private static String reason( Throwable cause )
+    {
+        if ( cause instanceof CallNotPermittedException )
+        {
+            return "open";
+        }
+        else if ( cause instanceof BulkheadFullException )
+        {
+            return "bulkhead";
+        }
+
+        // read timeouts of the HTTP clients, wrapped by the DHIS2 and FHIR clients
+        for ( Throwable e = cause; e != null; e = e.getCause() )
+        {
+            if ( e instanceof SocketTimeoutException || e instanceof TimeoutException )
+            {
+                return "timeout";
+            }
+        }
+
+        return "error";
+    }
+}
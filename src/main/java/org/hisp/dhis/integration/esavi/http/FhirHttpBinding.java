@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.Value;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.component.servlet.ServletRestHttpBinding;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+/**
+ * Servlet binding of the REST endpoints, writing FHIR responses in the
+ * representation negotiated by {@link #negotiate}: {@code _format} or else
+ * {@code Accept} select JSON or XML, {@code _pretty=true} pretty prints and
+ * {@code Accept-Encoding} selects gzip or deflate. Compact JSON produced by
+ * the route (a built, stored or stale case) is written as is; any other
+ * representation is encoded from the resource straight to the servlet
+ * output stream. Other responses are written as by the default servlet
+ * binding.
+ */
+@Component( FhirHttpBinding.NAME )
+public class FhirHttpBinding extends ServletRestHttpBinding
+{
+    public static final String NAME = "fhirHttpBinding";
+
+    /**
+     * Exchange property with the {@link Format} negotiated for the request.
+     */
+    public static final String FORMAT = "fhirResponseFormat";
+
+    /**
+     * Exchange property with the resource of the response, encoded in the
+     * negotiated format unless the body already is compact JSON.
+     */
+    public static final String RESOURCE = "fhirResponseResource";
+
+    /**
+     * Responses smaller than this are not compressed, they fit in a packet
+     * or two anyway.
+     */
+    public static final int MIN_COMPRESSED_SIZE = 1024;
+
+    private static final String FHIR_JSON = EncodingEnum.JSON.getResourceContentTypeNonLegacy();
+
+    private static final String FHIR_XML = EncodingEnum.XML.getResourceContentTypeNonLegacy();
+
+    /**
+     * Accepted media types and {@code _format} values, in order of
+     * preference, with the content type they are answered with.
+     */
+    private static final Map<String, String> MEDIA_TYPES = new LinkedHashMap<>();
+
+    static
+    {
+        MEDIA_TYPES.put( FHIR_JSON, FHIR_JSON );
+        MEDIA_TYPES.put( "application/json+fhir", FHIR_JSON );
+        MEDIA_TYPES.put( "application/json", "application/json" );
+        MEDIA_TYPES.put( "json", FHIR_JSON );
+        MEDIA_TYPES.put( FHIR_XML, FHIR_XML );
+        MEDIA_TYPES.put( "application/xml+fhir", FHIR_XML );
+        MEDIA_TYPES.put( "application/xml", "application/xml" );
+        MEDIA_TYPES.put( "text/xml", "text/xml" );
+        MEDIA_TYPES.put( "xml", FHIR_XML );
+        MEDIA_TYPES.put( "application/*", FHIR_JSON );
+        MEDIA_TYPES.put( "*/*", FHIR_JSON );
+    }
+
+    private final FhirJson fhirJson;
+
+    public FhirHttpBinding( FhirJson fhirJson )
+    {
+        this.fhirJson = fhirJson;
+    }
+
+    /**
+     * Negotiates the response format of a request before the case is built,
+     * as {@link #FORMAT} property. An unsupported {@code _format} is answered
+     * with 406 and leaves the property unset.
+     */
+    public static void negotiate( Exchange exchange )
+    {
+        Message message = exchange.getIn();
+        Optional<String> mediaType = negotiateMediaType( message.getHeader( "_format", String.class ),
+            message.getHeader( "Accept", String.class ) );
+
+        if ( mediaType.isEmpty() )
+        {
+            message.setBody( "" );
+            message.setHeader( Exchange.HTTP_RESPONSE_CODE, HttpServletResponse.SC_NOT_ACCEPTABLE );
+            return;
+        }
+
+        exchange.setProperty( FORMAT, new Format( mediaType.get(),
+            "true".equalsIgnoreCase( message.getHeader( "_pretty", String.class ) ) ) );
+    }
+
+    @Override
+    public void doWriteResponse( Message message, HttpServletResponse response, Exchange exchange )
+        throws IOException
+    {
+        Format format = exchange.getProperty( FORMAT, Format.class );
+
+        if ( format == null || !isFhirResource( message ) )
+        {
+            super.doWriteResponse( message, response, exchange );
+            return;
+        }
+
+        Object body = message.getBody();
+        IBaseResource resource = body instanceof IBaseResource ? (IBaseResource) body
+            : exchange.getProperty( RESOURCE, IBaseResource.class );
+        byte[] payload = body instanceof IBaseResource ? null : message.getBody( byte[].class );
+        boolean asProduced = payload != null && format.isCompactJson();
+        // the size of a response encoded below is not known up front, cases are well above the minimum
+        Optional<String> contentEncoding = payload != null && payload.length < MIN_COMPRESSED_SIZE ? Optional.empty()
+            : negotiateContentEncoding( message.getHeader( "Accept-Encoding", String.class ) );
+
+        if ( !asProduced && resource == null )
+        {
+            // stored and stale cases are only kept as compact JSON
+            resource = fhirJson.parser( EncodingEnum.JSON, false ).parseResource(
+                new InputStreamReader( new ByteArrayInputStream( payload ), StandardCharsets.UTF_8 ) );
+        }
+
+        // status and headers as usual, the body is written below
+        message.setBody( null );
+        message.setHeader( Exchange.CONTENT_TYPE, format.getMediaType() + ";charset=utf-8" );
+        super.doWriteResponse( message, response, exchange );
+
+        response.setHeader( "Vary", "Accept, Accept-Encoding" );
+        contentEncoding.ifPresent( value -> response.setHeader( "Content-Encoding", value ) );
+
+        if ( asProduced && contentEncoding.isEmpty() )
+        {
+            response.setContentLength( payload.length );
+        }
+
+        try ( OutputStream out = encode( response.getOutputStream(), contentEncoding.orElse( "identity" ) ) )
+        {
+            if ( asProduced )
+            {
+                out.write( payload );
+            }
+            else
+            {
+                fhirJson.encode( resource, format.getEncoding(), format.isPrettyPrint(), out );
+            }
+        }
+    }
+
+    /**
+     * The content type of the response, from {@code _format} when given and
+     * else from the {@code Accept} header, FHIR JSON by default. Empty when
+     * {@code _format} names an unsupported format.
+     */
+    public static Optional<String> negotiateMediaType( String format, String accept )
+    {
+        if ( format != null && !format.isBlank() )
+        {
+            // an unencoded + in the query string is decoded to a space
+            String value = format.trim().replace( ' ', '+' ).toLowerCase( Locale.ROOT );
+
+            return Optional.ofNullable( MEDIA_TYPES.get( value.split( ";" )[0].trim() ) );
+        }
+
+        String best = FHIR_JSON;
+        double bestQuality = 0;
+
+        for ( String range : accept == null ? new String[0] : accept.split( "," ) )
+        {
+            String[] parts = range.split( ";" );
+            String mediaType = MEDIA_TYPES.get( parts[0].trim().toLowerCase( Locale.ROOT ) );
+            double quality = quality( parts );
+
+            if ( mediaType != null && quality > bestQuality )
+            {
+                best = mediaType;
+                bestQuality = quality;
+            }
+        }
+
+        return Optional.of( best );
+    }
+
+    /**
+     * gzip or deflate, whichever {@code Accept-Encoding} prefers, gzip on a
+     * tie. Empty when neither is accepted.
+     */
+    public static Optional<String> negotiateContentEncoding( String acceptEncoding )
+    {
+        // -1 until listed, then falls back to the quality of *
+        double gzip = -1;
+        double deflate = -1;
+        double any = 0;
+
+        for ( String coding : acceptEncoding == null ? new String[0] : acceptEncoding.split( "," ) )
+        {
+            String[] parts = coding.split( ";" );
+            double quality = quality( parts );
+
+            switch ( parts[0].trim().toLowerCase( Locale.ROOT ) )
+            {
+            case "gzip":
+            case "x-gzip":
+                gzip = quality;
+                break;
+            case "deflate":
+                deflate = quality;
+                break;
+            case "*":
+                any = quality;
+                break;
+            default:
+                break;
+            }
+        }
+
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+
+        if ( gzip > 0 && gzip >= deflate )
+        {
+            return Optional.of( "gzip" );
+        }
+
+        return deflate > 0 ? Optional.of( "deflate" ) : Optional.empty();
+    }
+
+    private static boolean isFhirResource( Message message )
+    {
+        Integer status = message.getHeader( Exchange.HTTP_RESPONSE_CODE, Integer.class );
+        String contentType = message.getHeader( Exchange.CONTENT_TYPE, String.class );
+
+        return (status == null || status == HttpServletResponse.SC_OK) && (message.getBody() instanceof IBaseResource
+            || message.getBody() != null && contentType != null && contentType.startsWith( FHIR_JSON ));
+    }
+
+    private static double quality( String[] parts )
+    {
+        for ( int i = 1; i < parts.length; i++ )
+        {
+            String parameter = parts[i].trim();
+
+            if ( parameter.startsWith( "q=" ) )
+            {
+                try
+                {
+                    return Double.parseDouble( parameter.substring( 2 ).trim() );
+                }
+                catch ( NumberFormatException e )
+                {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    private static OutputStream encode( OutputStream out, String contentEncoding )
+        throws IOException
+    {
+        switch ( contentEncoding )
+        {
+        case "gzip":
+            return new GZIPOutputStream( out, 8192 );
+        case "deflate":
+            return new DeflaterOutputStream( out );
+        default:
+            return out;
+        }
+    }
+
+    /**
+     * Representation of a FHIR response.
+     */
+    @Value
+    public static class Format
+    {
+        /**
+         * Content type of the response.
+         */
+        String mediaType;
+
+        boolean prettyPrint;
+
+        public EncodingEnum getEncoding()
+        {
+            return mediaType.endsWith( "xml" ) ? EncodingEnum.XML : EncodingEnum.JSON;
+        }
+
+        /**
+         * Whether the response is the compact JSON produced by the routes.
+         */
+        public boolean isCompactJson()
+        {
+            return getEncoding() == EncodingEnum.JSON && !prettyPrint;
+        }
+    }
+}
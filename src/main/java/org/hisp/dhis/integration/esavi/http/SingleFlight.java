@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.http;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Coalesces concurrent requests for the same tracked entity. The first
+ * request (the leader) builds the case, requests arriving while it is in
+ * flight wait for and share its result instead of fetching, converting and
+ * validating the case again. Nothing is cached once the leader completes.
+ */
+@Slf4j
+@Component
+public class SingleFlight
+{
+    public static final String KEY_HEADER = "trackedEntityId";
+
+    // response headers shared with the waiting requests
+    private static final List<String> SHARED_HEADERS = List.of( Exchange.HTTP_RESPONSE_CODE, Exchange.CONTENT_TYPE,
+        "ETag", "Last-Modified", "Warning", "Age", "Retry-After" );
+
+    private final ConcurrentMap<String, CompletableFuture<Exchange>> inFlight = new ConcurrentHashMap<>();
+
+    private final ProducerTemplate producerTemplate;
+
+    private final Counter coalesced;
+
+    public SingleFlight( ProducerTemplate producerTemplate, MeterRegistry meterRegistry )
+    {
+        this.producerTemplate = producerTemplate;
+        this.coalesced = Counter.builder( "esavi.singleflight.coalesced" )
+            .description( "Requests answered with the result of a concurrent request for the same tracked entity" )
+            .register( meterRegistry );
+    }
+
+    /**
+     * @param uri endpoint building the case, called with a copy of the
+     *        leader exchange
+     */
+    public AsyncProcessor to( String uri )
+    {
+        return new AsyncProcessorSupport()
+        {
+            @Override
+            public boolean process( Exchange exchange, AsyncCallback callback )
+            {
+                return SingleFlight.this.process( uri, exchange, callback );
+            }
+        };
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.size();
+    }
+
+    private boolean process( String uri, Exchange exchange, AsyncCallback callback )
+    {
+        String key = exchange.getIn().getHeader( KEY_HEADER, String.class );
+        CompletableFuture<Exchange> pending = new CompletableFuture<>();
+        CompletableFuture<Exchange> leader = key == null ? null : inFlight.putIfAbsent( key, pending );
+
+        if ( leader != null )
+        {
+            coalesced.increment();
+            log.debug( "Joining in-flight request for tracked entity {}", key );
+
+            leader.whenComplete( ( result, e ) -> {
+                share( result, exchange );
+                callback.done( false );
+            } );
+
+            return false;
+        }
+
+        Exchange result = null;
+
+        try
+        {
+            result = producerTemplate.send( uri, exchange.copy() );
+        }
+        finally
+        {
+            if ( key != null )
+            {
+                inFlight.remove( key, pending );
+            }
+
+            pending.complete( result );
+        }
+
+        share( result, exchange );
+        callback.done( true );
+
+        return true;
+    }
+
+    private static void share( Exchange result, Exchange exchange )
+    {
+        if ( result == null )
+        {
+            exchange.setException( new IllegalStateException( "In-flight request did not complete" ) );
+            return;
+        }
+
+        if ( result.getException() != null )
+        {
+            exchange.setException( result.getException() );
+            return;
+        }
+
+        Message from = result.getMessage();
+        Message to = exchange.getMessage();
+
+        to.setBody( from.getBody() );
+        // each request is written in the format it negotiated, from the shared resource
+        exchange.setProperty( FhirHttpBinding.RESOURCE, result.getProperty( FhirHttpBinding.RESOURCE ) );
+
+        for ( String header : SHARED_HEADERS )
+        {
+            if ( from.getHeader( header ) != null )
+            {
+                to.setHeader( header, from.getHeader( header ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.spi.CamelEvent;
+import org.apache.camel.spi.CamelEvent.ExchangeCompletedEvent;
+import org.apache.camel.spi.CamelEvent.ExchangeFailedEvent;
+import org.apache.camel.spi.CamelEvent.ExchangeSentEvent;
+import org.apache.camel.support.EventNotifierSupport;
+import org.apache.camel.support.ExchangeHelper;
+import org.hisp.dhis.integration.esavi.tracing.RequestTracing;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Latency of the stages of a case, recorded as the {@value #STAGE_TIMER}
+ * timer tagged with the stage, the id of the route it ran in and its outcome
+ * (success or failure). Calls to the DHIS2 and FHIR endpoints are timed from
+ * Camel's sent events; in-process stages are timed between {@link #start}
+ * and {@link #stop}, and stages still open when the exchange fails are
+ * recorded as failures. Payload sizes are recorded as
+ * {@value #PAYLOAD_SIZE}.
+ */
+@Component
+public class StageMetrics extends EventNotifierSupport
+{
+    public static final String STAGE_TIMER = "esavi.stage";
+
+    public static final String PAYLOAD_SIZE = "esavi.payload.size";
+
+    public static final String DHIS2_FETCH = "dhis2-fetch";
+
+    public static final String UNMARSHAL = "unmarshal";
+
+    public static final String CONVERT = "convert";
+
+    public static final String MARSHAL = "marshal";
+
+    public static final String VALIDATE = "validate";
+
+    private static final String SAMPLES = "esaviStageSamples";
+
+    private final MeterRegistry meterRegistry;
+
+    public StageMetrics( MeterRegistry meterRegistry )
+    {
+        this.meterRegistry = meterRegistry;
+
+        setIgnoreCamelContextEvents( true );
+        setIgnoreRouteEvents( true );
+        setIgnoreServiceEvents( true );
+        setIgnoreStepEvents( true );
+        setIgnoreExchangeCreatedEvent( true );
+        setIgnoreExchangeRedeliveryEvents( true );
+        setIgnoreExchangeSendingEvents( true );
+        setIgnoreExchangeAsyncProcessingStartedEvents( true );
+    }
+
+    public Processor start( String stage )
+    {
+        return exchange -> samples( exchange ).put( stage, new Sample( routeId( exchange ), System.nanoTime() ) );
+    }
+
+    public Processor stop( String stage )
+    {
+        return exchange -> {
+            Sample sample = samples( exchange ).remove( stage );
+
+            if ( sample != null )
+            {
+                long nanos = System.nanoTime() - sample.startNanos;
+                record( stage, sample.routeId, "success", nanos );
+                RequestTracing.timing( exchange, stage, nanos );
+            }
+        };
+    }
+
+    /**
+     * Records the size of the message body, which must be available as bytes.
+     */
+    public Processor size( String payload )
+    {
+        return exchange -> {
+            byte[] body = exchange.getMessage().getBody( byte[].class );
+
+            if ( body != null )
+            {
+                DistributionSummary.builder( PAYLOAD_SIZE )
+                    .baseUnit( "bytes" )
+                    .tag( "payload", payload )
+                    .tag( "routeId", routeId( exchange ) )
+                    .register( meterRegistry )
+                    .record( body.length );
+            }
+        };
+    }
+
+    @Override
+    public void notify( CamelEvent event )
+    {
+        if ( event instanceof ExchangeSentEvent )
+        {
+            ExchangeSentEvent sent = (ExchangeSentEvent) event;
+            String stage = stage( sent.getEndpoint().getEndpointUri() );
+
+            if ( stage != null )
+            {
+                Exchange exchange = sent.getExchange();
+                long nanos = sent.getTimeTaken() * 1_000_000;
+                record( stage, routeId( exchange ), exchange.isFailed() ? "failure" : "success", nanos );
+                RequestTracing.timing( exchange, stage, nanos );
+            }
+        }
+        else if ( event instanceof ExchangeCompletedEvent || event instanceof ExchangeFailedEvent )
+        {
+            Exchange exchange = ((CamelEvent.ExchangeEvent) event).getExchange();
+            @SuppressWarnings( "unchecked" )
+            Map<String, Sample> samples = exchange.getProperty( SAMPLES, Map.class );
+
+            if ( samples != null )
+            {
+                long now = System.nanoTime();
+                samples.forEach(
+                    ( stage, sample ) -> record( stage, sample.routeId, "failure", now - sample.startNanos ) );
+                samples.clear();
+            }
+        }
+    }
+
+    private void record( String stage, String routeId, String outcome, long nanos )
+    {
+        Timer.builder( STAGE_TIMER )
+            .description( "Time spent in a stage of a case" )
+            .tag( "stage", stage )
+            .tag( "routeId", routeId )
+            .tag( "outcome", outcome )
+            .register( meterRegistry )
+            .record( nanos, TimeUnit.NANOSECONDS );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Map<String, Sample> samples( Exchange exchange )
+    {
+        Map<String, Sample> samples = exchange.getProperty( SAMPLES, Map.class );
+
+        if ( samples == null )
+        {
+            samples = new ConcurrentHashMap<>();
+            exchange.setProperty( SAMPLES, samples );
+        }
+
+        return samples;
+    }
+
+    private static String stage( String endpointUri )
+    {
+        if ( endpointUri.startsWith( "dhis2:" ) )
+        {
+            return DHIS2_FETCH;
+        }
+        else if ( endpointUri.startsWith( "fhir:" ) )
+        {
+            return VALIDATE;
+        }
+
+        return null;
+    }
+
+    private static String routeId( Exchange exchange )
+    {
+        String routeId = ExchangeHelper.getAtRouteId( exchange );
+
+        return routeId == null ? "unknown" : routeId;
+    }
+
+    private static class Sample
+    {
+        final String routeId;
+
+        final long startNanos;
+
+        Sample( String routeId, long startNanos )
+        {
+            this.routeId = routeId;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.outbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Stable hash of a FHIR JSON resource: object members are hashed in name
+ * order, whitespace is ignored and metadata that changes without the content
+ * changing (server assigned versions and timestamps, the generated
+ * narrative) is left out. Two conversions of a case that map to the same
+ * answers have the same hash.
+ */
+public final class CanonicalHash
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final Set<String> VOLATILE_META = Set.of( "lastUpdated", "versionId", "source" );
+
+    private CanonicalHash()
+    {
+    }
+
+    /**
+     * @return the hex encoded SHA-256 of the canonical form of the resource
+     */
+    public static String of( byte[] json )
+        throws IOException
+    {
+        MessageDigest digest = sha256();
+
+        try ( JsonGenerator generator = OBJECT_MAPPER.getFactory()
+            .createGenerator( new DigestOutputStream( OutputStream.nullOutputStream(), digest ) ) )
+        {
+            write( OBJECT_MAPPER.readTree( json ), null, generator );
+        }
+
+        StringBuilder hex = new StringBuilder();
+
+        for ( byte b : digest.digest() )
+        {
+            hex.append( Character.forDigit( (b >> 4) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+
+        return hex.toString();
+    }
+
+    private static void write( JsonNode node, String name, JsonGenerator generator )
+        throws IOException
+    {
+        if ( node.isObject() )
+        {
+            List<String> names = new ArrayList<>();
+            node.fieldNames().forEachRemaining( names::add );
+            Collections.sort( names );
+
+            generator.writeStartObject();
+
+            for ( String field : names )
+            {
+                if ( isVolatile( node, name, field ) )
+                {
+                    continue;
+                }
+
+                generator.writeFieldName( field );
+                write( node.get( field ), field, generator );
+            }
+
+            generator.writeEndObject();
+        }
+        else if ( node.isArray() )
+        {
+            generator.writeStartArray();
+
+            for ( Iterator<JsonNode> elements = node.elements(); elements.hasNext(); )
+            {
+                write( elements.next(), name, generator );
+            }
+
+            generator.writeEndArray();
+        }
+        else
+        {
+            generator.writeTree( node );
+        }
+    }
+
+    private static boolean isVolatile( JsonNode object, String name, String field )
+    {
+        if ( "meta".equals( name ) )
+        {
+            return VOLATILE_META.contains( field );
+        }
+
+        // the narrative of a resource, not the text of a questionnaire item
+        if ( "text".equals( field ) )
+        {
+            return object.get( field ).has( "div" );
+        }
+
+        return "timestamp".equals( field ) && "Bundle".equals( object.path( "resourceType" ).asText() );
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
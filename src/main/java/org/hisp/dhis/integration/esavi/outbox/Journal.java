@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only journal of records kept in memory-mapped segment files.
+ * <p>
+ * Each record is written as its length, a CRC32 of the payload and the
+ * payload itself. A length of zero marks the end of the written data and a
+ * length of -1 the end of a segment whose remaining space was too small for
+ * the next record. Records are handed out by {@link #poll(int)} in append
+ * order; the position up to which they have been dealt with is persisted by
+ * {@link #commit(Position)}, so records polled but not committed are handed
+ * out again after a restart (at-least-once), or right away after
+ * {@link #rewind()}. Segments entirely before the committed position are
+ * deleted.
+ * <p>
+ * Appended records are in the page cache once {@link #append(byte[])}
+ * returns, so they survive a crash of the process. They only reach the
+ * storage device when the operating system writes the pages back or on
+ * {@link #force()}; a crash of the host can lose records not forced yet.
+ * <p>
+ * On opening, each segment is scanned up to the first empty or corrupt
+ * record, which drops a record torn by a crash while it was being appended.
+ */
+@Slf4j
+public class Journal implements Closeable
+{
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private static final int END_OF_SEGMENT = -1;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+
+    private final FileChannel checkpointChannel;
+
+    private final MappedByteBuffer checkpoint;
+
+    private Position writePosition;
+
+    private Position readPosition;
+
+    private Position committedPosition;
+
+    private long appended;
+
+    private long committed;
+
+    public Journal( Path directory, long segmentSize )
+        throws IOException
+    {
+        if ( segmentSize <= HEADER_SIZE || segmentSize > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Invalid journal segment size: " + segmentSize );
+        }
+
+        this.directory = directory;
+        this.segmentSize = (int) segmentSize;
+
+        Files.createDirectories( directory );
+
+        checkpointChannel = FileChannel.open( directory.resolve( CHECKPOINT ), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE );
+        checkpoint = checkpointChannel.map( FileChannel.MapMode.READ_WRITE, 0, Long.BYTES );
+
+        for ( int segment : existingSegments() )
+        {
+            segments.put( segment, map( segment ) );
+        }
+
+        long checkpointed = checkpoint.getLong( 0 );
+        committedPosition = new Position( (int) ( checkpointed >>> 32 ), (int) checkpointed );
+
+        if ( segments.isEmpty() )
+        {
+            committedPosition = new Position( Math.max( committedPosition.getSegment(), 1 ), 0 );
+            segments.put( committedPosition.getSegment(), map( committedPosition.getSegment() ) );
+        }
+        else if ( committedPosition.getSegment() < segments.firstKey() )
+        {
+            committedPosition = new Position( segments.firstKey(), 0 );
+        }
+
+        readPosition = committedPosition;
+        writePosition = recover();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @throws IllegalArgumentException if the payload does not fit in a
+     *         segment
+     */
+    public synchronized void append( byte[] payload )
+        throws IOException
+    {
+        int recordSize = HEADER_SIZE + payload.length;
+
+        if ( recordSize > segmentSize )
+        {
+            throw new IllegalArgumentException(
+                "Record of " + payload.length + " bytes does not fit in a journal segment of " + segmentSize
+                    + " bytes" );
+        }
+
+        MappedByteBuffer buffer = segments.get( writePosition.getSegment() );
+        int offset = writePosition.getOffset();
+
+        if ( offset + recordSize > segmentSize )
+        {
+            if ( offset + Integer.BYTES <= segmentSize )
+            {
+                buffer.putInt( offset, END_OF_SEGMENT );
+            }
+
+            int next = writePosition.getSegment() + 1;
+            buffer = map( next );
+            segments.put( next, buffer );
+            writePosition = new Position( next, 0 );
+            offset = 0;
+        }
+
+        // the payload and checksum go first, the length makes the record visible
+        ByteBuffer record = buffer.duplicate();
+        record.position( offset + Integer.BYTES );
+        record.putInt( crc( payload ) );
+        record.put( payload );
+        buffer.putInt( offset, payload.length );
+
+        writePosition = new Position( writePosition.getSegment(), offset + recordSize );
+        appended++;
+    }
+
+    /**
+     * Hands out up to {@code max} records following the ones handed out
+     * before.
+     */
+    public synchronized List<Record> poll( int max )
+    {
+        List<Record> records = new ArrayList<>();
+
+        while ( records.size() < max && readPosition.compareTo( writePosition ) < 0 )
+        {
+            MappedByteBuffer buffer = segments.get( readPosition.getSegment() );
+            int offset = readPosition.getOffset();
+            int length = offset + Integer.BYTES <= segmentSize ? buffer.getInt( offset ) : END_OF_SEGMENT;
+
+            if ( length == END_OF_SEGMENT || length == 0 )
+            {
+                readPosition = new Position( readPosition.getSegment() + 1, 0 );
+                continue;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.duplicate().position( offset + HEADER_SIZE ).get( payload );
+
+            readPosition = new Position( readPosition.getSegment(), offset + HEADER_SIZE + length );
+            records.add( new Record( readPosition, payload ) );
+        }
+
+        return records;
+    }
+
+    /**
+     * Whether records were appended after the last ones handed out.
+     */
+    public synchronized boolean hasUnpolled()
+    {
+        return readPosition.compareTo( writePosition ) < 0;
+    }
+
+    /**
+     * Hands out the records polled but not committed again, starting with
+     * the first one after the committed position.
+     */
+    public synchronized void rewind()
+    {
+        readPosition = committedPosition;
+    }
+
+    /**
+     * Marks every record up to the given position as dealt with.
+     */
+    public synchronized void commit( Position position )
+        throws IOException
+    {
+        if ( position.compareTo( committedPosition ) <= 0 )
+        {
+            return;
+        }
+
+        committed += count( committedPosition, position );
+        committedPosition = position;
+
+        // a single write, so the checkpoint is never half updated
+        checkpoint.putLong( 0, (long) position.getSegment() << 32 | position.getOffset() );
+        checkpoint.force();
+
+        while ( segments.firstKey() < position.getSegment() )
+        {
+            int segment = segments.pollFirstEntry().getKey();
+            Files.deleteIfExists( segmentFile( segment ) );
+        }
+    }
+
+    /**
+     * Records appended but not committed yet.
+     */
+    public synchronized long depth()
+    {
+        return appended - committed;
+    }
+
+    /**
+     * Forces the appended records to the storage device.
+     */
+    public synchronized void force()
+    {
+        segments.lastEntry().getValue().force();
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        for ( MappedByteBuffer buffer : segments.values() )
+        {
+            buffer.force();
+        }
+
+        checkpoint.force();
+        checkpointChannel.close();
+    }
+
+    /**
+     * Finds the end of the written data and counts the records not
+     * committed yet.
+     */
+    private Position recover()
+    {
+        Position end = committedPosition;
+        long pending = 0;
+
+        for ( Map.Entry<Integer, MappedByteBuffer> entry : segments.tailMap( committedPosition.getSegment() )
+            .entrySet() )
+        {
+            int segment = entry.getKey();
+            MappedByteBuffer buffer = entry.getValue();
+            int offset = segment == committedPosition.getSegment() ? committedPosition.getOffset() : 0;
+
+            while ( offset + HEADER_SIZE <= segmentSize )
+            {
+                int length = buffer.getInt( offset );
+
+                if ( length == END_OF_SEGMENT || length <= 0 || offset + HEADER_SIZE + length > segmentSize )
+                {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                buffer.duplicate().position( offset + HEADER_SIZE ).get( payload );
+
+                if ( crc( payload ) != buffer.getInt( offset + Integer.BYTES ) )
+                {
+                    log.warn( "Discarding corrupt journal record in segment {} at offset {}", segment, offset );
+                    buffer.putInt( offset, 0 );
+                    break;
+                }
+
+                offset += HEADER_SIZE + length;
+                pending++;
+            }
+
+            end = new Position( segment, offset );
+        }
+
+        appended = pending;
+        return end;
+    }
+
+    private long count( Position from, Position to )
+    {
+        long count = 0;
+        Position position = from;
+
+        while ( position.compareTo( to ) < 0 )
+        {
+            MappedByteBuffer buffer = segments.get( position.getSegment() );
+            int offset = position.getOffset();
+            int length = offset + Integer.BYTES <= segmentSize ? buffer.getInt( offset ) : END_OF_SEGMENT;
+
+            if ( length == END_OF_SEGMENT || length == 0 )
+            {
+                position = new Position( position.getSegment() + 1, 0 );
+                continue;
+            }
+
+            position = new Position( position.getSegment(), offset + HEADER_SIZE + length );
+            count++;
+        }
+
+        return count;
+    }
+
+    private MappedByteBuffer map( int segment )
+        throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( segmentFile( segment ), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            // the mapping stays valid after the channel is closed
+            return channel.map( FileChannel.MapMode.READ_WRITE, 0, segmentSize );
+        }
+    }
+
+    private List<Integer> existingSegments()
+        throws IOException
+    {
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            return files.map( file -> file.getFileName().toString() )
+                .filter( name -> name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) )
+                .map( name -> Integer.parseInt(
+                    name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) ) )
+                .sorted()
+                .collect( Collectors.toList() );
+        }
+    }
+
+    private Path segmentFile( int segment )
+    {
+        return directory.resolve( String.format( "%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX ) );
+    }
+
+    private static int crc( byte[] payload )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        return (int) crc.getValue();
+    }
+
+    @Value
+    public static class Position implements Comparable<Position>
+    {
+        int segment;
+
+        int offset;
+
+        @Override
+        public int compareTo( Position other )
+        {
+            int bySegment = Integer.compare( segment, other.segment );
+            return bySegment != 0 ? bySegment : Integer.compare( offset, other.offset );
+        }
+    }
+
+    @Value
+    public static class Record
+    {
+        /**
+         * Position right after this record, to be passed to
+         * {@link #commit(Position)} once the record has been dealt with.
+         */
+        Position next;
+
+        byte[] payload;
+    }
+}
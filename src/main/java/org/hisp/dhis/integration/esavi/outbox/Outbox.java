@@ -0,0 +1,613 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.Processor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.hisp.dhis.integration.esavi.config.properties.OutboxProperties;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Durable queue between the conversion and the FHIR server. Converted
+ * bundles are appended to a {@link Journal} on disk and delivered by a
+ * background dispatcher, so a slow or unavailable FHIR server never holds up
+ * the conversion and no submission is lost on a restart. Submissions are not
+ * forced to the storage device one by one: they survive a crash of the
+ * process, but a crash of the host can lose the last ones (see
+ * {@link Journal}).
+ * <p>
+ * Delivery is at-least-once: records are committed only after the FHIR
+ * server accepted them, including every entry of a batch, which the server
+ * answers with 200 even when entries fail (the bundle entries are updates,
+ * so a repeated delivery is harmless). Failures are retried with exponential
+ * backoff; rejected bundles and bundles that still fail after the last
+ * attempt are moved to the dead letter journal. A batch that could not be
+ * dealt with, for instance because the dead letter journal could not be
+ * written, is delivered again. While more records than the
+ * high watermark are waiting, {@link #awaitCapacity()} holds back fetching
+ * from DHIS2.
+ * <p>
+ * Many changes in DHIS2 do not touch anything the profile maps, so the
+ * {@link CanonicalHash} of the last bundle submitted for each tracked entity
+ * is kept, and a bundle with the same hash is not submitted again.
+ */
+@Slf4j
+@Component
+public class Outbox
+{
+    public static final String DEAD_LETTER = "dead-letter";
+
+    private static final String HASHES = "hashes.mv";
+
+    private final OutboxProperties outboxProperties;
+
+    private final FhirSink fhirSink;
+
+    private final Counter delivered;
+
+    private final Counter retried;
+
+    private final Counter deadLettered;
+
+    private final Counter queued;
+
+    private final Counter suppressed;
+
+    private final Object signal = new Object();
+
+    private final Object capacity = new Object();
+
+    private Journal journal;
+
+    private Journal deadLetter;
+
+    private MVStore hashStore;
+
+    private MVMap<String, String> hashes;
+
+    private ExecutorService executorService;
+
+    private Thread dispatcher;
+
+    private volatile boolean running;
+
+    @Autowired
+    public Outbox( OutboxProperties outboxProperties, IGenericClient fhirClient, MeterRegistry meterRegistry )
+    {
+        this( outboxProperties, ( trackedEntityId, bundle ) -> checkResponse( fhirClient.getFhirContext(),
+            fhirClient.transaction().withBundle( new String( bundle, StandardCharsets.UTF_8 ) ).execute() ),
+            meterRegistry );
+    }
+
+    public Outbox( OutboxProperties outboxProperties, FhirSink fhirSink, MeterRegistry meterRegistry )
+    {
+        this.outboxProperties = outboxProperties;
+        this.fhirSink = fhirSink;
+
+        this.delivered = Counter.builder( "esavi.outbox.delivered" )
+            .description( "Bundles accepted by the FHIR server" )
+            .register( meterRegistry );
+        this.retried = Counter.builder( "esavi.outbox.retried" )
+            .description( "Failed bundle deliveries that are retried" )
+            .register( meterRegistry );
+        this.deadLettered = Counter.builder( "esavi.outbox.dead-lettered" )
+            .description( "Bundles moved to the dead letter journal" )
+            .register( meterRegistry );
+        this.queued = Counter.builder( "esavi.outbox.submissions" )
+            .description( "Bundles submitted to the outbox, by result" )
+            .tag( "result", "queued" )
+            .register( meterRegistry );
+        this.suppressed = Counter.builder( "esavi.outbox.submissions" )
+            .description( "Bundles submitted to the outbox, by result" )
+            .tag( "result", "unchanged" )
+            .register( meterRegistry );
+        Gauge.builder( "esavi.outbox.suppression.ratio", this, Outbox::getSuppressionRatio )
+            .description( "Share of the bundles not submitted because they did not change" )
+            .register( meterRegistry );
+        Gauge.builder( "esavi.outbox.depth", this, Outbox::getDepth )
+            .description( "Bundles waiting to be delivered to the FHIR server" )
+            .register( meterRegistry );
+    }
+
+    @PostConstruct
+    public void start()
+        throws IOException
+    {
+        if ( !outboxProperties.isEnabled() )
+        {
+            return;
+        }
+
+        Path directory = Paths.get( outboxProperties.getDirectory() );
+        long segmentSize = outboxProperties.getSegmentSize().toBytes();
+
+        journal = new Journal( directory, segmentSize );
+        deadLetter = new Journal( directory.resolve( DEAD_LETTER ), segmentSize );
+
+        if ( outboxProperties.isDeduplicate() )
+        {
+            hashStore = new MVStore.Builder().fileName( directory.resolve( HASHES ).toString() ).open();
+            hashes = hashStore.openMap( "hashes" );
+        }
+
+        if ( journal.depth() > 0 )
+        {
+            log.info( "Resuming delivery of {} queued bundle(s)", journal.depth() );
+        }
+
+        executorService = Executors.newFixedThreadPool( outboxProperties.getConcurrency(), runnable -> {
+            Thread thread = new Thread( runnable, "esavi-outbox" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        running = true;
+
+        dispatcher = new Thread( this::dispatch, "esavi-outbox-dispatcher" );
+        dispatcher.setDaemon( true );
+        dispatcher.start();
+    }
+
+    @PreDestroy
+    public void stop()
+        throws InterruptedException, IOException
+    {
+        if ( dispatcher == null )
+        {
+            return;
+        }
+
+        running = false;
+
+        // cuts retries short, bundles not committed yet are delivered again on the next start
+        executorService.shutdownNow();
+        dispatcher.interrupt();
+        dispatcher.join( TimeUnit.SECONDS.toMillis( 10 ) );
+
+        journal.close();
+        deadLetter.close();
+
+        if ( hashStore != null )
+        {
+            hashStore.close();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return outboxProperties.isEnabled();
+    }
+
+    /**
+     * Queues a bundle for delivery.
+     *
+     * @return false if the outbox is disabled or the bundle is unchanged
+     *         since the last one submitted for the tracked entity
+     */
+    public boolean submit( String trackedEntityId, byte[] bundle )
+        throws IOException
+    {
+        if ( !running )
+        {
+            return false;
+        }
+
+        String hash = hashes == null || trackedEntityId == null ? null : CanonicalHash.of( bundle );
+
+        if ( hash != null && hash.equals( hashes.get( trackedEntityId ) ) )
+        {
+            suppressed.increment();
+            return false;
+        }
+
+        journal.append( encode( trackedEntityId, bundle ) );
+        queued.increment();
+
+        if ( hash != null )
+        {
+            hashes.put( trackedEntityId, hash );
+        }
+
+        synchronized ( signal )
+        {
+            signal.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Processor queueing the current body of the exchange, a marshalled
+     * bundle, for the tracked entity found in the {@code trackedEntityId}
+     * header.
+     */
+    public Processor writer()
+    {
+        return exchange -> {
+            byte[] bundle = exchange.getIn().getBody( byte[].class );
+            exchange.getIn().setBody( bundle );
+
+            submit( exchange.getIn().getHeader( "trackedEntityId", String.class ), bundle );
+        };
+    }
+
+    /**
+     * Waits while the number of queued bundles is above the high watermark.
+     *
+     * @throws RejectedExecutionException if the queue did not drain in time
+     */
+    public void awaitCapacity()
+        throws InterruptedException
+    {
+        if ( !running || journal.depth() < outboxProperties.getHighWatermark() )
+        {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + outboxProperties.getBackpressureWait().toMillis();
+
+        synchronized ( capacity )
+        {
+            while ( journal.depth() >= outboxProperties.getHighWatermark() )
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if ( remaining <= 0 )
+                {
+                    throw new RejectedExecutionException(
+                        "FHIR outbox is full, " + journal.depth() + " bundle(s) waiting for delivery" );
+                }
+
+                capacity.wait( remaining );
+            }
+        }
+    }
+
+    /**
+     * Processor applying {@link #awaitCapacity()}, placed before fetching
+     * from DHIS2.
+     */
+    public Processor backpressure()
+    {
+        return exchange -> awaitCapacity();
+    }
+
+    /**
+     * Waits until every queued bundle has been dealt with.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean drain( Duration timeout )
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+
+        synchronized ( capacity )
+        {
+            while ( getDepth() > 0 )
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if ( remaining <= 0 )
+                {
+                    return false;
+                }
+
+                capacity.wait( remaining );
+            }
+        }
+
+        return true;
+    }
+
+    public long getDepth()
+    {
+        return journal == null ? 0 : journal.depth();
+    }
+
+    public long getDeadLettered()
+    {
+        return (long) deadLettered.count();
+    }
+
+    public double getSuppressionRatio()
+    {
+        double total = queued.count() + suppressed.count();
+        return total == 0 ? 0 : suppressed.count() / total;
+    }
+
+    private void dispatch()
+    {
+        int batchSize = outboxProperties.getConcurrency() * 4;
+        int failures = 0;
+
+        while ( running )
+        {
+            try
+            {
+                List<Journal.Record> batch = journal.poll( batchSize );
+
+                if ( batch.isEmpty() )
+                {
+                    synchronized ( signal )
+                    {
+                        if ( running && !journal.hasUnpolled() )
+                        {
+                            signal.wait( 1000 );
+                        }
+                    }
+
+                    continue;
+                }
+
+                CompletableFuture<?>[] deliveries = batch.stream()
+                    .map( record -> CompletableFuture.runAsync( () -> deliver( record ), executorService ) )
+                    .toArray( CompletableFuture<?>[]::new );
+
+                CompletableFuture.allOf( deliveries ).get();
+
+                if ( !running )
+                {
+                    return;
+                }
+
+                journal.commit( batch.get( batch.size() - 1 ).getNext() );
+                failures = 0;
+
+                synchronized ( capacity )
+                {
+                    capacity.notifyAll();
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch ( Exception e )
+            {
+                // the batch is not committed, the next commit must not skip over it
+                journal.rewind();
+                log.error( "FHIR outbox dispatch failed, the batch is delivered again", e );
+
+                try
+                {
+                    Thread.sleep( backoff( ++failures ) );
+                }
+                catch ( InterruptedException interrupted )
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deliver( Journal.Record record )
+    {
+        Submission submission = decode( record.getPayload() );
+
+        for ( int attempt = 1; running; attempt++ )
+        {
+            try
+            {
+                fhirSink.submit( submission.trackedEntityId, submission.bundle );
+                delivered.increment();
+                return;
+            }
+            catch ( Exception e )
+            {
+                if ( !isRetryable( e ) || attempt >= outboxProperties.getMaxAttempts() )
+                {
+                    log.warn( "Moving bundle of tracked entity " + submission.trackedEntityId
+                        + " to the dead letter journal after " + attempt + " attempt(s)", e );
+                    deadLetter( record );
+                    return;
+                }
+
+                retried.increment();
+                log.debug( "Delivery of tracked entity {} failed (attempt {}): {}", submission.trackedEntityId,
+                    attempt, e.getMessage() );
+            }
+
+            try
+            {
+                Thread.sleep( backoff( attempt ) );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void deadLetter( Journal.Record record )
+    {
+        try
+        {
+            deadLetter.append( record.getPayload() );
+            deadLetter.force();
+            deadLettered.increment();
+
+            if ( hashes != null )
+            {
+                // the next conversion of the case is submitted even if unchanged
+                hashes.remove( decode( record.getPayload() ).trackedEntityId );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( "Failed to write the dead letter journal", e );
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, so retries after an outage do not all
+     * arrive at once.
+     */
+    private long backoff( int attempt )
+    {
+        long initial = outboxProperties.getInitialBackoff().toMillis();
+        long max = outboxProperties.getMaxBackoff().toMillis();
+        long backoff = Math.min( max, initial << Math.min( attempt - 1, 30 ) );
+
+        return backoff / 2 + ThreadLocalRandom.current().nextLong( backoff / 2 + 1 );
+    }
+
+    /**
+     * Server errors, throttling and connection failures are retried, other
+     * client errors mean the bundle is rejected as it is.
+     */
+    private static boolean isRetryable( Exception e )
+    {
+        return !(e instanceof BaseServerResponseException)
+            || isRetryable( ((BaseServerResponseException) e).getStatusCode() );
+    }
+
+    private static boolean isRetryable( int status )
+    {
+        return status >= 500 || status == 408 || status == 429 || status == 0;
+    }
+
+    /**
+     * Fails like the server would have for the bundle when an entry of the
+     * batch response failed: with the status of a retryable entry if there
+     * is one, else with the status of a rejected entry.
+     */
+    public static void checkResponse( Bundle response )
+    {
+        int failed = 0;
+        String outcome = null;
+
+        for ( Bundle.BundleEntryComponent entry : response.getEntry() )
+        {
+            String status = entry.getResponse().getStatus();
+            int code = status == null || status.length() < 3 ? 0 : Integer.parseInt( status.substring( 0, 3 ) );
+
+            if ( code >= 400 && (failed == 0 || isRetryable( code ) && !isRetryable( failed )) )
+            {
+                failed = code;
+                outcome = status;
+            }
+        }
+
+        if ( failed != 0 )
+        {
+            throw BaseServerResponseException.newInstance( failed, "Batch entry failed: " + outcome );
+        }
+    }
+
+    private static void checkResponse( FhirContext fhirContext, String response )
+    {
+        checkResponse( EncodingEnum.detectEncoding( response ).newParser( fhirContext )
+            .parseResource( Bundle.class, response ) );
+    }
+
+    static byte[] encode( String trackedEntityId, byte[] bundle )
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( bundle.length + 32 );
+
+        try ( DataOutputStream data = new DataOutputStream( out ) )
+        {
+            data.writeUTF( trackedEntityId == null ? "" : trackedEntityId );
+            data.write( bundle );
+        }
+
+        return out.toByteArray();
+    }
+
+    static Submission decode( byte[] payload )
+    {
+        try ( DataInputStream data = new DataInputStream( new ByteArrayInputStream( payload ) ) )
+        {
+            return new Submission( data.readUTF(), data.readAllBytes() );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( "Corrupt outbox record", e );
+        }
+    }
+
+    /**
+     * Where the queued bundles are delivered to.
+     */
+    @FunctionalInterface
+    public interface FhirSink
+    {
+        void submit( String trackedEntityId, byte[] bundle )
+            throws Exception;
+    }
+
+    static class Submission
+    {
+        final String trackedEntityId;
+
+        final byte[] bundle;
+
+        Submission( String trackedEntityId, byte[] bundle )
+        {
+            this.trackedEntityId = trackedEntityId;
+            this.bundle = bundle;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import lombok.Data;
+import lombok.Value;
+
+import org.hisp.dhis.api.model.v2_38_1.OptionSet;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Offline replay of archived or exported DHIS2 payloads: reads tracker
+ * responses or single tracked entities (plain JSON, NDJSON or gzip archive
+ * segments), converts them with {@link EsaviProfile} on all cores and writes
+ * one QuestionnaireResponse per line. Runs without Spring, Camel or a DHIS2
+ * connection, the option sets the mapping needs are loaded from files.
+ * <p>
+ * Started with {@code java -jar integration-paho-esavi.jar replay [options] <file or
+ * directory>...}, see {@link #USAGE}.
+ */
+public class Replay
+{
+    public static final String COMMAND = "replay";
+
+    static final String USAGE = "usage: replay [--program-stage <id>] [--option-sets <file>]... [--output <file>|-]"
+        + " [--threads <n>] <file or directory>...";
+
+    private static final String DEFAULT_PROGRAM_STAGE_ID = "lSpdre0srBn";
+
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds( 5 );
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+        .configure( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false );
+
+    private static final FhirJson FHIR_JSON = new FhirJson( FhirContext.forR4Cached() );
+
+    private final Options options;
+
+    private final PrintStream console;
+
+    private final AtomicLong read = new AtomicLong();
+
+    private final AtomicLong converted = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+
+    public Replay( Options options, PrintStream console )
+    {
+        this.options = options;
+        this.console = console;
+    }
+
+    /**
+     * Entry point of the {@code replay} command.
+     *
+     * @return the process exit code, 0 when every case was converted
+     */
+    public static int run( String... args )
+    {
+        Options options;
+
+        try
+        {
+            options = Options.parse( args );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            System.err.println( e.getMessage() );
+            System.err.println( USAGE );
+            return 2;
+        }
+
+        try
+        {
+            Summary summary = new Replay( options, System.err ).replay();
+            System.err.println( summary );
+            return summary.getFailed() == 0 ? 0 : 1;
+        }
+        catch ( IOException e )
+        {
+            System.err.println( "replay failed: " + e.getMessage() );
+            return 1;
+        }
+    }
+
+    public Summary replay()
+        throws IOException
+    {
+        for ( Path optionSets : options.getOptionSets() )
+        {
+            loadOptionSets( optionSets );
+        }
+
+        List<Path> files = files( options.getInputs() );
+        EsaviContextReader reader = new EsaviContextReader( options.getProgramStageId() );
+        long started = System.nanoTime();
+        long skipped = 0;
+
+        // bounded, so reading never runs far ahead of the conversion
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( options.getThreads(), options.getThreads(), 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>( options.getThreads() * 64 ),
+            new ThreadPoolExecutor.CallerRunsPolicy() );
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "replay-progress" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        progress.scheduleAtFixedRate( () -> console.printf( "%d read, %d converted, %d failed, %.0f cases/s%n",
+            read.get(), converted.get(), failed.get(), rate( converted.get(), System.nanoTime() - started ) ),
+            PROGRESS_INTERVAL.toMillis(), PROGRESS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS );
+
+        try ( Writer out = output() )
+        {
+            for ( Path file : files )
+            {
+                try ( InputStream in = open( file ) )
+                {
+                    skipped += reader.readAll( in, ctx -> {
+                        read.incrementAndGet();
+                        executor.execute( () -> convert( ctx, out ) );
+                    } );
+                }
+                catch ( IOException e )
+                {
+                    // a truncated segment (e.g. still being written) must not abort the replay
+                    failure( file.getFileName().toString(), e );
+                }
+            }
+
+            executor.shutdown();
+            awaitTermination( executor );
+        }
+        finally
+        {
+            executor.shutdownNow();
+            progress.shutdownNow();
+        }
+
+        return new Summary( files.size(), read.get(), converted.get(), failed.get(), skipped,
+            Duration.ofNanos( System.nanoTime() - started ), new TreeMap<>( failures ) );
+    }
+
+    private void convert( EsaviContext ctx, Writer out )
+    {
+        String line;
+
+        try
+        {
+            line = FHIR_JSON.encode( EsaviProfile.create( ctx ) );
+        }
+        catch ( RuntimeException e )
+        {
+            failure( ctx.getTrackedEntityId(), e );
+            return;
+        }
+
+        try
+        {
+            synchronized ( out )
+            {
+                out.write( line );
+                out.write( '\n' );
+            }
+
+            converted.incrementAndGet();
+        }
+        catch ( IOException e )
+        {
+            failure( ctx.getTrackedEntityId(), e );
+        }
+    }
+
+    private void failure( String example, Exception e )
+    {
+        failed.incrementAndGet();
+        failures.computeIfAbsent( e.getClass().getSimpleName() + ": " + e.getMessage(), k -> new Failure( example ) )
+            .getCount().incrementAndGet();
+    }
+
+    private void loadOptionSets( Path file )
+        throws IOException
+    {
+        JsonNode node = OBJECT_MAPPER.readTree( file.toFile() );
+
+        // either a single option set, or an optionSets listing
+        Iterable<JsonNode> optionSets = node.has( "optionSets" ) ? node.get( "optionSets" ) : List.of( node );
+
+        for ( JsonNode optionSet : optionSets )
+        {
+            EsaviContext.addOptionSet( OBJECT_MAPPER.treeToValue( optionSet, OptionSet.class ) );
+        }
+    }
+
+    private Writer output()
+        throws IOException
+    {
+        if ( options.getOutput() == null )
+        {
+            return new BufferedWriter( new OutputStreamWriter( System.out, StandardCharsets.UTF_8 ) )
+            {
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    // leave stdout open
+                    flush();
+                }
+            };
+        }
+
+        if ( options.getOutput().getParent() != null )
+        {
+            Files.createDirectories( options.getOutput().getParent() );
+        }
+
+        return Files.newBufferedWriter( options.getOutput(), StandardCharsets.UTF_8 );
+    }
+
+    private static InputStream open( Path file )
+        throws IOException
+    {
+        InputStream in = new BufferedInputStream( Files.newInputStream( file ), 64 * 1024 );
+
+        // archive segments are concatenated gzip members, which GZIPInputStream reads through
+        return file.getFileName().toString().endsWith( ".gz" ) ? new GZIPInputStream( in, 64 * 1024 ) : in;
+    }
+
+    static List<Path> files( List<Path> inputs )
+        throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+
+        for ( Path input : inputs )
+        {
+            if ( !Files.isDirectory( input ) )
+            {
+                files.add( input );
+                continue;
+            }
+
+            try ( Stream<Path> walk = Files.walk( input ) )
+            {
+                files.addAll( walk.filter( Files::isRegularFile )
+                    .filter( f -> isPayload( f.getFileName().toString() ) )
+                    .sorted()
+                    .collect( Collectors.toList() ) );
+            }
+        }
+
+        return files;
+    }
+
+    private static boolean isPayload( String name )
+    {
+        return name.endsWith( ".json" ) || name.endsWith( ".ndjson" ) || name.endsWith( ".gz" );
+    }
+
+    private static void awaitTermination( ThreadPoolExecutor executor )
+    {
+        try
+        {
+            while ( !executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+            {
+                // progress is reported by the scheduler meanwhile
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static double rate( long count, long nanos )
+    {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    @Data
+    public static class Options
+    {
+        private String programStageId = DEFAULT_PROGRAM_STAGE_ID;
+
+        private List<Path> optionSets = new ArrayList<>();
+
+        /**
+         * Where to write the QuestionnaireResponses, {@code null} for stdout.
+         */
+        private Path output;
+
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        private List<Path> inputs = new ArrayList<>();
+
+        public static Options parse( String... args )
+        {
+            Options options = new Options();
+
+            for ( int i = 0; i < args.length; i++ )
+            {
+                switch ( args[i] )
+                {
+                case "--program-stage":
+                    options.setProgramStageId( value( args, ++i ) );
+                    break;
+                case "--option-sets":
+                    options.getOptionSets().add( Paths.get( value( args, ++i ) ) );
+                    break;
+                case "--output":
+                    String output = value( args, ++i );
+                    options.setOutput( "-".equals( output ) ? null : Paths.get( output ) );
+                    break;
+                case "--threads":
+                    options.setThreads( Integer.parseInt( value( args, ++i ) ) );
+                    break;
+                default:
+                    if ( args[i].startsWith( "--" ) )
+                    {
+                        throw new IllegalArgumentException( "unknown option " + args[i] );
+                    }
+                    options.getInputs().add( Paths.get( args[i] ) );
+                }
+            }
+
+            if ( options.getInputs().isEmpty() )
+            {
+                throw new IllegalArgumentException( "no input given" );
+            }
+
+            if ( options.getThreads() < 1 )
+            {
+                throw new IllegalArgumentException( "--threads must be at least 1" );
+            }
+
+            return options;
+        }
+
+        private static String value( String[] args, int i )
+        {
+            if ( i >= args.length )
+            {
+                throw new IllegalArgumentException( args[i - 1] + " needs a value" );
+            }
+
+            return args[i];
+        }
+    }
+
+    @Value
+    public static class Failure
+    {
+        String example;
+
+        AtomicLong count = new AtomicLong();
+    }
+
+    @Value
+    public static class Summary
+    {
+        int files;
+
+        long read;
+
+        long converted;
+
+        long failed;
+
+        long skipped;
+
+        Duration elapsed;
+
+        Map<String, Failure> failures;
+
+        public double getRate()
+        {
+            return rate( converted, elapsed.toNanos() );
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder summary = new StringBuilder( String.format(
+                "replayed %d files in %s: %d cases read, %d converted, %d failed, %d documents skipped, %.0f cases/s",
+                files, elapsed, read, converted, failed, skipped, getRate() ) );
+
+            failures.forEach( ( error, failure ) -> summary.append( String.format( "%n  %6d x %s (e.g. %s)",
+                failure.getCount().get(), error, failure.getExample() ) ) );
+
+            return summary.toString();
+        }
+    }
+}
@@ -27,39 +27,109 @@
  */
 package org.hisp.dhis.integration.esavi.routes;
 
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
-import org.apache.camel.component.jackson.JacksonDataFormat;
+import org.apache.camel.model.RouteDefinition;
 import org.apache.camel.processor.aggregate.UseLatestAggregationStrategy;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
 import org.hisp.dhis.api.model.v2_38_1.OptionSet;
-import org.hisp.dhis.api.model.v2_38_1.TrackedEntity;
+import org.hisp.dhis.integration.esavi.archive.OutputArchive;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.config.properties.PipelineProperties;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
 import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.export.BulkExporter;
+import org.hisp.dhis.integration.esavi.export.ShardedExport;
+import org.hisp.dhis.integration.esavi.hook.TrackerHook;
+import org.hisp.dhis.integration.esavi.http.ConditionalGet;
+import org.hisp.dhis.integration.esavi.http.DependencyFallback;
+import org.hisp.dhis.integration.esavi.http.FhirHttpBinding;
+import org.hisp.dhis.integration.esavi.http.SingleFlight;
+import org.hisp.dhis.integration.esavi.metrics.StageMetrics;
+import org.hisp.dhis.integration.esavi.outbox.Outbox;
+import org.hisp.dhis.integration.esavi.store.CaseStore;
+import org.hisp.dhis.integration.esavi.tracing.RequestTracing;
 import org.hl7.fhir.r4.model.Bundle;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
+import io.github.resilience4j.bulkhead.Bulkhead;
+
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 @Component
 @RequiredArgsConstructor
 public class DhisEsaviRoute extends RouteBuilder
 {
+    private static final String TRACKED_ENTITIES =
+        "dhis2://get/resource?path=tracker/trackedEntities&client=#dhis2Client";
+
+    private static final String ESAVI_CASE = "direct:esavi-case";
+
+    private static final String VALIDATE = "fhir://validate/resource?inBody=resource&client=#fhirClient";
+
+    private final DhisProperties dhisProperties;
+
+    private final FhirProperties fhirProperties;
+
+    private final PipelineProperties pipelineProperties;
+
+    private final OutputArchive outputArchive;
+
+    private final ConditionalGet conditionalGet;
+
+    private final SingleFlight singleFlight;
+
+    private final DependencyFallback dependencyFallback;
+
+    private final BulkExporter bulkExporter;
+
+    private final ShardedExport shardedExport;
+
+    private final StageMetrics stageMetrics;
+
+    private final RequestTracing requestTracing;
+
+    private final Outbox outbox;
+
+    private final CaseStore caseStore;
+
+    private final TrackerHook trackerHook;
+
+    private final FhirJson fhirJson;
+
     @Override
     public void configure()
         throws Exception
     {
+        EsaviContextReader esaviContextReader = new EsaviContextReader( dhisProperties.getEsaviProgramStageId() );
+        Bulkhead dhis2Bulkhead = getContext().getRegistry().lookupByNameAndType( "dhis2Bulkhead", Bulkhead.class );
+        Bulkhead fhirBulkhead = getContext().getRegistry().lookupByNameAndType( "fhirBulkhead", Bulkhead.class );
+
+        // format negotiation, pretty printing and compression of the FHIR responses
+        restConfiguration().endpointProperty( "httpBinding", "#" + FhirHttpBinding.NAME );
+
+        // the option sets are independent of each other, fetch them at the same time
         from( "timer:foo?repeatCount=1" )
             .routeId( "DHIS2-to-ESAVI-FHIR" )
-            .to( "direct:fetch-lugares-vacunacion" )
-            .to( "direct:fetch-distritos" )
-            .to( "direct:fetch-drug-form" )
-            .to( "direct:fetch-drug-route" )
-            .to( "direct:fetch-diluent" )
-            .to( "direct:fetch-whodrug" )
-            .to( "direct:fetch-whodrug-vaccines" )
-            .to( "direct:fetch-meddra" )
+            .multicast().parallelProcessing()
+                .to( "direct:fetch-lugares-vacunacion" )
+                .to( "direct:fetch-distritos" )
+                .to( "direct:fetch-drug-form" )
+                .to( "direct:fetch-drug-route" )
+                .to( "direct:fetch-diluent" )
+                .to( "direct:fetch-whodrug" )
+                .to( "direct:fetch-whodrug-vaccines" )
+                .to( "direct:fetch-meddra" )
+            .end()
             .log( "Preload done." );
 
         from( "direct:fetch-lugares-vacunacion" )
@@ -129,42 +199,223 @@ public class DhisEsaviRoute extends RouteBuilder
         rest( "/" )
             .get( "/QuestionnaireResponse/{trackedEntityId}" )
             .routeId( "get-esavi-cases" )
-            .produces( MediaType.APPLICATION_JSON_VALUE )
+            .produces( "application/fhir+json,application/fhir+xml,application/json,application/xml" )
             .to( "direct:fetch-esavi-cases" );
 
         from( "direct:fetch-esavi-cases" )
             .routeId( "Fetch-Esavi-Cases" )
-            .setHeader( "CamelDhis2.queryParams")
-                .groovy( "['program': 'aFGRl00bzio', 'ouMode': 'ACCESSIBLE', 'pageSize': '1', 'trackedEntity': request.headers.get('trackedEntityId'), 'fields': '*,enrollments[events[*],*]']" )
-            .to( "dhis2://get/collection?path=tracker/trackedEntities&arrayName=instances&client=#dhis2Client" )
-            .split(body()).aggregationStrategy( new UseLatestAggregationStrategy() )
-                .wireTap( "direct:log-dhis2-payload" )
-                .convertBodyTo( TrackedEntity.class )
-                .convertBodyTo( Bundle.class )
-                .to("direct:$validate")
-                .marshal().fhirJson( "R4", true )
-                .to("file://./output?fileName=QuestionnaireResponse.fhir.json&noop=true")
+            .onCompletion().modeBeforeConsumer()
+                .process( requestTracing.end() )
+            .end()
+            .onException( RejectedExecutionException.class )
+                .handled( true )
+                .setHeader( Exchange.HTTP_RESPONSE_CODE, constant( 503 ) )
+                .setHeader( "Retry-After", constant( pipelineProperties.getRetryAfterSeconds() ) )
+                .setBody( constant( "" ) )
+            .end()
+            .process( requestTracing.begin() )
+            // the response format is settled before any work, the case is encoded in it once built
+            .process( FhirHttpBinding::negotiate )
+            .filter( exchangeProperty( FhirHttpBinding.FORMAT ).isNull() )
+                .stop()
+            .end()
+            // bounds the number of cases in flight, the servlet thread is handed
+            // back to the container while the case waits for DHIS2 and the FHIR server
+            .threads( pipelineProperties.getMaxInFlight(), pipelineProperties.getMaxInFlight() )
+                .maxQueueSize( pipelineProperties.getQueueSize() )
+                .rejectedPolicy( ThreadPoolRejectedPolicy.Abort )
+                .callerRunsWhenRejected( false )
+                .threadName( "esavi-case" )
+            // a stored response past fresh-for is only served once the probe confirms it
+            .filter( exchange -> conditionalGet.isConditional( exchange ) || caseStore.needsRevalidation( exchange ) )
+                .to( "direct:probe-tracked-entity" )
+                .filter( exchangeProperty( ConditionalGet.NOT_MODIFIED ) )
+                    .stop()
+                .end()
+            .end()
+            .filter( caseStore::isCurrent )
+                .process( caseStore.serve() )
+                .stop()
+            .end()
+            // concurrent requests for the same tracked entity share one build
+            .process( singleFlight.to( "direct:build-esavi-case" ) );
+
+        from( "direct:build-esavi-case" )
+            .routeId( "Build-Esavi-Case" )
+            // holds back the DHIS2 fetch while the FHIR outbox is above its high watermark
+            .process( outbox.backpressure() )
+            .process( exchange -> exchange.getIn().setHeader( "CamelDhis2.queryParams",
+                trackedEntityQuery( exchange, EsaviContext.FIELDS ) ) )
+            .circuitBreaker()
+                .resilience4jConfiguration()
+                    .circuitBreaker( "dhis2CircuitBreaker" )
+                .end()
+                .process( guarded( dhis2Bulkhead, TRACKED_ENTITIES ) )
+                .convertBodyTo( byte[].class )
+            .onFallback()
+                .process( dependencyFallback.staleCase() )
+            .end()
+            .filter( exchangeProperty( DependencyFallback.FALLBACK ) )
+                .stop()
+            .end()
+            .process( stageMetrics.size( "dhis2" ) )
+            .wireTap( "direct:log-dhis2-payload" )
+            .process( stageMetrics.start( StageMetrics.UNMARSHAL ) )
+            .process( exchange -> exchange.getIn().setBody(
+                esaviContextReader.read( exchange.getIn().getBody( InputStream.class ) ) ) )
+            .process( stageMetrics.stop( StageMetrics.UNMARSHAL ) )
+            .split( body() ).aggregationStrategy( new UseLatestAggregationStrategy() )
+                .to( ESAVI_CASE )
             .end();
 
+        // converts, validates and marshals one case, then hands it to the archive, the store and the
+        // outbox; shared by the request path and the bulk export
+        from( ESAVI_CASE )
+            .routeId( "Esavi-Case" )
+            .process( conditionalGet::tagResponse )
+            .process( stageMetrics.start( StageMetrics.CONVERT ) )
+            .convertBodyTo( Bundle.class )
+            .process( stageMetrics.stop( StageMetrics.CONVERT ) )
+            .to( "direct:$validate" )
+            .setProperty( FhirHttpBinding.RESOURCE, body() )
+            // the compact JSON is only produced to be archived, stored, submitted or served as is,
+            // other response formats are encoded from the resource by the HTTP binding
+            .filter( this::needsPayload )
+                .process( stageMetrics.start( StageMetrics.MARSHAL ) )
+                .marshal( fhirJson )
+                .process( stageMetrics.stop( StageMetrics.MARSHAL ) )
+                .process( stageMetrics.size( "questionnaire-response" ) )
+                .process( outputArchive.writer( OutputArchive.QUESTIONNAIRE_RESPONSE ) )
+                .process( caseStore.writer() )
+                .process( outbox.writer() )
+            .end();
+
+        rest( "/" )
+            .post( "/QuestionnaireResponse/$export" )
+            .routeId( "export-esavi-cases" )
+            .to( "direct:export-esavi-cases" );
+
+        // starts the bulk export in the background, 409 while one is running; with sharding
+        // this node joins the export coordinated through the shared lease directory
+        from( "direct:export-esavi-cases" )
+            .routeId( "Export-Esavi-Cases" )
+            .process( exchange -> exchange.getMessage().setHeader( Exchange.HTTP_RESPONSE_CODE,
+                (shardedExport.isEnabled() ? shardedExport.start() : bulkExporter.start()) ? 202 : 409 ) )
+            .setBody( constant( "" ) );
+
+        from( BulkExporter.SINK )
+            .routeId( "Export-Esavi-Case" )
+            .to( ESAVI_CASE );
+
+        if ( trackerHook.isEnabled() )
+        {
+            rest( "/" )
+                .post( "/hooks/tracker" )
+                .routeId( "tracker-hook" )
+                .to( "direct:tracker-hook" );
+
+            // DHIS2 event hook, the changed cases are built in the background after a debounce
+            from( "direct:tracker-hook" )
+                .routeId( "Tracker-Hook" )
+                .process( trackerHook::receive );
+
+            // not shared with requests in flight, they may have read the case before the change
+            from( TrackerHook.BUILD )
+                .routeId( "Hook-Build-Esavi-Case" )
+                .to( "direct:build-esavi-case" );
+        }
+
+        // only reads the timestamps needed to decide if the client copy is current
+        from( "direct:probe-tracked-entity" )
+            .routeId( "Probe-Tracked-Entity" )
+            .process( exchange -> exchange.getIn().setHeader( "CamelDhis2.queryParams",
+                trackedEntityQuery( exchange, ConditionalGet.PROBE_FIELDS ) ) )
+            .circuitBreaker()
+                .resilience4jConfiguration()
+                    .circuitBreaker( "dhis2CircuitBreaker" )
+                .end()
+                .process( guarded( dhis2Bulkhead, TRACKED_ENTITIES ) )
+                .process( conditionalGet::probe )
+            .onFallback()
+                .process( dependencyFallback.skipProbe() )
+            .end();
+
+        // archives the DHIS2 response as received, without parsing it again
         from( "direct:log-dhis2-payload" )
-            .marshal( getJacksonDataFormat( Map.class, true ) )
-            .to( "file://./output?fileName=TrackedEntity.dhis2.json&noop=true" );
-
-        from( "direct:$validate" )
-            .setProperty( "questionnaireResponse", body() )
-            .to( "fhir://validate/resource?inBody=resource&client=#fhirClient" )
-            .setBody( simple( "${body.operationOutcome}" ) )
-            .marshal().fhirJson( "R4", true )
-            .to( "file://./output?fileName=validate.fhir.json&noop=true" )
+            .routeId( "Log-DHIS2-Payload" )
+            .filter( exchange -> outputArchive.sampleDhis2Payload() )
+            .process( outputArchive.writer( OutputArchive.TRACKED_ENTITY ) );
+
+        RouteDefinition validate = from( "direct:$validate" )
+            .routeId( "Validate" )
+            .setProperty( "questionnaireResponse", body() );
+
+        if ( fhirProperties.getValidation().getMode() == FhirProperties.ValidationMode.EMBEDDED )
+        {
+            validate.process( stageMetrics.start( StageMetrics.VALIDATE ) )
+                .bean( "embeddedFhirValidator", "validate" )
+                .process( stageMetrics.stop( StageMetrics.VALIDATE ) );
+        }
+        else
+        {
+            validate.circuitBreaker()
+                    .resilience4jConfiguration()
+                        .circuitBreaker( "fhirCircuitBreaker" )
+                    .end()
+                    .process( guarded( fhirBulkhead, VALIDATE ) )
+                    .setBody( simple( "${body.operationOutcome}" ) )
+                .onFallback()
+                    .process( dependencyFallback.skipValidation() )
+                .end();
+        }
+
+        validate.process( stageMetrics.start( StageMetrics.MARSHAL ) )
+            .marshal( fhirJson )
+            .process( stageMetrics.stop( StageMetrics.MARSHAL ) )
+            .process( stageMetrics.size( "validate" ) )
+            .process( outputArchive.writer( OutputArchive.VALIDATE ) )
             .setBody( simple( "${exchangeProperty.questionnaireResponse}" ));
     }
 
-    private static JacksonDataFormat getJacksonDataFormat( Class<?> klass, boolean prettyPrint )
+    /**
+     * Calls the endpoint within the bulkhead of its dependency, shared with
+     * the other routes and the bulk export.
+     */
+    private Processor guarded( Bulkhead bulkhead, String uri )
+    {
+        ProducerTemplate producerTemplate = getContext().createProducerTemplate();
+
+        return exchange -> {
+            bulkhead.acquirePermission();
+
+            try
+            {
+                producerTemplate.send( uri, exchange );
+            }
+            finally
+            {
+                bulkhead.onComplete();
+            }
+        };
+    }
+
+    private boolean needsPayload( Exchange exchange )
+    {
+        FhirHttpBinding.Format format = exchange.getProperty( FhirHttpBinding.FORMAT, FhirHttpBinding.Format.class );
+
+        return format == null || format.isCompactJson() || outputArchive.isEnabled() || caseStore.isEnabled()
+            || outbox.isEnabled();
+    }
+
+    private static Map<String, Object> trackedEntityQuery( Exchange exchange, String fields )
     {
-        JacksonDataFormat jacksonDataFormat = new JacksonDataFormat( klass );
-        jacksonDataFormat.addModule( new JavaTimeModule() );
-        jacksonDataFormat.setPrettyPrint( prettyPrint );
+        Map<String, Object> queryParams = new HashMap<>();
+        queryParams.put( "program", "aFGRl00bzio" );
+        queryParams.put( "ouMode", "ACCESSIBLE" );
+        queryParams.put( "pageSize", "1" );
+        queryParams.put( "trackedEntity", exchange.getIn().getHeader( "trackedEntityId" ) );
+        queryParams.put( "fields", fields );
 
-        return jacksonDataFormat;
+        return queryParams;
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.store;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.integration.esavi.config.properties.StoreProperties;
+import org.hisp.dhis.integration.esavi.http.ConditionalGet;
+import org.hisp.dhis.integration.esavi.http.DependencyFallback;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the {@link CaseStore} current in the background. Every stored
+ * response that is no longer fresh is checked with the cheap timestamp
+ * probe: unchanged cases are marked as verified, changed cases and cases of
+ * an older mapping version are built again (which stores them), and cases
+ * gone from DHIS2 are removed. A pass stops early when DHIS2 cannot be
+ * reached.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CaseReconciler implements ApplicationRunner
+{
+    private final CaseStore caseStore;
+
+    private final StoreProperties storeProperties;
+
+    private final ProducerTemplate producerTemplate;
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void run( ApplicationArguments args )
+    {
+        if ( !caseStore.isEnabled() )
+        {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "esavi-store-reconciler" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        long interval = storeProperties.getReconcileInterval().toMillis();
+        scheduler.scheduleWithFixedDelay( this::reconcile, interval, interval, TimeUnit.MILLISECONDS );
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        if ( scheduler != null )
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs one pass over the stored responses.
+     */
+    public void reconcile()
+    {
+        int verified = 0;
+        int rebuilt = 0;
+        int removed = 0;
+
+        for ( String trackedEntityId : caseStore.trackedEntityIds() )
+        {
+            if ( Thread.currentThread().isInterrupted() )
+            {
+                return;
+            }
+
+            Optional<CaseStore.Entry> entry = caseStore.get( trackedEntityId );
+
+            if ( entry.isEmpty()
+                || (entry.get().isCurrentMapping() && entry.get().isFresh( storeProperties.getFreshFor() )) )
+            {
+                continue;
+            }
+
+            Exchange probe = producerTemplate.send( "direct:probe-tracked-entity",
+                exchange -> exchange.getIn().setHeader( "trackedEntityId", trackedEntityId ) );
+
+            if ( probe.getException() != null || probe.getProperty( ConditionalGet.PROBED ) == null )
+            {
+                log.warn( "DHIS2 unavailable, reconciliation stopped after {} verified, {} rebuilt, {} removed",
+                    verified, rebuilt, removed );
+                return;
+            }
+
+            Instant updatedAt = probe.getProperty( ConditionalGet.UPDATED_AT, Instant.class );
+
+            if ( updatedAt == null )
+            {
+                caseStore.remove( trackedEntityId );
+                removed++;
+            }
+            else if ( entry.get().isCurrentMapping() && updatedAt.equals( entry.get().getUpdatedAt() ) )
+            {
+                caseStore.touch( trackedEntityId );
+                verified++;
+            }
+            else
+            {
+                Exchange build = producerTemplate.send( "direct:build-esavi-case",
+                    exchange -> exchange.getIn().setHeader( "trackedEntityId", trackedEntityId ) );
+
+                if ( build.getProperty( DependencyFallback.FALLBACK ) != null )
+                {
+                    log.warn( "DHIS2 unavailable, reconciliation stopped after {} verified, {} rebuilt, {} removed",
+                        verified, rebuilt, removed );
+                    return;
+                }
+
+                if ( build.getException() != null )
+                {
+                    log.warn( "Failed to rebuild tracked entity " + trackedEntityId, build.getException() );
+                    continue;
+                }
+
+                rebuilt++;
+            }
+        }
+
+        log.info( "Reconciled case store: {} verified, {} rebuilt, {} removed", verified, rebuilt, removed );
+    }
+}
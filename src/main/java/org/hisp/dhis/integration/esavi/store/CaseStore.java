@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.hisp.dhis.integration.esavi.config.properties.StoreProperties;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hisp.dhis.integration.esavi.http.ConditionalGet;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Embedded store of the latest QuestionnaireResponse of every tracked entity,
+ * kept in an H2 MVStore file together with the {@code updatedAt} of the case
+ * it was built from and the mapping version ({@link EsaviProfile#VERSION}).
+ * <p>
+ * Stored responses of the current mapping version are served without
+ * contacting DHIS2 for {@code fresh-for} after they were last verified, and
+ * after a probe of the case timestamps confirms they are still current
+ * beyond that. The {@link CaseReconciler} keeps them current in the
+ * background.
+ */
+@Slf4j
+@Component
+public class CaseStore
+{
+    /**
+     * Exchange property caching the stored entry of the tracked entity.
+     */
+    public static final String ENTRY = "storedCase";
+
+    private final StoreProperties storeProperties;
+
+    private final ConditionalGet conditionalGet;
+
+    private final MeterRegistry meterRegistry;
+
+    private MVStore store;
+
+    private MVMap<String, byte[]> cases;
+
+    public CaseStore( StoreProperties storeProperties, ConditionalGet conditionalGet, MeterRegistry meterRegistry )
+    {
+        this.storeProperties = storeProperties;
+        this.conditionalGet = conditionalGet;
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder( "esavi.store.size", this, CaseStore::size )
+            .description( "QuestionnaireResponses in the embedded store" )
+            .register( meterRegistry );
+    }
+
+    @PostConstruct
+    public void start()
+        throws IOException
+    {
+        if ( !storeProperties.isEnabled() )
+        {
+            return;
+        }
+
+        Path file = Paths.get( storeProperties.getFile() ).toAbsolutePath();
+        Files.createDirectories( file.getParent() );
+
+        store = new MVStore.Builder()
+            .fileName( file.toString() )
+            .cacheSize( (int) Math.max( 1, storeProperties.getCacheSize().toMegabytes() ) )
+            .compress()
+            .open();
+        cases = store.openMap( "cases" );
+
+        log.info( "Case store opened with {} QuestionnaireResponse(s)", cases.size() );
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        if ( store != null )
+        {
+            store.close();
+            store = null;
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return store != null;
+    }
+
+    public Optional<Entry> get( String trackedEntityId )
+    {
+        if ( store == null || trackedEntityId == null )
+        {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable( cases.get( trackedEntityId ) ).map( CaseStore::decode );
+    }
+
+    /**
+     * Stores the QuestionnaireResponse built from a case last updated at the
+     * given time, with the current mapping version.
+     */
+    public void put( String trackedEntityId, Instant updatedAt, byte[] payload )
+    {
+        if ( store == null || trackedEntityId == null || updatedAt == null )
+        {
+            return;
+        }
+
+        cases.put( trackedEntityId, encode( new Entry( updatedAt, EsaviProfile.VERSION, Instant.now(), payload ) ) );
+    }
+
+    /**
+     * Records that the stored QuestionnaireResponse was found to be current.
+     */
+    public void touch( String trackedEntityId )
+    {
+        get( trackedEntityId ).ifPresent( entry -> cases.put( trackedEntityId, encode(
+            new Entry( entry.getUpdatedAt(), entry.getMappingVersion(), Instant.now(), entry.getPayload() ) ) ) );
+    }
+
+    public void remove( String trackedEntityId )
+    {
+        if ( store != null )
+        {
+            cases.remove( trackedEntityId );
+        }
+    }
+
+    public List<String> trackedEntityIds()
+    {
+        return store == null ? List.of() : new ArrayList<>( cases.keySet() );
+    }
+
+    public long size()
+    {
+        return store == null ? 0 : cases.sizeAsLong();
+    }
+
+    /**
+     * Whether a stored response of the current mapping version exists but
+     * has to be checked against DHIS2 before it is served.
+     */
+    public boolean needsRevalidation( Exchange exchange )
+    {
+        return lookup( exchange ).filter( Entry::isCurrentMapping )
+            .map( entry -> !entry.isFresh( storeProperties.getFreshFor() ) ).orElse( false );
+    }
+
+    /**
+     * Whether the stored response can be served: it is of the current
+     * mapping version, and either fresh or confirmed by the probe.
+     */
+    public boolean isCurrent( Exchange exchange )
+    {
+        if ( store == null )
+        {
+            return false;
+        }
+
+        Optional<Entry> entry = lookup( exchange ).filter( Entry::isCurrentMapping );
+
+        if ( entry.isEmpty() )
+        {
+            count( "miss" );
+            return false;
+        }
+
+        if ( entry.get().isFresh( storeProperties.getFreshFor() ) )
+        {
+            count( "fresh" );
+            return true;
+        }
+
+        Instant updatedAt = exchange.getProperty( ConditionalGet.UPDATED_AT, Instant.class );
+
+        if ( entry.get().getUpdatedAt().equals( updatedAt ) )
+        {
+            touch( exchange.getIn().getHeader( "trackedEntityId", String.class ) );
+            count( "revalidated" );
+            return true;
+        }
+
+        count( "outdated" );
+        return false;
+    }
+
+    /**
+     * Answers with the stored response found by {@link #isCurrent(Exchange)}.
+     */
+    public Processor serve()
+    {
+        return exchange -> {
+            Entry entry = exchange.getProperty( ENTRY, Entry.class );
+            Message message = exchange.getMessage();
+
+            conditionalGet.tagResponse( message, entry.getUpdatedAt() );
+            message.setBody( entry.getPayload() );
+            message.setHeader( Exchange.HTTP_RESPONSE_CODE, 200 );
+            message.setHeader( Exchange.CONTENT_TYPE, EncodingEnum.JSON.getResourceContentTypeNonLegacy() );
+        };
+    }
+
+    /**
+     * Processor storing the current body of the exchange, the marshalled
+     * response, for the tracked entity found in the {@code trackedEntityId}
+     * header.
+     */
+    public Processor writer()
+    {
+        return exchange -> {
+            byte[] payload = exchange.getIn().getBody( byte[].class );
+            exchange.getIn().setBody( payload );
+
+            put( exchange.getIn().getHeader( "trackedEntityId", String.class ),
+                exchange.getProperty( ConditionalGet.UPDATED_AT, Instant.class ), payload );
+        };
+    }
+
+    private Optional<Entry> lookup( Exchange exchange )
+    {
+        Entry entry = exchange.getProperty( ENTRY, Entry.class );
+
+        if ( entry == null )
+        {
+            entry = get( exchange.getIn().getHeader( "trackedEntityId", String.class ) ).orElse( null );
+            exchange.setProperty( ENTRY, entry );
+        }
+
+        return Optional.ofNullable( entry );
+    }
+
+    private void count( String result )
+    {
+        Counter.builder( "esavi.store.lookup" )
+            .description( "Lookups of the embedded store, by result" )
+            .tag( "result", result )
+            .register( meterRegistry )
+            .increment();
+    }
+
+    private static byte[] encode( Entry entry )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( entry.getPayload().length + 32 );
+
+        try ( DataOutputStream data = new DataOutputStream( out ) )
+        {
+            data.writeLong( entry.getUpdatedAt().toEpochMilli() );
+            data.writeUTF( entry.getMappingVersion() );
+            data.writeLong( entry.getVerifiedAt().toEpochMilli() );
+            data.write( entry.getPayload() );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+
+        return out.toByteArray();
+    }
+
+    private static Entry decode( byte[] value )
+    {
+        try ( DataInputStream data = new DataInputStream( new ByteArrayInputStream( value ) ) )
+        {
+            return new Entry( Instant.ofEpochMilli( data.readLong() ), data.readUTF(),
+                Instant.ofEpochMilli( data.readLong() ), data.readAllBytes() );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    @Value
+    public static class Entry
+    {
+        /**
+         * Latest {@code updatedAt} of the case the response was built from.
+         */
+        Instant updatedAt;
+
+        String mappingVersion;
+
+        /**
+         * When the response was last built or found to be current.
+         */
+        Instant verifiedAt;
+
+        byte[] payload;
+
+        public boolean isCurrentMapping()
+        {
+            return EsaviProfile.VERSION.equals( mappingVersion );
+        }
+
+        public boolean isFresh( Duration freshFor )
+        {
+            return verifiedAt.plus( freshFor ).isAfter( Instant.now() );
+        }
+    }
+}
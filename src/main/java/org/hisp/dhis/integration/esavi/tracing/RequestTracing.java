@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.tracing;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.spi.CamelEvent;
+import org.apache.camel.spi.CamelEvent.ExchangeSendingEvent;
+import org.apache.camel.spi.CamelEvent.ExchangeSentEvent;
+import org.apache.camel.support.EventNotifierSupport;
+import org.apache.camel.util.URISupport;
+import org.hisp.dhis.integration.esavi.metrics.StageMetrics;
+import org.springframework.stereotype.Component;
+
+/**
+ * Request tracing for the QuestionnaireResponse endpoint. Each request gets
+ * a {@link Trace}, continued from an incoming W3C {@code traceparent}
+ * header when present, whose correlation id is returned as
+ * {@value #CORRELATION_ID} and sent along with every DHIS2 and FHIR call
+ * (see {@link #outgoingHeaders()}). The response carries a
+ * {@code Server-Timing} header with the time spent fetching, converting,
+ * validating and serializing the case, and a server span plus one client
+ * span per upstream call are handed to the {@link SpanExporter}.
+ */
+@Component
+public class RequestTracing extends EventNotifierSupport
+{
+    public static final String TRACE = "esaviTrace";
+
+    public static final String CORRELATION_ID = "X-Correlation-ID";
+
+    public static final String TRACEPARENT = "traceparent";
+
+    public static final String SERVER_TIMING = "Server-Timing";
+
+    // Server-Timing metric names, in the order they are reported
+    private static final List<String> TIMINGS = List.of( "fetch", "convert", "validate", "serialize" );
+
+    private static final Map<String, String> STAGE_TIMINGS = Map.of(
+        StageMetrics.DHIS2_FETCH, "fetch",
+        StageMetrics.UNMARSHAL, "convert",
+        StageMetrics.CONVERT, "convert",
+        StageMetrics.VALIDATE, "validate",
+        StageMetrics.MARSHAL, "serialize" );
+
+    private static final ThreadLocal<Call> CURRENT_CALL = new ThreadLocal<>();
+
+    private final SpanExporter spanExporter;
+
+    public RequestTracing( SpanExporter spanExporter )
+    {
+        this.spanExporter = spanExporter;
+
+        setIgnoreCamelContextEvents( true );
+        setIgnoreRouteEvents( true );
+        setIgnoreServiceEvents( true );
+        setIgnoreStepEvents( true );
+        setIgnoreExchangeCreatedEvent( true );
+        setIgnoreExchangeCompletedEvent( true );
+        setIgnoreExchangeFailedEvents( true );
+        setIgnoreExchangeRedeliveryEvents( true );
+        setIgnoreExchangeAsyncProcessingStartedEvents( true );
+    }
+
+    /**
+     * Starts the trace of a request.
+     */
+    public Processor begin()
+    {
+        return exchange -> {
+            Message in = exchange.getIn();
+            Trace trace = Trace.of( in.getHeader( TRACEPARENT, String.class ),
+                in.getHeader( CORRELATION_ID, String.class ) );
+
+            exchange.setProperty( TRACE, trace );
+            in.removeHeader( TRACEPARENT );
+            in.setHeader( CORRELATION_ID, trace.getCorrelationId() );
+        };
+    }
+
+    /**
+     * Sets the Server-Timing header and exports the server span, meant to
+     * run before the response is written.
+     */
+    public Processor end()
+    {
+        return exchange -> {
+            Trace trace = exchange.getProperty( TRACE, Trace.class );
+
+            if ( trace == null )
+            {
+                return;
+            }
+
+            long elapsed = trace.elapsedNanos();
+            Message message = exchange.getMessage();
+            message.setHeader( CORRELATION_ID, trace.getCorrelationId() );
+            message.setHeader( SERVER_TIMING, serverTiming( trace, elapsed ) );
+
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put( "esavi.correlation_id", trace.getCorrelationId() );
+            attributes.put( "esavi.tracked_entity_id", String.valueOf( message.getHeader( "trackedEntityId" ) ) );
+            attributes.put( "http.status_code",
+                message.getHeader( Exchange.HTTP_RESPONSE_CODE, 200, Integer.class ) );
+            trace.getTimings().forEach( ( name, nanos ) -> attributes.put( "esavi.timing." + name, nanos ) );
+
+            spanExporter.export( new Span( trace.getTraceId(), trace.getSpanId(), trace.getParentSpanId(),
+                "GET /QuestionnaireResponse/{trackedEntityId}", Span.KIND_SERVER, trace.getStartEpochNanos(),
+                trace.getStartEpochNanos() + elapsed, attributes,
+                exchange.isFailed() || message.getHeader( Exchange.HTTP_RESPONSE_CODE, 200, Integer.class ) >= 500 ) );
+        };
+    }
+
+    /**
+     * Adds the duration of a stage to the Server-Timing of the request the
+     * exchange belongs to, if any.
+     */
+    public static void timing( Exchange exchange, String stage, long nanos )
+    {
+        Trace trace = exchange.getProperty( TRACE, Trace.class );
+        String name = STAGE_TIMINGS.get( stage );
+
+        if ( trace != null && name != null )
+        {
+            trace.addTiming( name, nanos );
+        }
+    }
+
+    /**
+     * Headers to add to the upstream HTTP call made by the current thread,
+     * empty outside a traced call.
+     */
+    public static Map<String, String> outgoingHeaders()
+    {
+        Call call = CURRENT_CALL.get();
+
+        if ( call == null )
+        {
+            return Map.of();
+        }
+
+        return Map.of( CORRELATION_ID, call.trace.getCorrelationId(), TRACEPARENT,
+            "00-" + call.trace.getTraceId() + "-" + call.spanId + "-01" );
+    }
+
+    @Override
+    public void notify( CamelEvent event )
+    {
+        if ( event instanceof ExchangeSendingEvent )
+        {
+            ExchangeSendingEvent sending = (ExchangeSendingEvent) event;
+            Trace trace = sending.getExchange().getProperty( TRACE, Trace.class );
+
+            if ( trace != null && isUpstream( sending.getEndpoint().getEndpointUri() ) )
+            {
+                // the dhis2 and fhir producers call out synchronously on this thread
+                CURRENT_CALL.set( new Call( trace, Trace.newSpanId(), Trace.epochNanos() ) );
+            }
+        }
+        else if ( event instanceof ExchangeSentEvent )
+        {
+            ExchangeSentEvent sent = (ExchangeSentEvent) event;
+            Call call = CURRENT_CALL.get();
+
+            if ( call != null && isUpstream( sent.getEndpoint().getEndpointUri() ) )
+            {
+                CURRENT_CALL.remove();
+
+                String endpointUri = URISupport.stripQuery( sent.getEndpoint().getEndpointUri() );
+                spanExporter.export( new Span( call.trace.getTraceId(), call.spanId, call.trace.getSpanId(),
+                    endpointUri, Span.KIND_CLIENT, call.startEpochNanos,
+                    call.startEpochNanos + sent.getTimeTaken() * 1_000_000,
+                    Map.of( "esavi.correlation_id", call.trace.getCorrelationId() ),
+                    sent.getExchange().isFailed() ) );
+            }
+        }
+    }
+
+    private static boolean isUpstream( String endpointUri )
+    {
+        return endpointUri.startsWith( "dhis2:" ) || endpointUri.startsWith( "fhir:" );
+    }
+
+    private static String serverTiming( Trace trace, long elapsedNanos )
+    {
+        StringJoiner serverTiming = new StringJoiner( ", " );
+
+        for ( String name : TIMINGS )
+        {
+            Long nanos = trace.getTimings().get( name );
+
+            if ( nanos != null )
+            {
+                serverTiming.add( name + ";dur=" + millis( nanos ) );
+            }
+        }
+
+        return serverTiming.add( "total;dur=" + millis( elapsedNanos ) ).toString();
+    }
+
+    private static String millis( long nanos )
+    {
+        return String.format( Locale.ROOT, "%.1f", nanos / 1_000_000.0 );
+    }
+
+    private static class Call
+    {
+        final Trace trace;
+
+        final String spanId;
+
+        final long startEpochNanos;
+
+        Call( Trace trace, String spanId, long startEpochNanos )
+        {
+            this.trace = trace;
+            this.spanId = spanId;
+            this.startEpochNanos = startEpochNanos;
+        }
+    }
+}
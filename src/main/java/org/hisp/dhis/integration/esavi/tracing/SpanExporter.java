@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.tracing;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hisp.dhis.integration.esavi.config.properties.TracingProperties;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Exports spans in the OTLP JSON encoding, either appended to a local file
+ * (one export request per line) or posted to an OTLP/HTTP collector. Spans
+ * are queued and exported in batches by a background thread, and dropped
+ * when the queue is full.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SpanExporter
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final TracingProperties tracingProperties;
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Object idle = new Object();
+
+    private BlockingQueue<Span> queue;
+
+    private HttpClient httpClient;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start()
+    {
+        if ( !isEnabled() )
+        {
+            return;
+        }
+
+        queue = new ArrayBlockingQueue<>( tracingProperties.getQueueCapacity() );
+        httpClient = HttpClient.newBuilder().connectTimeout( Duration.ofSeconds( 5 ) ).build();
+        running = true;
+
+        writer = new Thread( this::write, "esavi-span-exporter" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    @PreDestroy
+    public void stop()
+        throws InterruptedException
+    {
+        running = false;
+
+        if ( writer != null )
+        {
+            writer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return tracingProperties.getExporter() != TracingProperties.Exporter.NONE;
+    }
+
+    /**
+     * Queues a span for export, never blocks.
+     */
+    public void export( Span span )
+    {
+        if ( !isEnabled() )
+        {
+            return;
+        }
+
+        pending.incrementAndGet();
+
+        if ( !queue.offer( span ) )
+        {
+            done( 1 );
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until all queued spans have been exported.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean flush( Duration timeout )
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+
+        synchronized ( idle )
+        {
+            while ( pending.get() > 0 )
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if ( remaining <= 0 )
+                {
+                    return false;
+                }
+
+                idle.wait( remaining );
+            }
+        }
+
+        return true;
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    private void write()
+    {
+        List<Span> batch = new ArrayList<>();
+
+        while ( running || !queue.isEmpty() )
+        {
+            try
+            {
+                Span span = queue.poll( 1, TimeUnit.SECONDS );
+
+                if ( span == null )
+                {
+                    continue;
+                }
+
+                batch.add( span );
+                queue.drainTo( batch, tracingProperties.getBatchSize() - 1 );
+                send( encode( batch ) );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                log.warn( "Failed to export " + batch.size() + " span(s): " + e.getMessage() );
+            }
+            finally
+            {
+                done( batch.size() );
+                batch.clear();
+            }
+        }
+    }
+
+    private void done( int spans )
+    {
+        if ( pending.addAndGet( -spans ) <= 0 )
+        {
+            synchronized ( idle )
+            {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private void send( byte[] request )
+        throws IOException, InterruptedException
+    {
+        if ( tracingProperties.getExporter() == TracingProperties.Exporter.FILE )
+        {
+            Path file = Path.of( tracingProperties.getFile() );
+
+            if ( file.getParent() != null )
+            {
+                Files.createDirectories( file.getParent() );
+            }
+
+            byte[] line = new byte[request.length + 1];
+            System.arraycopy( request, 0, line, 0, request.length );
+            line[request.length] = '\n';
+
+            Files.write( file, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+        }
+        else
+        {
+            HttpResponse<Void> response = httpClient.send( HttpRequest
+                .newBuilder( URI.create( tracingProperties.getEndpoint().replaceAll( "/+$", "" ) + "/v1/traces" ) )
+                .timeout( Duration.ofSeconds( 10 ) )
+                .header( "Content-Type", "application/json" )
+                .POST( HttpRequest.BodyPublishers.ofByteArray( request ) )
+                .build(), HttpResponse.BodyHandlers.discarding() );
+
+            if ( response.statusCode() >= 300 )
+            {
+                throw new IOException( "Collector answered " + response.statusCode() );
+            }
+        }
+    }
+
+    private byte[] encode( List<Span> batch )
+        throws IOException
+    {
+        ObjectNode request = OBJECT_MAPPER.createObjectNode();
+        ObjectNode resourceSpans = request.putArray( "resourceSpans" ).addObject();
+        attributes( resourceSpans.putObject( "resource" ),
+            Map.of( "service.name", tracingProperties.getServiceName() ) );
+
+        ObjectNode scopeSpans = resourceSpans.putArray( "scopeSpans" ).addObject();
+        scopeSpans.putObject( "scope" ).put( "name", "org.hisp.dhis.integration.esavi" );
+        ArrayNode spans = scopeSpans.putArray( "spans" );
+
+        for ( Span span : batch )
+        {
+            ObjectNode node = spans.addObject();
+            node.put( "traceId", span.getTraceId() );
+            node.put( "spanId", span.getSpanId() );
+
+            if ( span.getParentSpanId() != null )
+            {
+                node.put( "parentSpanId", span.getParentSpanId() );
+            }
+
+            node.put( "name", span.getName() );
+            node.put( "kind", span.getKind() );
+            node.put( "startTimeUnixNano", String.valueOf( span.getStartEpochNanos() ) );
+            node.put( "endTimeUnixNano", String.valueOf( span.getEndEpochNanos() ) );
+            attributes( node, span.getAttributes() );
+            // STATUS_CODE_OK = 1, STATUS_CODE_ERROR = 2
+            node.putObject( "status" ).put( "code", span.isError() ? 2 : 1 );
+        }
+
+        return OBJECT_MAPPER.writeValueAsBytes( request );
+    }
+
+    private static void attributes( ObjectNode node, Map<String, Object> attributes )
+    {
+        ArrayNode array = node.putArray( "attributes" );
+
+        attributes.forEach( ( key, value ) -> {
+            ObjectNode attribute = array.addObject();
+            attribute.put( "key", key );
+
+            if ( value instanceof Number )
+            {
+                attribute.putObject( "value" ).put( "intValue", String.valueOf( ((Number) value).longValue() ) );
+            }
+            else
+            {
+                attribute.putObject( "value" ).put( "stringValue", String.valueOf( value ) );
+            }
+        } );
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.tracing;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Getter;
+
+/**
+ * Trace of a single request, shared by the exchanges the request is
+ * processed in. Collects the stage durations reported in the Server-Timing
+ * header.
+ */
+@Getter
+public class Trace
+{
+    private final String traceId;
+
+    private final String spanId = newSpanId();
+
+    private final String parentSpanId;
+
+    private final String correlationId;
+
+    private final long startEpochNanos = epochNanos();
+
+    private final long startNanos = System.nanoTime();
+
+    private final Map<String, Long> timings = new ConcurrentHashMap<>();
+
+    public Trace( String traceId, String parentSpanId, String correlationId )
+    {
+        this.traceId = traceId == null ? newTraceId() : traceId;
+        this.parentSpanId = parentSpanId;
+        this.correlationId = correlationId == null ? this.traceId : correlationId;
+    }
+
+    /**
+     * Parses a W3C {@code traceparent} header, a new trace is started when
+     * the header is missing or invalid.
+     */
+    public static Trace of( String traceparent, String correlationId )
+    {
+        if ( traceparent != null )
+        {
+            String[] parts = traceparent.trim().split( "-" );
+
+            if ( parts.length == 4 && parts[1].length() == 32 && parts[2].length() == 16 )
+            {
+                return new Trace( parts[1], parts[2], correlationId );
+            }
+        }
+
+        return new Trace( null, null, correlationId );
+    }
+
+    public void addTiming( String name, long nanos )
+    {
+        timings.merge( name, nanos, Long::sum );
+    }
+
+    public long elapsedNanos()
+    {
+        return System.nanoTime() - startNanos;
+    }
+
+    public static String newTraceId()
+    {
+        return hex( ThreadLocalRandom.current().nextLong() ) + hex( ThreadLocalRandom.current().nextLong() );
+    }
+
+    public static String newSpanId()
+    {
+        return hex( ThreadLocalRandom.current().nextLong() );
+    }
+
+    public static long epochNanos()
+    {
+        Instant now = Instant.now();
+
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    private static String hex( long value )
+    {
+        return String.format( "%016x", value );
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.validation;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.FhirValidator;
+
+/**
+ * Validates resources in-process against the PAHO ESAVI IG package instead of
+ * calling $validate on a remote FHIR server. The IG definitions are loaded
+ * once at startup into a shared validation support chain, results are
+ * memoized by payload so repeated identical payloads are not validated twice.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty( name = "dhis2-to-esavi.fhir.validation.mode", havingValue = "embedded" )
+public class EmbeddedFhirValidator
+{
+    private final FhirContext fhirContext;
+
+    private final FhirJson fhirJson;
+
+    private final FhirProperties fhirProperties;
+
+    private FhirValidator validator;
+
+    private Map<String, OperationOutcome> results;
+
+    @PostConstruct
+    public void init()
+        throws IOException
+    {
+        PackageValidationSupport packageSupport = new PackageValidationSupport( fhirContext );
+        String packageDirectory = fhirProperties.getValidation().getPackageDirectory();
+
+        if ( packageDirectory != null )
+        {
+            packageSupport.load( Paths.get( packageDirectory ) );
+        }
+
+        ValidationSupportChain supportChain = new ValidationSupportChain(
+            new DefaultProfileValidationSupport( fhirContext ),
+            packageSupport,
+            new CommonCodeSystemsTerminologyService( fhirContext ),
+            new InMemoryTerminologyServerValidationSupport( fhirContext ),
+            new SnapshotGeneratingValidationSupport( fhirContext ) );
+
+        validator = fhirContext.newValidator();
+        validator.registerValidatorModule(
+            new FhirInstanceValidator( new CachingValidationSupport( supportChain ) ) );
+
+        int cacheSize = fhirProperties.getValidation().getCacheSize();
+        results = Collections.synchronizedMap( new LinkedHashMap<>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, OperationOutcome> eldest )
+            {
+                return size() > cacheSize;
+            }
+        } );
+
+        // pre-warm the support chain so the first request does not pay for
+        // loading the core definitions and generating snapshots
+        validator.validateWithResult( new QuestionnaireResponse() );
+
+        log.info( "Embedded FHIR validator ready, {} IG resources loaded.", packageSupport.size() );
+    }
+
+    public OperationOutcome validate( IBaseResource resource )
+    {
+        // validate the encoded payload (and not the resource) so issue
+        // locations are reported the same way a remote $validate does
+        String payload = fhirJson.encode( resource );
+        String key = sha256( payload );
+
+        OperationOutcome operationOutcome = results.get( key );
+
+        if ( operationOutcome == null )
+        {
+            operationOutcome = (OperationOutcome) validator.validateWithResult( payload ).toOperationOutcome();
+
+            if ( fhirProperties.getValidation().getCacheSize() > 0 )
+            {
+                results.put( key, operationOutcome );
+            }
+        }
+
+        return operationOutcome.copy();
+    }
+
+    private static String sha256( String value )
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "SHA-256" )
+                .digest( value.getBytes( StandardCharsets.UTF_8 ) );
+
+            StringBuilder sb = new StringBuilder();
+
+            for ( byte b : digest )
+            {
+                sb.append( String.format( "%02x", b ) );
+            }
+
+            return sb.toString();
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Holds the definitions of the IG package. Besides StructureDefinitions,
+     * CodeSystems and ValueSets this also resolves any other canonical
+     * resource (like the ESAVI Questionnaire) by its url.
+     */
+    private static class PackageValidationSupport extends PrePopulatedValidationSupport
+    {
+        private final Map<String, IBaseResource> canonicalResources = new HashMap<>();
+
+        PackageValidationSupport( FhirContext fhirContext )
+        {
+            super( fhirContext );
+        }
+
+        void load( Path directory )
+            throws IOException
+        {
+            IParser parser = getFhirContext().newJsonParser();
+
+            List<Path> files;
+
+            try ( Stream<Path> paths = Files.walk( directory ) )
+            {
+                files = paths.filter( path -> path.toString().endsWith( ".json" ) )
+                    .filter( path -> !path.getFileName().toString().startsWith( "package" ) )
+                    .filter( path -> !path.getFileName().toString().startsWith( "." ) )
+                    .collect( Collectors.toList() );
+            }
+
+            for ( Path file : files )
+            {
+                try ( Reader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) )
+                {
+                    add( parser.parseResource( reader ) );
+                }
+                catch ( RuntimeException e )
+                {
+                    log.warn( "Skipping {}, not a FHIR resource: {}", file, e.getMessage() );
+                }
+            }
+        }
+
+        int size()
+        {
+            return canonicalResources.size();
+        }
+
+        private void add( IBaseResource resource )
+        {
+            if ( resource instanceof StructureDefinition )
+            {
+                addStructureDefinition( resource );
+            }
+            else if ( resource instanceof CodeSystem )
+            {
+                addCodeSystem( resource );
+            }
+            else if ( resource instanceof ValueSet )
+            {
+                addValueSet( resource );
+            }
+
+            if ( resource instanceof MetadataResource && ((MetadataResource) resource).hasUrl() )
+            {
+                canonicalResources.put( ((MetadataResource) resource).getUrl(), resource );
+            }
+        }
+
+        @Override
+        @SuppressWarnings( "unchecked" )
+        public <T extends IBaseResource> T fetchResource( Class<T> type, String url )
+        {
+            IBaseResource resource = canonicalResources.get( url );
+
+            if ( resource != null && (type == null || type.isInstance( resource )) )
+            {
+                return (T) resource;
+            }
+
+            return super.fetchResource( type, url );
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.esavi.warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.WarmUpProperties;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Runs synthetic cases through the conversion path (streaming read, type
+ * conversion to a Bundle and FHIR JSON serialization) until the conversion
+ * time is stable, so the first real requests do not run interpreted code.
+ * Runs as an {@link ApplicationRunner}, the application only reports itself
+ * ready to accept traffic once it has finished.
+ */
+@Slf4j
+@Component
+@Order( Ordered.HIGHEST_PRECEDENCE )
+@RequiredArgsConstructor
+public class WarmUp implements ApplicationRunner
+{
+    private static final String FIXTURE = "warm-up/tracked-entities.dhis2.json";
+
+    private static final String FIXTURE_TRACKED_ENTITY_ID = "Qe7eK1Kq4VZ";
+
+    private final WarmUpProperties warmUpProperties;
+
+    private final DhisProperties dhisProperties;
+
+    private final CamelContext camelContext;
+
+    private final FhirJson fhirJson;
+
+    private final MeterRegistry meterRegistry;
+
+    private volatile Result result;
+
+    @Override
+    public void run( ApplicationArguments args )
+    {
+        if ( !warmUpProperties.isEnabled() )
+        {
+            return;
+        }
+
+        try
+        {
+            result = warmUp();
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            // a failed warm-up only costs latency, it must not keep the application from starting
+            log.warn( "Warm-up failed, starting cold", e );
+            return;
+        }
+
+        log.info( "Warm-up done in {} ms ({} conversions{}), median conversion {} us before, {} us after",
+            result.getDuration().toMillis(), result.getIterations(), result.isStable() ? "" : ", not stable",
+            result.getFirstMedianNanos() / 1000, result.getLastMedianNanos() / 1000 );
+
+        Gauge.builder( "esavi.warmup.duration", result, r -> r.getDuration().toMillis() / 1000.0 )
+            .baseUnit( "seconds" ).description( "Time spent warming up" ).register( meterRegistry );
+        Gauge.builder( "esavi.warmup.conversion.first", result, r -> r.getFirstMedianNanos() / 1e9 )
+            .baseUnit( "seconds" ).description( "Median conversion time of the first warm-up batch" )
+            .register( meterRegistry );
+        Gauge.builder( "esavi.warmup.conversion.last", result, r -> r.getLastMedianNanos() / 1e9 )
+            .baseUnit( "seconds" ).description( "Median conversion time of the last warm-up batch" )
+            .register( meterRegistry );
+    }
+
+    public Result getResult()
+    {
+        return result;
+    }
+
+    Result warmUp()
+        throws IOException
+    {
+        String fixture = readFixture();
+        EsaviContextReader esaviContextReader = new EsaviContextReader( dhisProperties.getEsaviProgramStageId() );
+
+        long start = System.nanoTime();
+        long deadline = start + warmUpProperties.getMaxDuration().toNanos();
+        long[] batch = new long[warmUpProperties.getBatchSize()];
+        long firstMedian = -1;
+        long previousMedian = -1;
+        int stableBatches = 0;
+        int iterations = 0;
+
+        while ( iterations < warmUpProperties.getMaxIterations() && System.nanoTime() < deadline
+            && stableBatches < warmUpProperties.getStableBatches() )
+        {
+            for ( int i = 0; i < batch.length; i++, iterations++ )
+            {
+                // a different id every time, nothing along the path can serve a cached result
+                byte[] payload = fixture.replace( FIXTURE_TRACKED_ENTITY_ID, String.format( "W%010d", iterations ) )
+                    .getBytes( StandardCharsets.UTF_8 );
+
+                long conversionStart = System.nanoTime();
+                convert( esaviContextReader, payload );
+                batch[i] = System.nanoTime() - conversionStart;
+            }
+
+            long median = median( batch );
+
+            if ( firstMedian < 0 )
+            {
+                firstMedian = median;
+            }
+            else if ( Math.abs( median - previousMedian ) <= previousMedian * warmUpProperties.getTolerance() )
+            {
+                stableBatches++;
+            }
+            else
+            {
+                stableBatches = 0;
+            }
+
+            previousMedian = median;
+        }
+
+        return new Result( Duration.ofNanos( System.nanoTime() - start ), iterations, firstMedian, previousMedian,
+            stableBatches >= warmUpProperties.getStableBatches() );
+    }
+
+    private void convert( EsaviContextReader esaviContextReader, byte[] payload )
+        throws IOException
+    {
+        for ( EsaviContext context : esaviContextReader.read( new ByteArrayInputStream( payload ) ) )
+        {
+            Exchange exchange = new DefaultExchange( camelContext );
+            Bundle bundle = camelContext.getTypeConverter().convertTo( Bundle.class, exchange, context );
+            fhirJson.encode( bundle );
+        }
+    }
+
+    private static String readFixture()
+        throws IOException
+    {
+        try ( InputStream inputStream = WarmUp.class.getClassLoader().getResourceAsStream( FIXTURE ) )
+        {
+            if ( inputStream == null )
+            {
+                throw new IOException( "Missing warm-up fixture " + FIXTURE );
+            }
+
+            return new String( inputStream.readAllBytes(), StandardCharsets.UTF_8 );
+        }
+    }
+
+    private static long median( long[] values )
+    {
+        long[] sorted = values.clone();
+        Arrays.sort( sorted );
+
+        return sorted[sorted.length / 2];
+    }
+
+    @Value
+    public static class Result
+    {
+        Duration duration;
+
+        int iterations;
+
+        long firstMedianNanos;
+
+        long lastMedianNanos;
+
+        boolean stable;
+    }
+}
@@ -0,0 +1,96 @@
+package org.hisp.dhis.fhir.esavi.paho;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal timing and allocation measurement for the tests tagged
+ * "benchmark" (run with {@code mvn test -P benchmark}).
+ */
+public final class Benchmark
+{
+    @FunctionalInterface
+    public interface Task
+    {
+        void run()
+            throws Exception;
+    }
+
+    public static final class Result
+    {
+        private final String name;
+
+        private final double nanosPerOp;
+
+        private final double bytesPerOp;
+
+        Result( String name, double nanosPerOp, double bytesPerOp )
+        {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public double getNanosPerOp()
+        {
+            return nanosPerOp;
+        }
+
+        public double getBytesPerOp()
+        {
+            return bytesPerOp;
+        }
+
+        @Override
+        public String toString()
+        {
+            return format( name, nanosPerOp / 1000, "us/op" ) + String.format( " %14.0f B/op", bytesPerOp );
+        }
+    }
+
+    private Benchmark()
+    {
+    }
+
+    public static Result run( String name, int warmupIterations, int iterations, Task task )
+        throws Exception
+    {
+        for ( int i = 0; i < warmupIterations; i++ )
+        {
+            task.run();
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes( threadId );
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < iterations; i++ )
+        {
+            task.run();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadMXBean.getThreadAllocatedBytes( threadId ) - allocatedBefore;
+
+        Result result = new Result( name, (double) elapsed / iterations, (double) allocated / iterations );
+        System.out.println( result );
+
+        return result;
+    }
+
+    /**
+     * Prints a measurement not taken by {@link #run}, such as a throughput
+     * or a latency percentile, in the same format as the run results.
+     */
+    public static void report( String name, double value, String unit )
+    {
+        System.out.println( format( name, value, unit ) );
+    }
+
+    private static String format( String name, double value, String unit )
+    {
+        return String.format( "%-40s %12.1f %s", name, value, unit );
+    }
+}
@@ -0,0 +1,165 @@
+package org.hisp.dhis.fhir.esavi.paho;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the DHIS2 endpoints the gateway calls: option sets
+ * are those of {@link SyntheticCases} and every tracked entity query answers
+ * with {@code warm-up/tracked-entities.dhis2.json}, or with the requested
+ * synthetic case once {@link #setCases(SyntheticCases)} is called, after a
+ * configurable delay. Keeps track of how many tracked entity requests are in
+ * flight at the same time.
+ */
+public class Dhis2Stub implements AutoCloseable
+{
+    private final HttpServer server;
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private final byte[] trackedEntities;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile Duration delay = Duration.ZERO;
+
+    private volatile SyntheticCases cases;
+
+    public Dhis2Stub()
+        throws IOException
+    {
+        trackedEntities = Thread.currentThread().getContextClassLoader()
+            .getResourceAsStream( "warm-up/tracked-entities.dhis2.json" ).readAllBytes();
+
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/api/optionSets/", this::optionSet );
+        server.createContext( "/api/tracker/trackedEntities", this::trackedEntities );
+        server.setExecutor( executorService );
+        server.start();
+    }
+
+    public String getBaseUrl()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + "/api";
+    }
+
+    public void setDelay( Duration delay )
+    {
+        this.delay = delay;
+    }
+
+    /**
+     * Answers tracked entity queries with the synthetic case of the requested
+     * {@code trackedEntity}.
+     */
+    public void setCases( SyntheticCases cases )
+    {
+        this.cases = cases;
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight.get();
+    }
+
+    public int getRequests()
+    {
+        return requests.get();
+    }
+
+    public void reset()
+    {
+        maxInFlight.set( 0 );
+        requests.set( 0 );
+    }
+
+    private void optionSet( HttpExchange exchange )
+        throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        String id = path.substring( path.lastIndexOf( '/' ) + 1 );
+
+        respond( exchange, SyntheticCases.optionSet( id ) );
+    }
+
+    private void trackedEntities( HttpExchange exchange )
+        throws IOException
+    {
+        requests.incrementAndGet();
+        maxInFlight.accumulateAndGet( inFlight.incrementAndGet(), Math::max );
+
+        try
+        {
+            Thread.sleep( delay.toMillis() );
+
+            SyntheticCases cases = this.cases;
+            String trackedEntityId = queryParameter( exchange, "trackedEntity" );
+
+            respond( exchange, cases != null && trackedEntityId != null ? cases.trackedEntities( trackedEntityId )
+                : trackedEntities );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static String queryParameter( HttpExchange exchange, String name )
+    {
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if ( query == null )
+        {
+            return null;
+        }
+
+        for ( String parameter : query.split( "&" ) )
+        {
+            int separator = parameter.indexOf( '=' );
+
+            if ( separator > 0 && name.equals( parameter.substring( 0, separator ) ) )
+            {
+                return URLDecoder.decode( parameter.substring( separator + 1 ), StandardCharsets.UTF_8 );
+            }
+        }
+
+        return null;
+    }
+
+    private static void respond( HttpExchange exchange, byte[] body )
+        throws IOException
+    {
+        exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+        exchange.sendResponseHeaders( 200, body.length );
+
+        try ( OutputStream outputStream = exchange.getResponseBody() )
+        {
+            outputStream.write( body );
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        executorService.shutdownNow();
+    }
+}
@@ -0,0 +1,248 @@
+package org.hisp.dhis.fhir.esavi.paho;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the FHIR server: the entries of every bundle posted
+ * to the base URL are applied to an in-memory store, after a configurable
+ * delay, or the bundle is answered with 503 for the configured fraction of
+ * requests. Updates by id ({@code Type/id}) are direct lookups; conditional
+ * updates ({@code Type?identifier=token}) search an identifier index, each
+ * search taking the configured search delay, and create a resource with a
+ * server-assigned id when nothing matches.
+ */
+public class FhirStub implements AutoCloseable
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+
+    /**
+     * Identifier tokens of every stored resource, by resource id.
+     */
+    private final Map<String, List<String>> resources = new ConcurrentHashMap<>();
+
+    /**
+     * Resource ids by identifier token, {@code system|value} and {@code value}.
+     */
+    private final Map<String, Set<String>> identifierIndex = new ConcurrentHashMap<>();
+
+    private final AtomicInteger searches = new AtomicInteger();
+
+    private volatile Duration searchDelay = Duration.ZERO;
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private final AtomicInteger transactions = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile Duration delay = Duration.ZERO;
+
+    private volatile double failureRate;
+
+    public FhirStub()
+        throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/fhir", this::transaction );
+        server.setExecutor( executorService );
+        server.start();
+    }
+
+    public String getBaseUrl()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    public void setDelay( Duration delay )
+    {
+        this.delay = delay;
+    }
+
+    public void setFailureRate( double failureRate )
+    {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Time taken by each search of a conditional update.
+     */
+    public void setSearchDelay( Duration searchDelay )
+    {
+        this.searchDelay = searchDelay;
+    }
+
+    /**
+     * Transactions accepted so far.
+     */
+    public int getTransactions()
+    {
+        return transactions.get();
+    }
+
+    public int getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Searches run for conditional updates so far.
+     */
+    public int getSearches()
+    {
+        return searches.get();
+    }
+
+    /**
+     * Resources stored so far.
+     */
+    public int getResources()
+    {
+        return resources.size();
+    }
+
+    public void reset()
+    {
+        transactions.set( 0 );
+        failures.set( 0 );
+        searches.set( 0 );
+        resources.clear();
+        identifierIndex.clear();
+    }
+
+    private void transaction( HttpExchange exchange )
+        throws IOException
+    {
+        JsonNode bundle;
+
+        try ( InputStream inputStream = exchange.getRequestBody() )
+        {
+            bundle = OBJECT_MAPPER.readTree( inputStream );
+            Thread.sleep( delay.toMillis() );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if ( ThreadLocalRandom.current().nextDouble() < failureRate )
+        {
+            failures.incrementAndGet();
+            exchange.sendResponseHeaders( 503, -1 );
+            exchange.close();
+            return;
+        }
+
+        ObjectNode response = OBJECT_MAPPER.createObjectNode()
+            .put( "resourceType", "Bundle" )
+            .put( "type", bundle.path( "type" ).asText( "transaction" ) + "-response" );
+        ArrayNode entries = response.putArray( "entry" );
+
+        for ( JsonNode entry : bundle.path( "entry" ) )
+        {
+            entries.addObject().putObject( "response" ).put( "status",
+                put( entry.path( "request" ).path( "url" ).asText(), entry.path( "resource" ) ) );
+        }
+
+        transactions.incrementAndGet();
+        byte[] body = OBJECT_MAPPER.writeValueAsBytes( response );
+        exchange.getResponseHeaders().set( "Content-Type", "application/fhir+json" );
+        exchange.sendResponseHeaders( 200, body.length );
+
+        try ( OutputStream outputStream = exchange.getResponseBody() )
+        {
+            outputStream.write( body );
+        }
+    }
+
+    /**
+     * Applies an update entry.
+     *
+     * @return the status of the entry response
+     */
+    private String put( String url, JsonNode resource )
+    {
+        int query = url.indexOf( "?identifier=" );
+        String id;
+
+        if ( query < 0 )
+        {
+            id = url.substring( url.indexOf( '/' ) + 1 );
+        }
+        else
+        {
+            Set<String> matches = search( URLDecoder.decode( url.substring( query + "?identifier=".length() ),
+                StandardCharsets.UTF_8 ) );
+
+            if ( matches.size() > 1 )
+            {
+                return "412 Precondition Failed";
+            }
+
+            id = matches.isEmpty() ? UUID.randomUUID().toString() : matches.iterator().next();
+        }
+
+        JsonNode identifier = resource.path( "identifier" );
+        identifier = identifier.isArray() ? identifier.path( 0 ) : identifier;
+        List<String> tokens = identifier.has( "value" ) ? List.of( identifier.path( "system" ).asText() + "|"
+            + identifier.path( "value" ).asText(), identifier.path( "value" ).asText() ) : List.of();
+        List<String> previous = resources.put( id, tokens );
+
+        if ( previous != null )
+        {
+            previous.forEach( token -> identifierIndex.getOrDefault( token, Set.of() ).remove( id ) );
+        }
+
+        tokens.forEach( token -> identifierIndex.computeIfAbsent( token, key -> ConcurrentHashMap.newKeySet() )
+            .add( id ) );
+
+        return previous == null ? "201 Created" : "200 OK";
+    }
+
+    private Set<String> search( String token )
+    {
+        searches.incrementAndGet();
+
+        try
+        {
+            Thread.sleep( searchDelay.toMillis() );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return Set.copyOf( identifierIndex.getOrDefault( token, Set.of() ) );
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        executorService.shutdownNow();
+    }
+}
@@ -0,0 +1,127 @@
+package org.hisp.dhis.fhir.esavi.paho;
+
+import org.hisp.dhis.integration.esavi.Application;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Time from launching a JVM until the health endpoint answers, with the
+ * default settings and with the fast-startup profile. Each configuration is
+ * started in a fresh JVM against the {@link Dhis2Stub}.
+ */
+@Tag( "benchmark" )
+public class StartupBenchmarkTestCase
+{
+    private static final int RUNS = 3;
+
+    private static final Duration TIMEOUT = Duration.ofMinutes( 2 );
+
+    @Test
+    public void benchmarkStartup()
+        throws Exception
+    {
+        try ( Dhis2Stub dhis2Stub = new Dhis2Stub() )
+        {
+            Benchmark.report( "startup, default (median of " + RUNS + ")", median( dhis2Stub, null ), "ms" );
+            Benchmark.report( "startup, fast-startup (median of " + RUNS + ")", median( dhis2Stub, "fast-startup" ),
+                "ms" );
+        }
+    }
+
+    private long median( Dhis2Stub dhis2Stub, String profile )
+        throws Exception
+    {
+        List<Long> runs = new ArrayList<>();
+
+        for ( int i = 0; i < RUNS; i++ )
+        {
+            runs.add( start( dhis2Stub, profile ) );
+        }
+
+        Collections.sort( runs );
+
+        return runs.get( RUNS / 2 );
+    }
+
+    private long start( Dhis2Stub dhis2Stub, String profile )
+        throws Exception
+    {
+        int port = freePort();
+        Path archive = Files.createTempDirectory( "esavi-startup" );
+
+        List<String> command = new ArrayList<>( List.of(
+            Path.of( System.getProperty( "java.home" ), "bin", "java" ).toString(),
+            "-cp", System.getProperty( "java.class.path" ),
+            Application.class.getName(),
+            "--server.port=" + port,
+            "--dhis2-to-esavi.dhis2.base-url=" + dhis2Stub.getBaseUrl(),
+            "--dhis2-to-esavi.archive.directory=" + archive ) );
+
+        if ( profile != null )
+        {
+            command.add( "--spring.profiles.active=" + profile );
+        }
+
+        HttpClient httpClient = HttpClient.newHttpClient();
+        HttpRequest health = HttpRequest.newBuilder( URI.create( "http://localhost:" + port + "/actuator/health" ) )
+            .timeout( Duration.ofSeconds( 1 ) ).build();
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder( command ).redirectErrorStream( true )
+            .redirectOutput( new File( archive.toFile(), "startup.log" ) ).start();
+
+        try
+        {
+            while ( System.nanoTime() - start < TIMEOUT.toNanos() )
+            {
+                assertTrue( process.isAlive(), "application exited, see " + archive.resolve( "startup.log" ) );
+
+                try
+                {
+                    if ( httpClient.send( health, HttpResponse.BodyHandlers.discarding() ).statusCode() == 200 )
+                    {
+                        return Duration.ofNanos( System.nanoTime() - start ).toMillis();
+                    }
+                }
+                catch ( IOException e )
+                {
+                    // not listening yet
+                }
+
+                Thread.sleep( 20 );
+            }
+
+            throw new AssertionError( "application did not start within " + TIMEOUT );
+        }
+        finally
+        {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    private static int freePort()
+        throws IOException
+    {
+        try ( ServerSocket serverSocket = new ServerSocket( 0 ) )
+        {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package org.hisp.dhis.fhir.esavi.paho;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviOutcomeCode;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates realistic ESAVI cases as DHIS2 tracker payloads: vaccines with
+ * their administration data, concomitant medicines, ESAVIs coded with MedDRA,
+ * seriousness criteria and outcomes, drawn from configurable distributions.
+ * A case only depends on the seed and its tracked entity UID, so the DHIS2
+ * stub can serve any number of them without keeping them around. The option
+ * sets the mapping looks the codes up in are generated as well, see
+ * {@link #optionSet(String)}.
+ */
+public class SyntheticCases
+{
+    public static final String PROGRAM = "aFGRl00bzio";
+
+    public static final String ESAVI_PROGRAM_STAGE = "lSpdre0srBn";
+
+    public static final String OPTIONSET_MEDICINES = "deNBd8tEIeD";
+
+    public static final String OPTIONSET_DOSAGE_FORMS = "qRyur64ZaPK";
+
+    public static final String OPTIONSET_ROUTES = "E9d1xL5jsTJ";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final String UID_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private static final LocalDate CAMPAIGN_START = LocalDate.of( 2021, 3, 1 );
+
+    private static final int CAMPAIGN_DAYS = 900;
+
+    private static final Map<String, Map<String, String>> OPTION_SETS = new LinkedHashMap<>();
+
+    static
+    {
+        OPTION_SETS.put( EsaviProfile.OPTIONSET_WHODRUG_COVID, codes(
+            "SYN-PFZ", "Comirnaty (Pfizer-BioNTech)",
+            "SYN-MOD", "Spikevax (Moderna)",
+            "SYN-AZ", "Vaxzevria (AstraZeneca)",
+            "SYN-SIN", "CoronaVac (Sinovac)",
+            "SYN-JAN", "Jcovden (Janssen)",
+            "SYN-SII", "Covishield (Serum Institute of India)" ) );
+        OPTION_SETS.put( OPTIONSET_MEDICINES, codes(
+            "SYN-PARA", "Paracetamol",
+            "SYN-IBU", "Ibuprofeno",
+            "SYN-LORA", "Loratadina",
+            "SYN-AMOX", "Amoxicilina",
+            "SYN-ENA", "Enalapril",
+            "SYN-MET", "Metformina",
+            "SYN-OME", "Omeprazol",
+            "SYN-SAL", "Salbutamol" ) );
+        OPTION_SETS.put( OPTIONSET_DOSAGE_FORMS, codes(
+            "1", "Tableta",
+            "2", "Cápsula",
+            "3", "Jarabe",
+            "4", "Solución inyectable",
+            "5", "Inhalador" ) );
+        OPTION_SETS.put( OPTIONSET_ROUTES, codes(
+            "1", "Oral",
+            "2", "Intramuscular",
+            "3", "Intravenosa",
+            "4", "Subcutánea",
+            "5", "Inhalatoria" ) );
+        OPTION_SETS.put( EsaviProfile.OPTIONSET_MEDDRA, codes(
+            "10037660", "Pirexia",
+            "10019211", "Cefalea",
+            "10022086", "Dolor en el lugar de inyección",
+            "10016256", "Fatiga",
+            "10028411", "Mialgia",
+            "10028813", "Náuseas",
+            "10012735", "Diarrea",
+            "10047700", "Vómitos",
+            "10039906", "Convulsión",
+            "10002198", "Reacción anafiláctica",
+            "10028606", "Miocarditis",
+            "10018767", "Síndrome de Guillain-Barré" ) );
+        OPTION_SETS.put( EsaviProfile.OPTIONSET_DILUENTS, codes(
+            "1", "Agua para inyección",
+            "2", "Cloruro de sodio 0,9 %" ) );
+        OPTION_SETS.put( EsaviProfile.OPTIONSET_DISTRITOS, codes(
+            "D01", "Distrito Capital",
+            "D02", "Distrito Norte",
+            "D03", "Distrito Sur",
+            "D04", "Distrito Este",
+            "D05", "Distrito Oeste" ) );
+        OPTION_SETS.put( EsaviProfile.OPTIONSET_LUGAR_VACUNACION, codes(
+            "1", "Centro de salud",
+            "2", "Hospital",
+            "3", "Escuela",
+            "4", "Vacunatorio móvil" ) );
+    }
+
+    // vaccine name, manufacturer, doses, batch, expiry date, vaccination date and time
+    private static final String[][] VACCINE_DATA_ELEMENTS = {
+        { EsaviProfile.VACCINE_1, "JSd0HQOgJ8w", "LIyV4t7eCfZ", "LNqkAlvGplL", "VFrc8SNFYm7", "dOkuCjpD978",
+            "BSUncNBb20j" },
+        { EsaviProfile.VACCINE_2, "eRwc8Y0CNLh", "E3F414izniN", "b1rSwGRcY5W", "rVUo2PBgwhr", "VrzEutEnzSJ",
+            "fZFQVZFqu0q" },
+        { EsaviProfile.VACCINE_3, "wdZrkUvnuyr", "WlE0K4xCc14", "YBnFoNouH6f", "ffYfdSPmM1W", "f4WCAVwjHz0",
+            "VQKdZ1KeD7u" },
+        { EsaviProfile.VACCINE_4, "Ptms0lmt4QX", "Aya8C25DXHe", "BHAfwo6JPDa", "ZfjyIKeX1AN", "H3TKHMFIN6V",
+            "S1PRFSk8Y9v" } };
+
+    // medicine, dosage form, route
+    private static final String[][] MEDICINE_DATA_ELEMENTS = {
+        { "YDhHKT2hE8j", "LaStdK115NF", "B9HiK1fADgK" }, { "YzZ5iOPzR6k", "cBKqulUmt9b", "FKgkFwKpjfu" },
+        { "i7ylwQssbZs", "wNzChKbsxd0", "QzkGC9PeXNe" }, { "xbrWBpcL7Mc", "kxFDJmHFX2j", "SznBvVkfQxc" },
+        { "CvJTcYvJxMX", "CMSNZVmLxGq", "pymdeJkXNWZ" } };
+
+    // ESAVI, start date
+    private static final String[][] ESAVI_DATA_ELEMENTS = {
+        { "PZxZirhNzgS", "LYariSd5cEq" }, { "maY0Vi68Fv9", "hfdzpv7lP6C" }, { "Sy1uqYvgR3r", "oHVQ23x5NQE" },
+        { "Og99AH5tIQz", "OGRWlduylFk" }, { "vqf60JfNqsf", "QeXeXYdBAUE" }, { "pQJc4VA2SDW", "MfgJjmoOdxm" } };
+
+    private static final String SERIOUS = "fq1c1A3EOX5";
+
+    private static final String SERIOUS_DEATH = "DOA6ZFMro84";
+
+    private static final String SERIOUS_LIFE_THREATENING = "lATDYNmTLKD";
+
+    private static final String SERIOUS_DISABILITY = "lsO8n8ZmLAB";
+
+    private static final String SERIOUS_HOSPITALIZATION = "Il1lTfknLdd";
+
+    private static final String SERIOUS_OTHER = "VXdRoWQOBxG";
+
+    private static final String OUTCOME = "yRrSDiR5v1M";
+
+    private static final String DATE_OF_DEATH = "TKikUtqJQTq";
+
+    private static final String AUTOPSY = "YUcJrLWmGyv";
+
+    private final long seed;
+
+    private Weighted<String> vaccines = new Weighted<String>()
+        .add( "SYN-PFZ", 40 ).add( "SYN-AZ", 20 ).add( "SYN-SIN", 15 ).add( "SYN-MOD", 12 ).add( "SYN-SII", 8 )
+        .add( "SYN-JAN", 5 );
+
+    private Weighted<Integer> vaccinesPerCase = new Weighted<Integer>()
+        .add( 1, 80 ).add( 2, 15 ).add( 3, 4 ).add( 4, 1 );
+
+    private Weighted<String> medicines = new Weighted<String>()
+        .add( "SYN-PARA", 35 ).add( "SYN-IBU", 20 ).add( "SYN-LORA", 10 ).add( "SYN-ENA", 10 ).add( "SYN-MET", 10 )
+        .add( "SYN-OME", 7 ).add( "SYN-SAL", 5 ).add( "SYN-AMOX", 3 );
+
+    private Weighted<Integer> medicinesPerCase = new Weighted<Integer>()
+        .add( 0, 60 ).add( 1, 25 ).add( 2, 10 ).add( 3, 5 );
+
+    private Weighted<String> meddraCodes = new Weighted<String>()
+        .add( "10037660", 22 ).add( "10019211", 20 ).add( "10022086", 18 ).add( "10016256", 12 )
+        .add( "10028411", 10 ).add( "10028813", 7 ).add( "10012735", 4 ).add( "10047700", 3 )
+        .add( "10039906", 1.5 ).add( "10002198", 1.5 ).add( "10028606", 0.6 ).add( "10018767", 0.4 );
+
+    private Weighted<Integer> esavisPerCase = new Weighted<Integer>()
+        .add( 1, 55 ).add( 2, 25 ).add( 3, 12 ).add( 4, 5 ).add( 5, 2 ).add( 6, 1 );
+
+    private double seriousRate = 0.1;
+
+    private Weighted<String> seriousnessCriteria = new Weighted<String>()
+        .add( SERIOUS_HOSPITALIZATION, 60 ).add( SERIOUS_LIFE_THREATENING, 15 ).add( SERIOUS_DISABILITY, 5 )
+        .add( SERIOUS_OTHER, 20 );
+
+    private Weighted<EsaviOutcomeCode> outcomes = new Weighted<EsaviOutcomeCode>()
+        .add( EsaviOutcomeCode.RECOVERED_OR_RESOLVED, 70 ).add( EsaviOutcomeCode.RECOVERING_OR_RESOLVING, 25 )
+        .add( EsaviOutcomeCode.UNKNOWN, 5 );
+
+    private Weighted<EsaviOutcomeCode> seriousOutcomes = new Weighted<EsaviOutcomeCode>()
+        .add( EsaviOutcomeCode.RECOVERED_OR_RESOLVED, 40 ).add( EsaviOutcomeCode.RECOVERING_OR_RESOLVING, 25 )
+        .add( EsaviOutcomeCode.NOT_RECOVERED_OR_NOT_RESOLVED, 10 )
+        .add( EsaviOutcomeCode.RECOVERED_OR_RESOLVED_WITH_SEQUELAE, 10 ).add( EsaviOutcomeCode.DIED, 5 )
+        .add( EsaviOutcomeCode.UNKNOWN, 10 );
+
+    public SyntheticCases( long seed )
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * Codes and names of the options of one of the option sets read by the
+     * mapping, empty for other option sets.
+     */
+    public static Map<String, String> options( String optionSet )
+    {
+        return OPTION_SETS.getOrDefault( optionSet, Map.of() );
+    }
+
+    /**
+     * The option set as served by {@code /api/optionSets/{id}}.
+     */
+    public static byte[] optionSet( String optionSet )
+    {
+        ObjectNode json = OBJECT_MAPPER.createObjectNode().put( "id", optionSet );
+        ArrayNode options = json.putArray( "options" );
+
+        options( optionSet ).forEach( ( code, name ) -> options.addObject()
+            .put( "id", uid( new Random( code.hashCode() ) ) )
+            .put( "code", code )
+            .put( "name", name ) );
+
+        return write( json );
+    }
+
+    /**
+     * UID of the n-th synthetic tracked entity.
+     */
+    public String trackedEntityId( int index )
+    {
+        return uid( new Random( seed * 31 + index ) );
+    }
+
+    /**
+     * A {@code tracker/trackedEntities} page holding the given tracked
+     * entities.
+     */
+    public byte[] trackedEntities( String... trackedEntityIds )
+    {
+        ObjectNode page = OBJECT_MAPPER.createObjectNode().put( "page", 1 ).put( "pageSize", trackedEntityIds.length );
+        ArrayNode instances = page.putArray( "instances" );
+
+        for ( String trackedEntityId : trackedEntityIds )
+        {
+            instances.add( trackedEntity( trackedEntityId ) );
+        }
+
+        return write( page );
+    }
+
+    public ObjectNode trackedEntity( String trackedEntityId )
+    {
+        Random random = new Random( seed ^ trackedEntityId.hashCode() );
+        LocalDate vaccinated = CAMPAIGN_START.plusDays( random.nextInt( CAMPAIGN_DAYS ) );
+        LocalDate onset = vaccinated.plusDays( random.nextInt( 4 ) );
+        LocalDate reported = onset.plusDays( 1 + random.nextInt( 10 ) );
+        String updatedAt = reported.plusDays( random.nextInt( 30 ) ) + "T10:00:00.000";
+
+        ObjectNode trackedEntity = OBJECT_MAPPER.createObjectNode()
+            .put( "trackedEntity", trackedEntityId )
+            .put( "updatedAt", updatedAt );
+
+        ArrayNode attributes = trackedEntity.putArray( "attributes" );
+        attribute( attributes, "KSr2yTdu1AI", String.format( "SYN_%s_%06d", reported, random.nextInt( 1_000_000 ) ) );
+        attribute( attributes, "oindugucx72", String.valueOf( 1 + random.nextInt( 2 ) ) );
+        attribute( attributes, "NI0QRzJvQ0k", vaccinated.minusYears( 12 + random.nextInt( 75 ) )
+            .minusDays( random.nextInt( 365 ) ).toString() );
+        attribute( attributes, "eISp65Kw0Z7", pick( random, options( EsaviProfile.OPTIONSET_DISTRITOS ) ) );
+
+        ObjectNode enrollment = trackedEntity.putArray( "enrollments" ).addObject()
+            .put( "orgUnitName", options( EsaviProfile.OPTIONSET_DISTRITOS )
+                .get( attributes.get( 3 ).get( "value" ).asText() ) )
+            .put( "updatedAt", updatedAt );
+
+        ObjectNode event = enrollment.putArray( "events" ).addObject()
+            .put( "programStage", ESAVI_PROGRAM_STAGE )
+            .put( "completedAt", reported + "T12:00:00.000" )
+            .put( "updatedAt", updatedAt );
+
+        ArrayNode dataValues = event.putArray( "dataValues" );
+        dataValue( dataValues, "PW0dQpcY2wD", reported.toString() );
+        dataValue( dataValues, "Tgi4xP5DCzr", String.valueOf( 1 + random.nextInt( 5 ) ) );
+
+        addVaccines( random, dataValues, vaccinated );
+        addMedicines( random, dataValues );
+        addEsavis( random, dataValues, onset );
+        addSeriousnessAndOutcome( random, dataValues, onset );
+
+        return trackedEntity;
+    }
+
+    private void addVaccines( Random random, ArrayNode dataValues, LocalDate vaccinated )
+    {
+        List<String> drawn = distinct( random, vaccines, vaccinesPerCase.sample( random ), VACCINE_DATA_ELEMENTS.length );
+
+        for ( int i = 0; i < drawn.size(); i++ )
+        {
+            String[] dataElements = VACCINE_DATA_ELEMENTS[i];
+            LocalDate date = vaccinated.minusDays( 28L * (drawn.size() - 1 - i) );
+
+            dataValue( dataValues, dataElements[0], drawn.get( i ) );
+            dataValue( dataValues, dataElements[1], options( EsaviProfile.OPTIONSET_WHODRUG_COVID )
+                .get( drawn.get( i ) ).replaceAll( ".*\\((.*)\\)", "$1" ) );
+            dataValue( dataValues, dataElements[2], String.valueOf( 1 + random.nextInt( 3 ) ) );
+            dataValue( dataValues, dataElements[3], String.format( "LOT%05d", random.nextInt( 100_000 ) ) );
+            dataValue( dataValues, dataElements[4], date.plusMonths( 6 + random.nextInt( 12 ) ).toString() );
+            dataValue( dataValues, dataElements[5], date.toString() );
+            dataValue( dataValues, dataElements[6], String.format( "%02d:%02d", 8 + random.nextInt( 10 ),
+                random.nextInt( 60 ) ) );
+        }
+    }
+
+    private void addMedicines( Random random, ArrayNode dataValues )
+    {
+        List<String> drawn = distinct( random, medicines, medicinesPerCase.sample( random ),
+            MEDICINE_DATA_ELEMENTS.length );
+
+        for ( int i = 0; i < drawn.size(); i++ )
+        {
+            dataValue( dataValues, MEDICINE_DATA_ELEMENTS[i][0], drawn.get( i ) );
+            dataValue( dataValues, MEDICINE_DATA_ELEMENTS[i][1], pick( random, options( OPTIONSET_DOSAGE_FORMS ) ) );
+            dataValue( dataValues, MEDICINE_DATA_ELEMENTS[i][2], pick( random, options( OPTIONSET_ROUTES ) ) );
+        }
+    }
+
+    private void addEsavis( Random random, ArrayNode dataValues, LocalDate onset )
+    {
+        List<String> drawn = distinct( random, meddraCodes, esavisPerCase.sample( random ),
+            ESAVI_DATA_ELEMENTS.length );
+
+        for ( int i = 0; i < drawn.size(); i++ )
+        {
+            dataValue( dataValues, ESAVI_DATA_ELEMENTS[i][0], drawn.get( i ) );
+            dataValue( dataValues, ESAVI_DATA_ELEMENTS[i][1], onset.plusDays( i ).toString() );
+        }
+
+        dataValue( dataValues, "ci3S3BH6wZn", "Caso sintético, " + drawn.size() + " ESAVI notificados" );
+    }
+
+    private void addSeriousnessAndOutcome( Random random, ArrayNode dataValues, LocalDate onset )
+    {
+        boolean serious = random.nextDouble() < seriousRate;
+        EsaviOutcomeCode outcome = (serious ? seriousOutcomes : outcomes).sample( random );
+
+        dataValue( dataValues, SERIOUS, String.valueOf( serious ) );
+        dataValue( dataValues, OUTCOME, outcome.name() );
+
+        if ( serious )
+        {
+            dataValue( dataValues, outcome == EsaviOutcomeCode.DIED ? SERIOUS_DEATH
+                : seriousnessCriteria.sample( random ), "true" );
+        }
+
+        if ( outcome == EsaviOutcomeCode.DIED )
+        {
+            dataValue( dataValues, DATE_OF_DEATH, onset.plusDays( 1 + random.nextInt( 20 ) ).toString() );
+            dataValue( dataValues, AUTOPSY, String.valueOf( random.nextBoolean() ) );
+        }
+    }
+
+    public SyntheticCases setVaccines( Weighted<String> vaccines )
+    {
+        this.vaccines = vaccines;
+        return this;
+    }
+
+    public SyntheticCases setVaccinesPerCase( Weighted<Integer> vaccinesPerCase )
+    {
+        this.vaccinesPerCase = vaccinesPerCase;
+        return this;
+    }
+
+    public SyntheticCases setMedicines( Weighted<String> medicines )
+    {
+        this.medicines = medicines;
+        return this;
+    }
+
+    public SyntheticCases setMedicinesPerCase( Weighted<Integer> medicinesPerCase )
+    {
+        this.medicinesPerCase = medicinesPerCase;
+        return this;
+    }
+
+    public SyntheticCases setMeddraCodes( Weighted<String> meddraCodes )
+    {
+        this.meddraCodes = meddraCodes;
+        return this;
+    }
+
+    public SyntheticCases setEsavisPerCase( Weighted<Integer> esavisPerCase )
+    {
+        this.esavisPerCase = esavisPerCase;
+        return this;
+    }
+
+    public SyntheticCases setSeriousRate( double seriousRate )
+    {
+        this.seriousRate = seriousRate;
+        return this;
+    }
+
+    public SyntheticCases setSeriousnessCriteria( Weighted<String> seriousnessCriteria )
+    {
+        this.seriousnessCriteria = seriousnessCriteria;
+        return this;
+    }
+
+    public SyntheticCases setOutcomes( Weighted<EsaviOutcomeCode> outcomes )
+    {
+        this.outcomes = outcomes;
+        return this;
+    }
+
+    public SyntheticCases setSeriousOutcomes( Weighted<EsaviOutcomeCode> seriousOutcomes )
+    {
+        this.seriousOutcomes = seriousOutcomes;
+        return this;
+    }
+
+    /**
+     * Draws up to {@code count} different values, at most {@code max} and at
+     * most as many as there are values.
+     */
+    private static <T> List<T> distinct( Random random, Weighted<T> weighted, int count, int max )
+    {
+        List<T> drawn = new ArrayList<>();
+        int wanted = Math.min( Math.min( count, max ), weighted.size() );
+
+        while ( drawn.size() < wanted )
+        {
+            T value = weighted.sample( random );
+
+            if ( !drawn.contains( value ) )
+            {
+                drawn.add( value );
+            }
+        }
+
+        return drawn;
+    }
+
+    private static String pick( Random random, Map<String, String> options )
+    {
+        List<String> codes = new ArrayList<>( options.keySet() );
+        return codes.get( random.nextInt( codes.size() ) );
+    }
+
+    private static void attribute( ArrayNode attributes, String attribute, String value )
+    {
+        attributes.addObject().put( "attribute", attribute ).put( "value", value );
+    }
+
+    private static void dataValue( ArrayNode dataValues, String dataElement, String value )
+    {
+        dataValues.addObject().put( "dataElement", dataElement ).put( "value", value );
+    }
+
+    private static String uid( Random random )
+    {
+        StringBuilder uid = new StringBuilder( 11 );
+        // UIDs start with a letter
+        uid.append( UID_CHARACTERS.charAt( random.nextInt( 52 ) ) );
+
+        for ( int i = 1; i < 11; i++ )
+        {
+            uid.append( UID_CHARACTERS.charAt( random.nextInt( UID_CHARACTERS.length() ) ) );
+        }
+
+        return uid.toString();
+    }
+
+    private static Map<String, String> codes( String... codesAndNames )
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+
+        for ( int i = 0; i < codesAndNames.length; i += 2 )
+        {
+            options.put( codesAndNames[i], codesAndNames[i + 1] );
+        }
+
+        return Collections.unmodifiableMap( options );
+    }
+
+    private static byte[] write( ObjectNode json )
+    {
+        try
+        {
+            return OBJECT_MAPPER.writeValueAsBytes( json );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Discrete distribution over values with relative weights.
+     */
+    public static class Weighted<T>
+    {
+        private final List<T> values = new ArrayList<>();
+
+        private final List<Double> cumulative = new ArrayList<>();
+
+        private double total;
+
+        public Weighted<T> add( T value, double weight )
+        {
+            if ( weight <= 0 )
+            {
+                throw new IllegalArgumentException( "weight must be positive: " + weight );
+            }
+
+            total += weight;
+            values.add( value );
+            cumulative.add( total );
+
+            return this;
+        }
+
+        public T sample( Random random )
+        {
+            double point = random.nextDouble() * total;
+
+            for ( int i = 0; i < values.size(); i++ )
+            {
+                if ( point < cumulative.get( i ) )
+                {
+                    return values.get( i );
+                }
+            }
+
+            return values.get( values.size() - 1 );
+        }
+
+        public int size()
+        {
+            return values.size();
+        }
+    }
+}
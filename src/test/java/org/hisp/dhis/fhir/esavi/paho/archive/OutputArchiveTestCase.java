@@ -0,0 +1,121 @@
+package org.hisp.dhis.fhir.esavi.paho.archive;
+
+import org.hisp.dhis.integration.esavi.archive.OutputArchive;
+import org.hisp.dhis.integration.esavi.config.properties.ArchiveProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutputArchiveTestCase
+{
+    @TempDir
+    Path directory;
+
+    private ArchiveProperties archiveProperties;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        archiveProperties = new ArchiveProperties();
+        archiveProperties.setDirectory( directory.toString() );
+    }
+
+    @Test
+    public void testReadReturnsLatestRecordPerType()
+        throws Exception
+    {
+        OutputArchive outputArchive = start();
+
+        outputArchive.archive( "tei1", OutputArchive.TRACKED_ENTITY, bytes( "first" ) );
+        outputArchive.archive( "tei1", OutputArchive.TRACKED_ENTITY, bytes( "second" ) );
+        outputArchive.archive( "tei1", OutputArchive.VALIDATE, bytes( "outcome" ) );
+        outputArchive.archive( "tei2", OutputArchive.TRACKED_ENTITY, bytes( "other" ) );
+
+        assertTrue( outputArchive.flush( Duration.ofSeconds( 10 ) ) );
+
+        assertEquals( "second", read( outputArchive, "tei1", OutputArchive.TRACKED_ENTITY ) );
+        assertEquals( "outcome", read( outputArchive, "tei1", OutputArchive.VALIDATE ) );
+        assertEquals( "other", read( outputArchive, "tei2", OutputArchive.TRACKED_ENTITY ) );
+        assertFalse( outputArchive.read( "tei2", OutputArchive.VALIDATE ).isPresent() );
+
+        outputArchive.stop();
+    }
+
+    @Test
+    public void testIndexIsReloadedAfterRestart()
+        throws Exception
+    {
+        OutputArchive outputArchive = start();
+        outputArchive.archive( "tei1", OutputArchive.QUESTIONNAIRE_RESPONSE, bytes( "response" ) );
+        assertTrue( outputArchive.flush( Duration.ofSeconds( 10 ) ) );
+        outputArchive.stop();
+
+        OutputArchive restarted = start();
+        assertEquals( "response", read( restarted, "tei1", OutputArchive.QUESTIONNAIRE_RESPONSE ) );
+        restarted.stop();
+    }
+
+    @Test
+    public void testSegmentsAreRolledAndRetained()
+        throws Exception
+    {
+        archiveProperties.setSegmentSize( DataSize.ofBytes( 1 ) );
+        archiveProperties.setMaxSegments( 2 );
+
+        OutputArchive outputArchive = start();
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            outputArchive.archive( "tei" + i, OutputArchive.TRACKED_ENTITY, bytes( "payload" + i ) );
+            assertTrue( outputArchive.flush( Duration.ofSeconds( 10 ) ) );
+        }
+
+        assertEquals( 2, Files.list( directory ).filter( file -> file.toString().endsWith( ".gz" ) ).count() );
+        assertFalse( outputArchive.read( "tei0", OutputArchive.TRACKED_ENTITY ).isPresent() );
+        assertEquals( "payload4", read( outputArchive, "tei4", OutputArchive.TRACKED_ENTITY ) );
+
+        outputArchive.stop();
+    }
+
+    @Test
+    public void testDisabledArchiveDropsRecords()
+        throws Exception
+    {
+        archiveProperties.setEnabled( false );
+
+        OutputArchive outputArchive = start();
+
+        assertFalse( outputArchive.archive( "tei1", OutputArchive.TRACKED_ENTITY, bytes( "payload" ) ) );
+        assertTrue( outputArchive.flush( Duration.ofSeconds( 1 ) ) );
+        assertFalse( outputArchive.read( "tei1", OutputArchive.TRACKED_ENTITY ).isPresent() );
+    }
+
+    private OutputArchive start()
+        throws Exception
+    {
+        OutputArchive outputArchive = new OutputArchive( archiveProperties );
+        outputArchive.start();
+
+        return outputArchive;
+    }
+
+    private static String read( OutputArchive outputArchive, String trackedEntityId, String type )
+    {
+        return new String( outputArchive.read( trackedEntityId, type ).orElseThrow(), StandardCharsets.UTF_8 );
+    }
+
+    private static byte[] bytes( String value )
+    {
+        return value.getBytes( StandardCharsets.UTF_8 );
+    }
+}
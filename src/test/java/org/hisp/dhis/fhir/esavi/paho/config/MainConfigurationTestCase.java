@@ -0,0 +1,43 @@
+package org.hisp.dhis.fhir.esavi.paho.config;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.hisp.dhis.integration.esavi.config.MainConfiguration;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MainConfigurationTestCase
+{
+    private final ConnectionKeepAliveStrategy keepAliveStrategy = MainConfiguration.keepAliveStrategy( 300_000 );
+
+    @Test
+    public void testKeepAliveWithoutServerTimeout()
+    {
+        assertEquals( 300_000, keepAliveStrategy.getKeepAliveDuration( response( null ), new BasicHttpContext() ) );
+    }
+
+    @Test
+    public void testShorterServerTimeoutWins()
+    {
+        assertEquals( 5_000,
+            keepAliveStrategy.getKeepAliveDuration( response( "timeout=5, max=100" ), new BasicHttpContext() ) );
+        assertEquals( 300_000,
+            keepAliveStrategy.getKeepAliveDuration( response( "timeout=600" ), new BasicHttpContext() ) );
+    }
+
+    private static HttpResponse response( String keepAlive )
+    {
+        HttpResponse response = new BasicHttpResponse( HttpVersion.HTTP_1_1, 200, "OK" );
+
+        if ( keepAlive != null )
+        {
+            response.setHeader( "Keep-Alive", keepAlive );
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,34 @@
+package org.hisp.dhis.fhir.esavi.paho.config;
+
+import org.hisp.dhis.integration.esavi.config.properties.PipelineProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PipelinePropertiesTestCase
+{
+    @Test
+    public void testRetryAfterSecondsRoundsUp()
+    {
+        assertEquals( 1, retryAfterSeconds( Duration.ofSeconds( 1 ) ) );
+        assertEquals( 2, retryAfterSeconds( Duration.ofMillis( 1500 ) ) );
+        assertEquals( 30, retryAfterSeconds( Duration.ofSeconds( 30 ) ) );
+    }
+
+    @Test
+    public void testSubSecondRetryAfterIsAtLeastOneSecond()
+    {
+        assertEquals( 1, retryAfterSeconds( Duration.ofMillis( 200 ) ) );
+        assertEquals( 1, retryAfterSeconds( Duration.ZERO ) );
+    }
+
+    private static long retryAfterSeconds( Duration retryAfter )
+    {
+        PipelineProperties pipelineProperties = new PipelineProperties();
+        pipelineProperties.setRetryAfter( retryAfter );
+
+        return pipelineProperties.getRetryAfterSeconds();
+    }
+}
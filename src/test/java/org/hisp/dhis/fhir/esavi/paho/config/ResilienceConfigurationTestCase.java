@@ -0,0 +1,62 @@
+package org.hisp.dhis.fhir.esavi.paho.config;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import org.hisp.dhis.integration.esavi.config.ResilienceConfiguration;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ResilienceConfigurationTestCase
+{
+    @Test
+    public void testOneBulkheadPerDependency()
+    {
+        DhisProperties dhisProperties = new DhisProperties();
+        dhisProperties.getResilience().setMaxConcurrentCalls( 2 );
+        dhisProperties.getResilience().setMaxWait( Duration.ZERO );
+        ResilienceConfiguration resilienceConfiguration = new ResilienceConfiguration( dhisProperties,
+            new FhirProperties() );
+        BulkheadRegistry bulkheadRegistry = resilienceConfiguration.bulkheadRegistry();
+
+        Bulkhead dhis2Bulkhead = resilienceConfiguration.dhis2Bulkhead( bulkheadRegistry );
+        assertSame( dhis2Bulkhead, bulkheadRegistry.bulkhead( "dhis2" ) );
+        assertEquals( 2, dhis2Bulkhead.getBulkheadConfig().getMaxConcurrentCalls() );
+
+        // the probe and the build of a case draw from the same permits
+        dhis2Bulkhead.acquirePermission();
+        dhis2Bulkhead.acquirePermission();
+        assertThrows( BulkheadFullException.class, dhis2Bulkhead::acquirePermission );
+    }
+
+    @Test
+    public void testFullBulkheadDoesNotOpenTheCircuit()
+    {
+        ResilienceConfiguration resilienceConfiguration = new ResilienceConfiguration( new DhisProperties(),
+            new FhirProperties() );
+        CircuitBreakerRegistry circuitBreakerRegistry = resilienceConfiguration.circuitBreakerRegistry();
+        CircuitBreaker circuitBreaker = resilienceConfiguration.dhis2CircuitBreaker( circuitBreakerRegistry );
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            circuitBreaker.onError( 0, TimeUnit.NANOSECONDS,
+                BulkheadFullException.createBulkheadFullException( Bulkhead.ofDefaults( "dhis2" ) ) );
+        }
+
+        assertEquals( CircuitBreaker.State.CLOSED, circuitBreaker.getState() );
+        assertFalse( circuitBreaker.getCircuitBreakerConfig().getIgnoreExceptionPredicate()
+            .test( new IOException() ) );
+    }
+}
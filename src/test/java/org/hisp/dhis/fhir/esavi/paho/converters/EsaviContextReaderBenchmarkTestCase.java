@@ -0,0 +1,45 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import org.hisp.dhis.fhir.esavi.paho.Benchmark;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.api.model.v2_38_1.TrackedEntity;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.OBJECT_MAPPER;
+
+/**
+ * Compares building {@link EsaviContext} from the generated {@link TrackedEntity} model (the previous ingest path)
+ * with {@link EsaviContextReader}.
+ */
+@Tag( "benchmark" )
+public class EsaviContextReaderBenchmarkTestCase
+{
+    private static final int WARMUP = 20_000;
+
+    private static final int ITERATIONS = 100_000;
+
+    @Test
+    public void benchmarkIngest()
+        throws Exception
+    {
+        byte[] payload = EsaviContextReaderTestCase.fixture();
+        DhisProperties dhisProperties = EsaviContextReaderTestCase.dhisProperties();
+        EsaviContextReader esaviContextReader = new EsaviContextReader( dhisProperties.getEsaviProgramStageId() );
+
+        Benchmark.run( "model (TrackedEntity -> EsaviContext)", WARMUP, ITERATIONS, () -> {
+            for ( TrackedEntity trackedEntity : OBJECT_MAPPER.readValue( payload,
+                EsaviContextReaderTestCase.TrackedEntities.class ).getInstances() )
+            {
+                new EsaviContext( trackedEntity, dhisProperties );
+            }
+        } );
+
+        Benchmark.run( "streaming (EsaviContextReader)", WARMUP, ITERATIONS,
+            () -> esaviContextReader.read( new ByteArrayInputStream( payload ) ) );
+    }
+}
@@ -0,0 +1,231 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hisp.dhis.api.model.v2_38_1.TrackedEntity;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EsaviContextReaderTestCase
+{
+    public static final String ESAVI_PROGRAM_STAGE_ID = "lSpdre0srBn";
+
+    public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+        .configure( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false );
+
+    private final EsaviContextReader esaviContextReader = new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID );
+
+    @Test
+    public void testStreamingContextMatchesModelContext()
+        throws Exception
+    {
+        byte[] payload = fixture();
+
+        EsaviContext streamed = esaviContextReader.read( new ByteArrayInputStream( payload ) ).get( 0 );
+        EsaviContext model = new EsaviContext( OBJECT_MAPPER.readValue( payload, TrackedEntities.class )
+            .getInstances().get( 0 ), dhisProperties() );
+
+        assertEquals( "Qe7eK1Kq4VZ", streamed.getTrackedEntityId() );
+        assertEquals( "2023-11-13", streamed.getCompletedDate() );
+        assertEquals( "Acme", streamed.getOrgUnitName() );
+        assertEquals( 3, streamed.getAttributes().size() );
+        assertEquals( 4, streamed.getDataValues().size() );
+        assertEquals( 4, streamed.getTimestamps().size() );
+
+        assertEquals( model.getTrackedEntityId(), streamed.getTrackedEntityId() );
+        assertEquals( model.getCompletedDate(), streamed.getCompletedDate() );
+        assertEquals( model.getOrgUnitName(), streamed.getOrgUnitName() );
+        assertEquals( model.getAttributes(), streamed.getAttributes() );
+        assertEquals( model.getDataValues(), streamed.getDataValues() );
+
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        assertEquals( fhirContext.newJsonParser().encodeResourceToString( EsaviProfile.create( model ) ),
+            fhirContext.newJsonParser().encodeResourceToString( EsaviProfile.create( streamed ) ) );
+    }
+
+    /**
+     * Reads the unfiltered fixture and the fixture reduced to {@link EsaviContext#FIELDS}, as DHIS2 would return it.
+     * Fails as soon as the reader or the model constructor reads a field the filter does not list.
+     */
+    @Test
+    public void testFieldsFilterKeepsEverythingTheContextReads()
+        throws Exception
+    {
+        byte[] payload = fixture();
+        byte[] filtered = OBJECT_MAPPER.writeValueAsBytes( filter( payload, EsaviContext.FIELDS ) );
+
+        assertTrue( filtered.length < payload.length );
+        assertEquals( esaviContextReader.read( new ByteArrayInputStream( payload ) ),
+            esaviContextReader.read( new ByteArrayInputStream( filtered ) ) );
+        assertEquals(
+            new EsaviContext( OBJECT_MAPPER.readValue( payload, TrackedEntities.class ).getInstances().get( 0 ),
+                dhisProperties() ),
+            new EsaviContext( OBJECT_MAPPER.readValue( filtered, TrackedEntities.class ).getInstances().get( 0 ),
+                dhisProperties() ) );
+    }
+
+    @Test
+    public void testEmptyPage()
+        throws Exception
+    {
+        assertTrue( esaviContextReader.read( stream( "{\"page\":1,\"instances\":[]}" ) ).isEmpty() );
+    }
+
+    @Test
+    public void testNotEnrolled()
+        throws Exception
+    {
+        List<EsaviContext> contexts = esaviContextReader.read(
+            stream( "{\"instances\":[{\"trackedEntity\":\"Qe7eK1Kq4VZ\",\"enrollments\":[]}]}" ) );
+
+        assertEquals( 1, contexts.size() );
+        assertThrows( RuntimeException.class, () -> contexts.get( 0 ).getOrgUnitName() );
+    }
+
+    @Test
+    public void testReadAllDocuments()
+        throws Exception
+    {
+        String trackedEntity = "{\"trackedEntity\":\"Qe7eK1Kq4VZ\",\"enrollments\":[]}";
+        List<EsaviContext> contexts = new ArrayList<>();
+
+        long skipped = esaviContextReader.readAll( stream( new String( fixture(), StandardCharsets.UTF_8 ) + "\n"
+            + trackedEntity + "\n" + "{\"resourceType\":\"QuestionnaireResponse\"}\n" + trackedEntity ),
+            contexts::add );
+
+        assertEquals( 3, contexts.size() );
+        assertEquals( 1, skipped );
+        assertEquals( "Acme", contexts.get( 0 ).getOrgUnitName() );
+        contexts.forEach( ctx -> assertEquals( "Qe7eK1Kq4VZ", ctx.getTrackedEntityId() ) );
+    }
+
+    public static byte[] fixture()
+        throws Exception
+    {
+        return Thread.currentThread().getContextClassLoader()
+            .getResourceAsStream( "warm-up/tracked-entities.dhis2.json" ).readAllBytes();
+    }
+
+    public static DhisProperties dhisProperties()
+    {
+        DhisProperties dhisProperties = new DhisProperties();
+        dhisProperties.setEsaviProgramStageId( ESAVI_PROGRAM_STAGE_ID );
+
+        return dhisProperties;
+    }
+
+    private static JsonNode filter( byte[] payload, String fields )
+        throws Exception
+    {
+        ObjectNode page = (ObjectNode) OBJECT_MAPPER.readTree( payload );
+        Map<String, Map<String, ?>> tree = parseFields( fields, new int[] { 0 } );
+
+        page.get( "instances" ).forEach( trackedEntity -> retain( trackedEntity, tree ) );
+
+        return page;
+    }
+
+    private static void retain( JsonNode node, Map<String, Map<String, ?>> fields )
+    {
+        if ( node.isArray() )
+        {
+            node.forEach( element -> retain( element, fields ) );
+        }
+        else if ( node.isObject() )
+        {
+            ((ObjectNode) node).retain( fields.keySet() );
+            fields.forEach( ( field, children ) -> {
+                if ( !children.isEmpty() && node.has( field ) )
+                {
+                    retain( node.get( field ), castFields( children ) );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Parses a DHIS2 {@code fields} filter such as {@code a,b[c,d]} into a tree of field names.
+     */
+    private static Map<String, Map<String, ?>> parseFields( String fields, int[] position )
+    {
+        Map<String, Map<String, ?>> tree = new LinkedHashMap<>();
+        StringBuilder name = new StringBuilder();
+
+        while ( position[0] < fields.length() )
+        {
+            char c = fields.charAt( position[0]++ );
+
+            if ( c == '[' )
+            {
+                tree.put( name.toString(), parseFields( fields, position ) );
+                name.setLength( 0 );
+            }
+            else if ( c == ']' )
+            {
+                break;
+            }
+            else if ( c == ',' )
+            {
+                if ( name.length() > 0 )
+                {
+                    tree.put( name.toString(), Map.of() );
+                    name.setLength( 0 );
+                }
+            }
+            else
+            {
+                name.append( c );
+            }
+        }
+
+        if ( name.length() > 0 )
+        {
+            tree.put( name.toString(), Map.of() );
+        }
+
+        return tree;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Map<String, Map<String, ?>> castFields( Map<String, ?> fields )
+    {
+        return (Map<String, Map<String, ?>>) fields;
+    }
+
+    private static ByteArrayInputStream stream( String json )
+    {
+        return new ByteArrayInputStream( json.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    public static class TrackedEntities
+    {
+        private List<TrackedEntity> instances;
+
+        public List<TrackedEntity> getInstances()
+        {
+            return instances;
+        }
+
+        public void setInstances( List<TrackedEntity> instances )
+        {
+            this.instances = instances;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hisp.dhis.fhir.esavi.paho.Benchmark;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a FHIR context costs (the reason routes share the configured one
+ * instead of {@code marshal().fhirJson( "R4", true )} creating one per data
+ * format), and encoding with a new parser per message versus the parsers kept
+ * per thread by {@link FhirJson}.
+ */
+@Tag( "benchmark" )
+public class FhirJsonBenchmarkTestCase
+{
+    private static final int CONTEXTS = 5;
+
+    private static final int WARMUP = 2_000;
+
+    private static final int ITERATIONS = 10_000;
+
+    @Test
+    public void benchmarkContextCreation()
+    {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        List<FhirContext> contexts = new ArrayList<>();
+
+        System.gc();
+        long heapBefore = memoryMXBean.getHeapMemoryUsage().getUsed();
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < CONTEXTS; i++ )
+        {
+            // what each route data format does on first use
+            FhirContext fhirContext = FhirContext.forR4();
+            for ( String resourceType : List.of( "Bundle", "QuestionnaireResponse", "OperationOutcome" ) )
+            {
+                fhirContext.getResourceDefinition( resourceType );
+            }
+            fhirContext.newJsonParser().encodeResourceToString( new QuestionnaireResponse() );
+            contexts.add( fhirContext );
+        }
+
+        long elapsed = System.nanoTime() - start;
+        System.gc();
+        long retained = memoryMXBean.getHeapMemoryUsage().getUsed() - heapBefore;
+
+        Benchmark.report( "FhirContext creation", elapsed / 1e6 / contexts.size(), "ms/context" );
+        Benchmark.report( "FhirContext creation", retained / 1024.0 / 1024.0 / contexts.size(),
+            "MB/context retained" );
+    }
+
+    @Test
+    public void benchmarkEncoding()
+        throws Exception
+    {
+        QuestionnaireResponse questionnaireResponse = FhirJsonTestCase.questionnaireResponse();
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        FhirJson fhirJson = new FhirJson( fhirContext );
+
+        Benchmark.run( "new parser per message", WARMUP, ITERATIONS,
+            () -> fhirContext.newJsonParser().setPrettyPrint( true ).encodeResourceToString( questionnaireResponse ) );
+
+        Benchmark.run( "parser per thread (FhirJson)", WARMUP, ITERATIONS,
+            () -> fhirJson.encodePretty( questionnaireResponse ) );
+
+        Benchmark.run( "compact, parser per thread (FhirJson)", WARMUP, ITERATIONS,
+            () -> fhirJson.encode( questionnaireResponse ) );
+    }
+}
@@ -0,0 +1,76 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.ESAVI_PROGRAM_STAGE_ID;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.fixture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FhirJsonTestCase
+{
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    private final FhirJson fhirJson = new FhirJson( fhirContext );
+
+    @Test
+    public void testEncodesLikeANewParser()
+        throws Exception
+    {
+        QuestionnaireResponse questionnaireResponse = questionnaireResponse();
+
+        assertEquals( fhirContext.newJsonParser().encodeResourceToString( questionnaireResponse ),
+            fhirJson.encode( questionnaireResponse ) );
+        assertEquals( fhirContext.newJsonParser().setPrettyPrint( true ).encodeResourceToString( questionnaireResponse ),
+            fhirJson.encodePretty( questionnaireResponse ) );
+        assertEquals( fhirContext.newXmlParser().encodeResourceToString( questionnaireResponse ),
+            fhirJson.parser( EncodingEnum.XML, false ).encodeResourceToString( questionnaireResponse ) );
+        assertSame( fhirJson.parser( EncodingEnum.XML, true ), fhirJson.parser( EncodingEnum.XML, true ) );
+
+        // parsers are per thread, another thread encodes the same
+        assertEquals( fhirJson.encode( questionnaireResponse ),
+            CompletableFuture.supplyAsync( () -> fhirJson.encode( questionnaireResponse ) ).get() );
+    }
+
+    @Test
+    public void testDataFormatRoundTrip()
+        throws Exception
+    {
+        QuestionnaireResponse questionnaireResponse = questionnaireResponse();
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        fhirJson.marshal( exchange, questionnaireResponse, out );
+
+        assertEquals( fhirJson.encode( questionnaireResponse ), out.toString( StandardCharsets.UTF_8 ) );
+        assertEquals( "application/fhir+json", exchange.getMessage().getHeader( Exchange.CONTENT_TYPE ) );
+
+        QuestionnaireResponse parsed = (QuestionnaireResponse) fhirJson.unmarshal( exchange,
+            new ByteArrayInputStream( out.toByteArray() ) );
+        assertTrue( questionnaireResponse.equalsDeep( parsed ) );
+        assertTrue( questionnaireResponse.equalsDeep(
+            fhirJson.parse( QuestionnaireResponse.class, fhirJson.encodePretty( questionnaireResponse ) ) ) );
+    }
+
+    static QuestionnaireResponse questionnaireResponse()
+        throws Exception
+    {
+        return EsaviProfile.create( new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID )
+            .read( new ByteArrayInputStream( fixture() ) ).get( 0 ) );
+    }
+}
@@ -0,0 +1,113 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import org.hisp.dhis.api.model.v2_38_1.OptionSet;
+import org.hisp.dhis.fhir.esavi.paho.SyntheticCases;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.ESAVI_PROGRAM_STAGE_ID;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.OBJECT_MAPPER;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SyntheticCasesTestCase
+{
+    private static final int CASES = 2_000;
+
+    private final EsaviContextReader esaviContextReader = new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID );
+
+    @BeforeAll
+    public static void beforeAll()
+        throws Exception
+    {
+        for ( String optionSet : List.of( EsaviProfile.OPTIONSET_WHODRUG_COVID, EsaviProfile.OPTIONSET_MEDDRA,
+            EsaviProfile.OPTIONSET_DILUENTS, EsaviProfile.OPTIONSET_DISTRITOS, EsaviProfile.OPTIONSET_LUGAR_VACUNACION,
+            SyntheticCases.OPTIONSET_MEDICINES, SyntheticCases.OPTIONSET_DOSAGE_FORMS, SyntheticCases.OPTIONSET_ROUTES ) )
+        {
+            EsaviContext.addOptionSet( OBJECT_MAPPER.readValue( SyntheticCases.optionSet( optionSet ),
+                OptionSet.class ) );
+        }
+    }
+
+    @Test
+    public void testEveryCaseConverts()
+        throws Exception
+    {
+        SyntheticCases cases = new SyntheticCases( 42 );
+        int serious = 0;
+        int withMedicines = 0;
+
+        for ( int i = 0; i < CASES; i++ )
+        {
+            String trackedEntityId = cases.trackedEntityId( i );
+            EsaviContext ctx = read( cases.trackedEntities( trackedEntityId ) );
+            QuestionnaireResponse questionnaireResponse = EsaviProfile.create( ctx );
+
+            assertEquals( trackedEntityId, questionnaireResponse.getId() );
+            assertTrue( ctx.hasDataElement( EsaviProfile.VACCINE_1 ) );
+            assertTrue( ctx.hasDataElement( "PZxZirhNzgS" ) );
+
+            serious += ctx.dataElementIsTrue( "fq1c1A3EOX5" ) ? 1 : 0;
+            withMedicines += ctx.hasDataElement( "YDhHKT2hE8j" ) ? 1 : 0;
+        }
+
+        // defaults: 10% serious, 40% with concomitant medicines
+        assertTrue( serious > CASES * 0.07 && serious < CASES * 0.13, "serious: " + serious );
+        assertTrue( withMedicines > CASES * 0.35 && withMedicines < CASES * 0.45, "with medicines: " + withMedicines );
+    }
+
+    @Test
+    public void testCasesAreReproducible()
+    {
+        SyntheticCases cases = new SyntheticCases( 7 );
+        String trackedEntityId = cases.trackedEntityId( 3 );
+
+        assertEquals( trackedEntityId, new SyntheticCases( 7 ).trackedEntityId( 3 ) );
+        assertNotEquals( trackedEntityId, cases.trackedEntityId( 4 ) );
+        assertEquals( 11, trackedEntityId.length() );
+        assertArrayEquals( cases.trackedEntities( trackedEntityId ),
+            new SyntheticCases( 7 ).trackedEntities( trackedEntityId ) );
+    }
+
+    @Test
+    public void testDistributionsAreConfigurable()
+        throws Exception
+    {
+        SyntheticCases cases = new SyntheticCases( 42 )
+            .setSeriousRate( 1 )
+            .setVaccines( new SyntheticCases.Weighted<String>().add( "SYN-MOD", 1 ) )
+            .setVaccinesPerCase( new SyntheticCases.Weighted<Integer>().add( 1, 1 ) )
+            .setEsavisPerCase( new SyntheticCases.Weighted<Integer>().add( 2, 1 ) );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            EsaviContext ctx = read( cases.trackedEntities( cases.trackedEntityId( i ) ) );
+
+            assertTrue( ctx.dataElementIsTrue( "fq1c1A3EOX5" ) );
+            assertEquals( "SYN-MOD", ctx.dataElement( EsaviProfile.VACCINE_1 ) );
+            assertFalse( ctx.hasDataElement( EsaviProfile.VACCINE_2 ) );
+            assertTrue( ctx.hasDataElement( "maY0Vi68Fv9" ) );
+            assertFalse( ctx.hasDataElement( "Sy1uqYvgR3r" ) );
+            EsaviProfile.create( ctx );
+        }
+    }
+
+    private EsaviContext read( byte[] page )
+        throws Exception
+    {
+        List<EsaviContext> contexts = esaviContextReader.read( new ByteArrayInputStream( page ) );
+        assertEquals( 1, contexts.size() );
+
+        return contexts.get( 0 );
+    }
+}
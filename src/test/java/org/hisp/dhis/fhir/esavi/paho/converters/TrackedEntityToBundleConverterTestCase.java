@@ -0,0 +1,79 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.converters.TrackedEntityToBundleConverter;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.ESAVI_PROGRAM_STAGE_ID;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.dhisProperties;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.fixture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TrackedEntityToBundleConverterTestCase
+{
+    @Test
+    public void testIdentifierWriteStrategy()
+        throws Exception
+    {
+        Bundle bundle = convert( FhirProperties.WriteStrategy.IDENTIFIER, context() );
+
+        assertEquals( Bundle.BundleType.BATCH, bundle.getType() );
+        assertEquals( Bundle.HTTPVerb.PUT, bundle.getEntryFirstRep().getRequest().getMethod() );
+        assertEquals( "QuestionnaireResponse?identifier=http://ops.org/esavi/PRY|DEM_2023_11_09_000002",
+            bundle.getEntryFirstRep().getRequest().getUrl() );
+    }
+
+    @Test
+    public void testClientIdWriteStrategy()
+        throws Exception
+    {
+        Bundle bundle = convert( FhirProperties.WriteStrategy.CLIENT_ID, context() );
+
+        assertEquals( Bundle.BundleType.BATCH, bundle.getType() );
+        assertEquals( "QuestionnaireResponse/Qe7eK1Kq4VZ", bundle.getEntryFirstRep().getRequest().getUrl() );
+    }
+
+    @Test
+    public void testTransactionWriteStrategy()
+        throws Exception
+    {
+        Bundle bundle = convert( FhirProperties.WriteStrategy.TRANSACTION, context() );
+
+        assertEquals( Bundle.BundleType.TRANSACTION, bundle.getType() );
+        assertEquals( Bundle.HTTPVerb.PUT, bundle.getEntryFirstRep().getRequest().getMethod() );
+        assertEquals( "QuestionnaireResponse/Qe7eK1Kq4VZ", bundle.getEntryFirstRep().getRequest().getUrl() );
+    }
+
+    @Test
+    public void testIdentifierValueIsEscaped()
+        throws Exception
+    {
+        EsaviContext ctx = context();
+        ctx.getAttributes().put( "KSr2yTdu1AI", "DEM 1&2" );
+
+        assertEquals( "QuestionnaireResponse?identifier=http://ops.org/esavi/PRY|DEM+1%262",
+            convert( FhirProperties.WriteStrategy.IDENTIFIER, ctx ).getEntryFirstRep().getRequest().getUrl() );
+    }
+
+    private static Bundle convert( FhirProperties.WriteStrategy writeStrategy, EsaviContext ctx )
+    {
+        FhirProperties fhirProperties = new FhirProperties();
+        fhirProperties.setWriteStrategy( writeStrategy );
+
+        return new TrackedEntityToBundleConverter( dhisProperties(), fhirProperties ).contextToBundle( ctx,
+            new DefaultExchange( new DefaultCamelContext() ) );
+    }
+
+    private static EsaviContext context()
+        throws Exception
+    {
+        return new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID ).read( new ByteArrayInputStream( fixture() ) ).get( 0 );
+    }
+}
@@ -0,0 +1,195 @@
+package org.hisp.dhis.fhir.esavi.paho.converters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.api.model.v2_38_1.OptionSet;
+import org.hisp.dhis.fhir.esavi.paho.Benchmark;
+import org.hisp.dhis.fhir.esavi.paho.FhirStub;
+import org.hisp.dhis.fhir.esavi.paho.SyntheticCases;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.converters.TrackedEntityToBundleConverter;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.ESAVI_PROGRAM_STAGE_ID;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.OBJECT_MAPPER;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.dhisProperties;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes the same synthetic cases twice, as created and as resubmitted, to
+ * the FHIR stand-in with each write strategy, and reports the searches the
+ * server runs and the resources it ends up with. Every search of a
+ * conditional update takes {@link #SEARCH_LATENCY}, in place of the indexed
+ * token query of a populated FHIR server. The previous request URL, a
+ * conditional update on the resource id, is included for comparison.
+ */
+@Tag( "benchmark" )
+public class WriteStrategyBenchmarkTestCase
+{
+    private static final int CASES = 1_000;
+
+    private static final int CONCURRENCY = 8;
+
+    private static final Duration SEARCH_LATENCY = Duration.ofMillis( 5 );
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4Cached();
+
+    @BeforeAll
+    public static void beforeAll()
+        throws Exception
+    {
+        for ( String optionSet : List.of( EsaviProfile.OPTIONSET_WHODRUG_COVID, EsaviProfile.OPTIONSET_MEDDRA,
+            EsaviProfile.OPTIONSET_DILUENTS, EsaviProfile.OPTIONSET_DISTRITOS, EsaviProfile.OPTIONSET_LUGAR_VACUNACION,
+            SyntheticCases.OPTIONSET_MEDICINES, SyntheticCases.OPTIONSET_DOSAGE_FORMS, SyntheticCases.OPTIONSET_ROUTES ) )
+        {
+            EsaviContext.addOptionSet( OBJECT_MAPPER.readValue( SyntheticCases.optionSet( optionSet ),
+                OptionSet.class ) );
+        }
+    }
+
+    @Test
+    public void benchmarkWriteStrategies()
+        throws Exception
+    {
+        List<EsaviContext> contexts = contexts();
+        Set<String> identifiers = new HashSet<>();
+        contexts.forEach( ctx -> identifiers.add( ctx.attribute( "KSr2yTdu1AI" ) ) );
+
+        // resubmissions of the previous URL never match and create a resource every time
+        Run previous = run( "identifier=<resource id> (previous)", bundles( contexts,
+            FhirProperties.WriteStrategy.IDENTIFIER, true ) );
+        assertEquals( 2 * CASES, previous.searches );
+        assertEquals( 2 * CASES, previous.resources );
+
+        Run identifier = run( "identifier=system|value", bundles( contexts,
+            FhirProperties.WriteStrategy.IDENTIFIER, false ) );
+        assertEquals( 2 * CASES, identifier.searches );
+        assertEquals( identifiers.size(), identifier.resources );
+
+        for ( FhirProperties.WriteStrategy writeStrategy : List.of( FhirProperties.WriteStrategy.CLIENT_ID,
+            FhirProperties.WriteStrategy.TRANSACTION ) )
+        {
+            Run run = run( writeStrategy.name(), bundles( contexts, writeStrategy, false ) );
+            assertEquals( 0, run.searches );
+            assertEquals( CASES, run.resources );
+        }
+    }
+
+    private static List<EsaviContext> contexts()
+        throws Exception
+    {
+        SyntheticCases cases = new SyntheticCases( 50 );
+        EsaviContextReader esaviContextReader = new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID );
+        List<EsaviContext> contexts = new ArrayList<>();
+
+        for ( int i = 0; i < CASES; i++ )
+        {
+            contexts.addAll( esaviContextReader.read( new ByteArrayInputStream(
+                cases.trackedEntities( cases.trackedEntityId( i ) ) ) ) );
+        }
+
+        return contexts;
+    }
+
+    private static List<String> bundles( List<EsaviContext> contexts, FhirProperties.WriteStrategy writeStrategy,
+        boolean previousUrl )
+    {
+        FhirProperties fhirProperties = new FhirProperties();
+        fhirProperties.setWriteStrategy( writeStrategy );
+        TrackedEntityToBundleConverter converter = new TrackedEntityToBundleConverter( dhisProperties(),
+            fhirProperties );
+        DefaultCamelContext camelContext = new DefaultCamelContext();
+        List<String> bundles = new ArrayList<>();
+
+        for ( EsaviContext ctx : contexts )
+        {
+            Bundle bundle = converter.contextToBundle( ctx, new DefaultExchange( camelContext ) );
+
+            if ( previousUrl )
+            {
+                bundle.getEntryFirstRep().getRequest().setUrl( "QuestionnaireResponse?identifier="
+                    + ctx.getTrackedEntityId() );
+            }
+
+            bundles.add( FHIR_CONTEXT.newJsonParser().encodeResourceToString( bundle ) );
+        }
+
+        return bundles;
+    }
+
+    private static Run run( String name, List<String> bundles )
+        throws Exception
+    {
+        ExecutorService executorService = Executors.newFixedThreadPool( CONCURRENCY );
+
+        try ( FhirStub fhirStub = new FhirStub() )
+        {
+            fhirStub.setSearchDelay( SEARCH_LATENCY );
+            FHIR_CONTEXT.getRestfulClientFactory().setServerValidationMode( ServerValidationModeEnum.NEVER );
+            IGenericClient fhirClient = FHIR_CONTEXT.newRestfulGenericClient( fhirStub.getBaseUrl() );
+
+            long start = System.nanoTime();
+
+            // created, then resubmitted unchanged
+            for ( int pass = 0; pass < 2; pass++ )
+            {
+                List<Future<?>> submissions = new ArrayList<>();
+
+                for ( String bundle : bundles )
+                {
+                    submissions.add( executorService.submit(
+                        () -> fhirClient.transaction().withBundle( bundle ).execute() ) );
+                }
+
+                for ( Future<?> submission : submissions )
+                {
+                    submission.get();
+                }
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            Benchmark.report( name, 2 * bundles.size() / (elapsed / 1e9), "bundles/s" );
+            Benchmark.report( name, fhirStub.getSearches() / (2.0 * bundles.size()), "searches/bundle" );
+            Benchmark.report( name, fhirStub.getResources(), "resources" );
+
+            return new Run( fhirStub.getSearches(), fhirStub.getResources() );
+        }
+        finally
+        {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static class Run
+    {
+        private final int searches;
+
+        private final int resources;
+
+        private Run( int searches, int resources )
+        {
+            this.searches = searches;
+            this.resources = resources;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.hisp.dhis.fhir.esavi.paho.export;
+
+import org.hisp.dhis.integration.esavi.export.AimdLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AimdLimiterTestCase
+{
+    private static final long STABLE_LATENCY = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsStable()
+        throws Exception
+    {
+        AimdLimiter limiter = new AimdLimiter( 2, 1, 8, 2.0, 0.5 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            limiter.acquire();
+            limiter.release( STABLE_LATENCY, false );
+        }
+
+        assertEquals( 8, limiter.getLimit() );
+    }
+
+    @Test
+    public void testLimitBacksOffOnLatencyAndOverload()
+        throws Exception
+    {
+        AimdLimiter limiter = new AimdLimiter( 8, 1, 8, 2.0, 0.5 );
+
+        limiter.acquire();
+        limiter.release( STABLE_LATENCY, false );
+
+        limiter.acquire();
+        limiter.release( STABLE_LATENCY * 3, false );
+        assertEquals( 4, limiter.getLimit() );
+
+        limiter.acquire();
+        limiter.release( STABLE_LATENCY, true );
+        assertEquals( 2, limiter.getLimit() );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            limiter.acquire();
+            limiter.release( STABLE_LATENCY, true );
+        }
+
+        assertEquals( 1, limiter.getLimit() );
+    }
+
+    @Test
+    public void testLimitRecoversAfterLastingLatencyRise()
+        throws Exception
+    {
+        AimdLimiter limiter = new AimdLimiter( 8, 1, 8, 2.0, 0.5 );
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            limiter.acquire();
+            limiter.release( STABLE_LATENCY, false );
+        }
+
+        // larger pages, every call from now on takes three times as long
+        for ( int i = 0; i < 5; i++ )
+        {
+            limiter.acquire();
+            limiter.release( STABLE_LATENCY * 3, false );
+        }
+
+        assertEquals( 1, limiter.getLimit() );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            limiter.acquire();
+            limiter.release( STABLE_LATENCY * 3, false );
+        }
+
+        assertEquals( 8, limiter.getLimit() );
+    }
+
+    @Test
+    public void testAcquireBlocksAtLimit()
+        throws Exception
+    {
+        AimdLimiter limiter = new AimdLimiter( 1, 1, 1, 2.0, 0.5 );
+        limiter.acquire();
+
+        CompletableFuture<Void> second = CompletableFuture.runAsync( () -> {
+            try
+            {
+                limiter.acquire();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } );
+
+        assertThrows( TimeoutException.class, () -> second.get( 200, TimeUnit.MILLISECONDS ) );
+
+        limiter.release( STABLE_LATENCY, false );
+        second.get( 5, TimeUnit.SECONDS );
+        assertTrue( second.isDone() );
+        assertEquals( 1, limiter.getInFlight() );
+    }
+}
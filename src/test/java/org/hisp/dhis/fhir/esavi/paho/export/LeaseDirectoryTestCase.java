@@ -0,0 +1,184 @@
+package org.hisp.dhis.fhir.esavi.paho.export;
+
+import org.hisp.dhis.integration.esavi.export.LeaseDirectory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LeaseDirectoryTestCase
+{
+    private static final Duration LEASE_DURATION = Duration.ofMinutes( 2 );
+
+    private static final List<LeaseDirectory.Partition> PARTITIONS = List.of(
+        new LeaseDirectory.Partition( "ImspTQPwCqd", "SELECTED" ),
+        new LeaseDirectory.Partition( "O6uvpzGd5pu", "DESCENDANTS" ) );
+
+    @TempDir
+    Path directory;
+
+    private final MutableClock clock = new MutableClock();
+
+    private LeaseDirectory nodeA;
+
+    private LeaseDirectory nodeB;
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        nodeA = new LeaseDirectory( directory, "node-a", LEASE_DURATION, 2, clock );
+        nodeB = new LeaseDirectory( directory, "node-b", LEASE_DURATION, 2, clock );
+    }
+
+    @Test
+    public void testPlanIsWrittenOnce()
+        throws Exception
+    {
+        LeaseDirectory.Plan plan = nodeA.plan( () -> PARTITIONS );
+
+        assertEquals( PARTITIONS, plan.getPartitions() );
+        assertNull( plan.getReplaced() );
+        assertEquals( plan, nodeB.plan( List::of ) );
+    }
+
+    @Test
+    public void testCompletedPlanIsReplaced()
+        throws Exception
+    {
+        LeaseDirectory.Plan completed = nodeA.plan( () -> PARTITIONS );
+        nodeA.complete( nodeA.claim( completed ).orElseThrow() );
+
+        // not complete yet, joined
+        assertEquals( completed, nodeB.plan( List::of ) );
+
+        // the other partition runs out of attempts
+        nodeB.release( nodeB.claim( completed ).orElseThrow() );
+        nodeB.release( nodeB.claim( completed ).orElseThrow() );
+        assertEquals( 0, nodeA.status( completed ).getRemaining() );
+
+        LeaseDirectory.Plan next = nodeA.plan( () -> PARTITIONS.subList( 0, 1 ) );
+
+        assertNotEquals( completed.getRunId(), next.getRunId() );
+        assertEquals( PARTITIONS.subList( 0, 1 ), next.getPartitions() );
+        assertEquals( 1, next.getReplaced().getDone() );
+        assertEquals( 1, next.getReplaced().getFailed() );
+        assertEquals( 1, nodeA.status( next ).getOpen() );
+
+        // a node still on the completed export stops, instead of exporting its partitions again
+        assertFalse( nodeB.isCurrent( completed ) );
+        assertTrue( nodeB.claim( completed ).isEmpty() );
+        assertTrue( nodeB.isCurrent( next ) );
+    }
+
+    @Test
+    public void testNodesClaimDistinctPartitions()
+        throws Exception
+    {
+        LeaseDirectory.Plan plan = nodeA.plan( () -> PARTITIONS );
+        LeaseDirectory.Lease a = nodeA.claim( plan ).orElseThrow();
+        LeaseDirectory.Lease b = nodeB.claim( plan ).orElseThrow();
+
+        assertNotEquals( a.getPartition(), b.getPartition() );
+        assertTrue( nodeA.claim( plan ).isEmpty() );
+
+        nodeA.complete( a );
+        nodeB.complete( b );
+
+        LeaseDirectory.Status status = nodeA.status( plan );
+        assertEquals( 2, status.getDone() );
+        assertEquals( 0, status.getRemaining() );
+    }
+
+    @Test
+    public void testExpiredLeaseIsReassigned()
+        throws Exception
+    {
+        LeaseDirectory.Plan plan = nodeA.plan( () -> PARTITIONS.subList( 0, 1 ) );
+        LeaseDirectory.Lease crashed = nodeA.claim( plan ).orElseThrow();
+
+        clock.advance( LEASE_DURATION.minusSeconds( 1 ) );
+        assertTrue( nodeB.claim( plan ).isEmpty() );
+
+        clock.advance( Duration.ofSeconds( 2 ) );
+        LeaseDirectory.Lease takenOver = nodeB.claim( plan ).orElseThrow();
+
+        assertEquals( crashed.getPartition(), takenOver.getPartition() );
+        assertEquals( 2, takenOver.getAttempt() );
+        assertFalse( nodeA.renew( crashed ) );
+        assertTrue( nodeB.renew( takenOver ) );
+
+        // a late completion of the node that lost the lease is ignored
+        nodeA.complete( crashed );
+        assertEquals( 1, nodeA.status( plan ).getLeased() );
+    }
+
+    @Test
+    public void testRenewalKeepsLease()
+        throws Exception
+    {
+        LeaseDirectory.Plan plan = nodeA.plan( () -> PARTITIONS.subList( 0, 1 ) );
+        LeaseDirectory.Lease lease = nodeA.claim( plan ).orElseThrow();
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            clock.advance( LEASE_DURATION.dividedBy( 2 ) );
+            assertTrue( nodeA.renew( lease ) );
+            assertTrue( nodeB.claim( plan ).isEmpty() );
+        }
+    }
+
+    @Test
+    public void testPartitionFailsAfterMaxAttempts()
+        throws Exception
+    {
+        LeaseDirectory.Plan plan = nodeA.plan( () -> PARTITIONS.subList( 0, 1 ) );
+
+        nodeA.release( nodeA.claim( plan ).orElseThrow() );
+        nodeB.release( nodeB.claim( plan ).orElseThrow() );
+
+        assertTrue( nodeA.claim( plan ).isEmpty() );
+        assertEquals( 1, nodeA.status( plan ).getFailed() );
+    }
+
+    private static class MutableClock extends Clock
+    {
+        private Instant instant = Instant.parse( "2023-11-09T10:00:00Z" );
+
+        void advance( Duration duration )
+        {
+            instant = instant.plus( duration );
+        }
+
+        @Override
+        public ZoneId getZone()
+        {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone( ZoneId zone )
+        {
+            return this;
+        }
+
+        @Override
+        public Instant instant()
+        {
+            return instant;
+        }
+    }
+}
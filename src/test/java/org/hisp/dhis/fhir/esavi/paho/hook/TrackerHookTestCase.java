@@ -0,0 +1,220 @@
+package org.hisp.dhis.fhir.esavi.paho.hook;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.config.properties.HookProperties;
+import org.hisp.dhis.integration.esavi.config.properties.PipelineProperties;
+import org.hisp.dhis.integration.esavi.hook.TrackerHook;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrackerHookTestCase
+{
+    private static final String ESAVI_PROGRAM_STAGE_ID = "lSpdre0srBn";
+
+    private static final String TOKEN = "secret";
+
+    private final List<String> built = new CopyOnWriteArrayList<>();
+
+    private HookProperties hookProperties;
+
+    private TrackerHook trackerHook;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        hookProperties = new HookProperties();
+        hookProperties.setToken( TOKEN );
+        hookProperties.setDebounce( Duration.ofMillis( 200 ) );
+        hookProperties.setMaxDelay( Duration.ofSeconds( 5 ) );
+        trackerHook = newTrackerHook( trackedEntityId -> {
+            built.add( trackedEntityId );
+            return null;
+        } );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        trackerHook.stop();
+    }
+
+    @Test
+    public void testBurstOfChangesIsFetchedOnce()
+        throws Exception
+    {
+        for ( int i = 0; i < 20; i++ )
+        {
+            trackerHook.notifyChanged( "Qe7eK1Kq4VZ" );
+            trackerHook.notifyChanged( "PQfMcpmXeFE" );
+        }
+
+        awaitIdle();
+
+        assertEquals( 2, built.size() );
+        assertTrue( built.containsAll( List.of( "Qe7eK1Kq4VZ", "PQfMcpmXeFE" ) ) );
+    }
+
+    @Test
+    public void testFetchIsNotPostponedBeyondMaxDelay()
+        throws Exception
+    {
+        hookProperties.setMaxDelay( Duration.ofMillis( 300 ) );
+        long start = System.nanoTime();
+
+        // keeps notifying for longer than max-delay, without ever being quiet for the debounce period
+        while ( built.isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 5 ) )
+        {
+            trackerHook.notifyChanged( "Qe7eK1Kq4VZ" );
+            Thread.sleep( 50 );
+        }
+
+        assertEquals( List.of( "Qe7eK1Kq4VZ" ), built );
+        assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 2 ) );
+    }
+
+    @Test
+    public void testNotificationsBeyondCapacityAreRejected()
+    {
+        hookProperties.setCapacity( 2 );
+
+        trackerHook.notifyChanged( "Qe7eK1Kq4VZ" );
+        trackerHook.notifyChanged( "PQfMcpmXeFE" );
+        trackerHook.notifyChanged( "PQfMcpmXeFE" );
+
+        assertThrows( RejectedExecutionException.class, () -> trackerHook.notifyChanged( "MKqwZ0oVrfB" ) );
+    }
+
+    @Test
+    public void testReceiveAcceptsTrackedEntitiesAndEsaviEvents()
+        throws Exception
+    {
+        Exchange exchange = exchange( "{\"events\":["
+            + "{\"event\":\"a\",\"programStage\":\"" + ESAVI_PROGRAM_STAGE_ID + "\",\"trackedEntity\":\"Qe7eK1Kq4VZ\"},"
+            + "{\"event\":\"b\",\"programStage\":\"otherStage1\",\"trackedEntity\":\"PQfMcpmXeFE\"}]}" );
+
+        trackerHook.receive( exchange );
+        trackerHook.receive( exchange( "[{\"trackedEntityInstance\":\"MKqwZ0oVrfB\"}]" ) );
+
+        assertEquals( 202, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+
+        awaitIdle();
+
+        assertEquals( 2, built.size() );
+        assertTrue( built.containsAll( List.of( "Qe7eK1Kq4VZ", "MKqwZ0oVrfB" ) ) );
+    }
+
+    @Test
+    public void testReceiveRejectsWrongTokenAndInvalidBody()
+    {
+        Exchange invalid = exchange( "not json" );
+        trackerHook.receive( invalid );
+        assertEquals( 400, invalid.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+
+        Exchange unauthorized = exchange( "{\"trackedEntity\":\"Qe7eK1Kq4VZ\"}" );
+        unauthorized.getIn().setHeader( TrackerHook.TOKEN_HEADER, "wrong" );
+        trackerHook.receive( unauthorized );
+        assertEquals( 401, unauthorized.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+
+        Exchange missing = exchange( "{\"trackedEntity\":\"Qe7eK1Kq4VZ\"}" );
+        missing.getIn().removeHeader( TrackerHook.TOKEN_HEADER );
+        trackerHook.receive( missing );
+        assertEquals( 401, missing.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+
+        Exchange authorized = exchange( "{\"trackedEntity\":\"Qe7eK1Kq4VZ\"}" );
+        trackerHook.receive( authorized );
+        assertEquals( 202, authorized.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+    }
+
+    @Test
+    public void testNoTokenConfiguredRejectsAll()
+    {
+        hookProperties.setToken( null );
+
+        Exchange exchange = exchange( "{\"trackedEntity\":\"Qe7eK1Kq4VZ\"}" );
+        trackerHook.receive( exchange );
+
+        assertEquals( 401, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+    }
+
+    @Test
+    public void testTokenIsRequiredWhenEnabled()
+    {
+        hookProperties.setToken( null );
+        assertTrue( hookProperties.isTokenSetWhenEnabled() );
+
+        hookProperties.setEnabled( true );
+        assertFalse( hookProperties.isTokenSetWhenEnabled() );
+
+        hookProperties.setToken( TOKEN );
+        assertTrue( hookProperties.isTokenSetWhenEnabled() );
+    }
+
+    @Test
+    public void testFullHookAnswers503()
+    {
+        CountDownLatch release = new CountDownLatch( 1 );
+        trackerHook.stop();
+        hookProperties.setCapacity( 1 );
+        trackerHook = newTrackerHook( trackedEntityId -> {
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        } );
+
+        trackerHook.receive( exchange( "{\"trackedEntity\":\"Qe7eK1Kq4VZ\"}" ) );
+        Exchange full = exchange( "{\"trackedEntity\":\"PQfMcpmXeFE\"}" );
+        trackerHook.receive( full );
+
+        assertEquals( 503, full.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+        release.countDown();
+    }
+
+    private TrackerHook newTrackerHook( TrackerHook.CaseBuilder caseBuilder )
+    {
+        return new TrackerHook( hookProperties, new PipelineProperties(), ESAVI_PROGRAM_STAGE_ID, caseBuilder,
+            new SimpleMeterRegistry() );
+    }
+
+    private void awaitIdle()
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 10 );
+
+        do
+        {
+            Thread.sleep( 50 );
+        }
+        while ( trackerHook.getPending() > 0 && System.nanoTime() < deadline );
+    }
+
+    private static Exchange exchange( String body )
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getIn().setBody( body );
+        exchange.getIn().setHeader( TrackerHook.TOKEN_HEADER, TOKEN );
+
+        return exchange;
+    }
+}
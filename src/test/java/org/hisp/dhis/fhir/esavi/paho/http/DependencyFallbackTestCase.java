@@ -0,0 +1,123 @@
+package org.hisp.dhis.fhir.esavi.paho.http;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.archive.OutputArchive;
+import org.hisp.dhis.integration.esavi.config.properties.ArchiveProperties;
+import org.hisp.dhis.integration.esavi.config.properties.PipelineProperties;
+import org.hisp.dhis.integration.esavi.config.properties.StoreProperties;
+import org.hisp.dhis.integration.esavi.http.ConditionalGet;
+import org.hisp.dhis.integration.esavi.http.DependencyFallback;
+import org.hisp.dhis.integration.esavi.http.SingleFlight;
+import org.hisp.dhis.integration.esavi.store.CaseStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DependencyFallbackTestCase
+{
+    @TempDir
+    Path directory;
+
+    private OutputArchive outputArchive;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private DependencyFallback dependencyFallback;
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        ArchiveProperties archiveProperties = new ArchiveProperties();
+        archiveProperties.setDirectory( directory.toString() );
+        outputArchive = new OutputArchive( archiveProperties );
+        outputArchive.start();
+
+        meterRegistry = new SimpleMeterRegistry();
+        dependencyFallback = new DependencyFallback( outputArchive, new PipelineProperties(), meterRegistry,
+            new CaseStore( new StoreProperties(), new ConditionalGet(), meterRegistry ) );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        outputArchive.stop();
+    }
+
+    @Test
+    public void testStaleCaseIsServedFromArchive()
+        throws Exception
+    {
+        outputArchive.archive( "Qe7eK1Kq4VZ", OutputArchive.QUESTIONNAIRE_RESPONSE,
+            "{\"resourceType\":\"Bundle\"}".getBytes( StandardCharsets.UTF_8 ) );
+        assertTrue( outputArchive.flush( Duration.ofSeconds( 10 ) ) );
+
+        Exchange exchange = failedExchange( CallNotPermittedException
+            .createCallNotPermittedException( CircuitBreaker.ofDefaults( "dhis2" ) ) );
+        dependencyFallback.staleCase().process( exchange );
+
+        assertEquals( 200, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+        assertEquals( "110 - \"Response is Stale\"", exchange.getMessage().getHeader( "Warning" ) );
+        assertEquals( "{\"resourceType\":\"Bundle\"}", exchange.getMessage().getBody( String.class ) );
+        assertEquals( 1, meterRegistry.counter( "esavi.dependency.fallback", "dependency", "dhis2", "reason", "open" )
+            .count() );
+    }
+
+    @Test
+    public void testRejectedWithoutArchivedCopyFailsFast()
+        throws Exception
+    {
+        Exchange exchange = failedExchange( CallNotPermittedException
+            .createCallNotPermittedException( CircuitBreaker.ofDefaults( "dhis2" ) ) );
+        dependencyFallback.staleCase().process( exchange );
+
+        assertEquals( 503, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+        assertEquals( 1L, exchange.getMessage().getHeader( "Retry-After" ) );
+    }
+
+    @Test
+    public void testFailureWithoutArchivedCopyIsRethrown()
+    {
+        Exchange exchange = failedExchange( new IOException( "connection reset" ) );
+
+        assertThrows( IOException.class, () -> dependencyFallback.staleCase().process( exchange ) );
+    }
+
+    @Test
+    public void testReadTimeoutIsCountedAsTimeout()
+        throws Exception
+    {
+        Exchange exchange = failedExchange( new RuntimeException( "DHIS2 request failed",
+            new SocketTimeoutException( "Read timed out" ) ) );
+        dependencyFallback.staleCase().process( exchange );
+
+        assertEquals( 503, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+        assertEquals( 1, meterRegistry.counter( "esavi.dependency.fallback", "dependency", "dhis2", "reason",
+            "timeout" ).count() );
+    }
+
+    private Exchange failedExchange( Throwable cause )
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getIn().setHeader( SingleFlight.KEY_HEADER, "Qe7eK1Kq4VZ" );
+        exchange.setProperty( Exchange.EXCEPTION_CAUGHT, cause );
+
+        return exchange;
+    }
+}
@@ -0,0 +1,230 @@
+package org.hisp.dhis.fhir.esavi.paho.http;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hisp.dhis.integration.esavi.http.FhirHttpBinding;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FhirHttpBindingTestCase
+{
+    private final FhirJson fhirJson = new FhirJson( FhirContext.forR4Cached() );
+
+    private final FhirHttpBinding fhirHttpBinding = new FhirHttpBinding( fhirJson );
+
+    private final QuestionnaireResponse questionnaireResponse = questionnaireResponse();
+
+    @Test
+    public void testNegotiateMediaType()
+    {
+        assertEquals( Optional.of( "application/fhir+json" ), FhirHttpBinding.negotiateMediaType( null, null ) );
+        assertEquals( Optional.of( "application/fhir+json" ), FhirHttpBinding.negotiateMediaType( null, "*/*" ) );
+        assertEquals( Optional.of( "application/fhir+json" ),
+            FhirHttpBinding.negotiateMediaType( null, "text/html" ) );
+        assertEquals( Optional.of( "application/fhir+xml" ),
+            FhirHttpBinding.negotiateMediaType( null, "application/fhir+xml" ) );
+        assertEquals( Optional.of( "application/xml" ),
+            FhirHttpBinding.negotiateMediaType( null, "application/json;q=0.5, application/xml" ) );
+        assertEquals( Optional.of( "application/json" ),
+            FhirHttpBinding.negotiateMediaType( null, "text/xml;q=0.8, application/json;q=0.9" ) );
+
+        // _format wins over Accept, and a + decoded to a space is tolerated
+        assertEquals( Optional.of( "application/fhir+xml" ),
+            FhirHttpBinding.negotiateMediaType( "xml", "application/fhir+json" ) );
+        assertEquals( Optional.of( "application/fhir+json" ),
+            FhirHttpBinding.negotiateMediaType( "application/fhir json", null ) );
+        assertEquals( Optional.empty(), FhirHttpBinding.negotiateMediaType( "html", null ) );
+    }
+
+    @Test
+    public void testNegotiateContentEncoding()
+    {
+        assertEquals( Optional.empty(), FhirHttpBinding.negotiateContentEncoding( null ) );
+        assertEquals( Optional.empty(), FhirHttpBinding.negotiateContentEncoding( "identity" ) );
+        assertEquals( Optional.of( "gzip" ), FhirHttpBinding.negotiateContentEncoding( "gzip, deflate, br" ) );
+        assertEquals( Optional.of( "deflate" ), FhirHttpBinding.negotiateContentEncoding( "deflate" ) );
+        assertEquals( Optional.of( "deflate" ),
+            FhirHttpBinding.negotiateContentEncoding( "gzip;q=0.5, deflate;q=0.8" ) );
+        assertEquals( Optional.of( "gzip" ), FhirHttpBinding.negotiateContentEncoding( "*" ) );
+        assertEquals( Optional.of( "deflate" ), FhirHttpBinding.negotiateContentEncoding( "gzip;q=0, *" ) );
+        assertEquals( Optional.empty(), FhirHttpBinding.negotiateContentEncoding( "*;q=0" ) );
+    }
+
+    @Test
+    public void testCompactJsonIsWrittenAsProduced()
+        throws Exception
+    {
+        byte[] payload = fhirJson.encode( questionnaireResponse ).getBytes( StandardCharsets.UTF_8 );
+        MockHttpServletResponse response = write( payload, Map.of() );
+
+        assertEquals( 200, response.getStatus() );
+        assertTrue( response.getContentType().startsWith( "application/fhir+json" ) );
+        assertEquals( payload.length, response.getContentLength() );
+        assertArrayEquals( payload, response.getContentAsByteArray() );
+        assertEquals( "Accept, Accept-Encoding", response.getHeader( "Vary" ) );
+    }
+
+    @Test
+    public void testPrettyAndXml()
+        throws Exception
+    {
+        String json = fhirJson.encode( questionnaireResponse );
+        byte[] payload = json.getBytes( StandardCharsets.UTF_8 );
+        QuestionnaireResponse parsed = fhirJson.parse( QuestionnaireResponse.class, json );
+
+        // a stored or stale case comes without the resource
+        MockHttpServletResponse pretty = write( payload, Map.of( "_pretty", "true" ) );
+        assertEquals( fhirJson.encodePretty( parsed ), pretty.getContentAsString( StandardCharsets.UTF_8 ) );
+
+        MockHttpServletResponse xml = write( payload, Map.of( "Accept", "application/fhir+xml" ) );
+        assertTrue( xml.getContentType().startsWith( "application/fhir+xml" ) );
+        assertEquals( fhirJson.parser( EncodingEnum.XML, false ).encodeResourceToString( parsed ),
+            xml.getContentAsString( StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testUnsupportedFormatIsNotAcceptable()
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getIn().setHeader( "_format", "html" );
+
+        FhirHttpBinding.negotiate( exchange );
+
+        assertNull( exchange.getProperty( FhirHttpBinding.FORMAT ) );
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        fhirHttpBinding.doWriteResponse( exchange.getMessage(), response, exchange );
+
+        assertEquals( 406, response.getStatus() );
+        assertEquals( 0, response.getContentAsByteArray().length );
+    }
+
+    @Test
+    public void testResourceIsEncodedInNegotiatedFormat()
+        throws Exception
+    {
+        // the payload is only written as is, the other formats are encoded from the resource
+        byte[] payload = "not parsed".getBytes( StandardCharsets.UTF_8 );
+
+        MockHttpServletResponse xml = write( payload, questionnaireResponse, Map.of( "_format", "xml" ) );
+        assertEquals( fhirJson.parser( EncodingEnum.XML, false ).encodeResourceToString( questionnaireResponse ),
+            xml.getContentAsString( StandardCharsets.UTF_8 ) );
+
+        MockHttpServletResponse compact = write( payload, questionnaireResponse, Map.of() );
+        assertArrayEquals( payload, compact.getContentAsByteArray() );
+
+        // not marshalled at all
+        MockHttpServletResponse pretty = write( questionnaireResponse, null, Map.of( "_pretty", "true" ) );
+        assertTrue( pretty.getContentType().startsWith( "application/fhir+json" ) );
+        assertEquals( fhirJson.encodePretty( questionnaireResponse ),
+            pretty.getContentAsString( StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testCompression()
+        throws Exception
+    {
+        byte[] payload = fhirJson.encode( questionnaireResponse ).getBytes( StandardCharsets.UTF_8 );
+        assertTrue( payload.length >= FhirHttpBinding.MIN_COMPRESSED_SIZE );
+
+        MockHttpServletResponse gzip = write( payload, Map.of( "Accept-Encoding", "gzip, deflate" ) );
+        assertEquals( "gzip", gzip.getHeader( "Content-Encoding" ) );
+        assertTrue( gzip.getContentAsByteArray().length < payload.length );
+        assertArrayEquals( payload, new GZIPInputStream(
+            new ByteArrayInputStream( gzip.getContentAsByteArray() ) ).readAllBytes() );
+
+        MockHttpServletResponse deflate = write( payload, Map.of( "Accept-Encoding", "deflate",
+            "_format", "xml" ) );
+        assertEquals( "deflate", deflate.getHeader( "Content-Encoding" ) );
+        try ( InputStream inputStream = new InflaterInputStream(
+            new ByteArrayInputStream( deflate.getContentAsByteArray() ) ) )
+        {
+            assertTrue( new String( inputStream.readAllBytes(), StandardCharsets.UTF_8 )
+                .startsWith( "<QuestionnaireResponse" ) );
+        }
+
+        // not worth compressing
+        MockHttpServletResponse small = write( "{\"resourceType\":\"QuestionnaireResponse\"}"
+            .getBytes( StandardCharsets.UTF_8 ), Map.of( "Accept-Encoding", "gzip" ) );
+        assertNull( small.getHeader( "Content-Encoding" ) );
+    }
+
+    @Test
+    public void testOtherResponsesAreUntouched()
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        Message message = exchange.getMessage();
+        message.setBody( "" );
+        message.setHeader( Exchange.HTTP_RESPONSE_CODE, 202 );
+        message.setHeader( "Accept-Encoding", "gzip" );
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        fhirHttpBinding.doWriteResponse( message, response, exchange );
+
+        assertEquals( 202, response.getStatus() );
+        assertNull( response.getHeader( "Content-Encoding" ) );
+        assertNull( response.getHeader( "Vary" ) );
+    }
+
+    private MockHttpServletResponse write( byte[] payload, Map<String, String> requestHeaders )
+        throws Exception
+    {
+        return write( payload, null, requestHeaders );
+    }
+
+    private MockHttpServletResponse write( Object body, IBaseResource resource, Map<String, String> requestHeaders )
+        throws Exception
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        Message message = exchange.getMessage();
+        requestHeaders.forEach( message::setHeader );
+        FhirHttpBinding.negotiate( exchange );
+
+        message.setBody( body );
+        message.setHeader( Exchange.HTTP_RESPONSE_CODE, 200 );
+        message.setHeader( Exchange.CONTENT_TYPE, "application/fhir+json" );
+        exchange.setProperty( FhirHttpBinding.RESOURCE, resource );
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        fhirHttpBinding.doWriteResponse( message, response, exchange );
+
+        return response;
+    }
+
+    private static QuestionnaireResponse questionnaireResponse()
+    {
+        QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse();
+        questionnaireResponse.setId( "Qe7eK1Kq4VZ" );
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            questionnaireResponse.addItem().setLinkId( "item-" + i ).setText( "Item " + i )
+                .addAnswer().setValue( new StringType( "answer " + i ) );
+        }
+
+        return questionnaireResponse;
+    }
+}
@@ -0,0 +1,156 @@
+package org.hisp.dhis.fhir.esavi.paho.http;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hisp.dhis.integration.esavi.http.SingleFlight;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SingleFlightTestCase
+{
+    private CamelContext camelContext;
+
+    private ProducerTemplate producerTemplate;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        camelContext = new DefaultCamelContext();
+        meterRegistry = new SimpleMeterRegistry();
+        SingleFlight singleFlight = new SingleFlight( camelContext.createProducerTemplate(), meterRegistry );
+
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:start" ).process( singleFlight.to( "direct:build" ) );
+
+                from( "direct:build" )
+                    .process( exchange -> {
+                        builds.incrementAndGet();
+                        release.await( 10, TimeUnit.SECONDS );
+
+                        if ( "broken".equals( exchange.getIn().getHeader( SingleFlight.KEY_HEADER ) ) )
+                        {
+                            throw new IllegalArgumentException( "broken" );
+                        }
+                    } )
+                    .setHeader( "ETag", constant( "W/\"1-abc\"" ) )
+                    .setBody( simple( "case ${header.trackedEntityId}" ) );
+            }
+        } );
+
+        camelContext.start();
+        producerTemplate = camelContext.createProducerTemplate();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneBuild()
+        throws Exception
+    {
+        ExecutorService executorService = Executors.newFixedThreadPool( 8 );
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            results.add( CompletableFuture.supplyAsync(
+                () -> producerTemplate.requestBodyAndHeader( "direct:start", null, SingleFlight.KEY_HEADER,
+                    "Qe7eK1Kq4VZ" ), executorService ) );
+        }
+
+        // wait until every request either builds or joins the build
+        while ( builds.get() + meterRegistry.counter( "esavi.singleflight.coalesced" ).count() < 8 )
+        {
+            Thread.sleep( 10 );
+        }
+
+        release.countDown();
+
+        for ( CompletableFuture<Object> result : results )
+        {
+            assertEquals( "case Qe7eK1Kq4VZ", result.get( 10, TimeUnit.SECONDS ) );
+        }
+
+        assertEquals( 1, builds.get() );
+        assertEquals( 7, meterRegistry.counter( "esavi.singleflight.coalesced" ).count() );
+
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testSequentialRequestsAreNotCached()
+    {
+        release.countDown();
+
+        producerTemplate.requestBodyAndHeader( "direct:start", null, SingleFlight.KEY_HEADER, "Qe7eK1Kq4VZ" );
+        producerTemplate.requestBodyAndHeader( "direct:start", null, SingleFlight.KEY_HEADER, "Qe7eK1Kq4VZ" );
+
+        assertEquals( 2, builds.get() );
+    }
+
+    @Test
+    public void testFailureIsSharedWithWaitingRequests()
+        throws Exception
+    {
+        ExecutorService executorService = Executors.newFixedThreadPool( 2 );
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            results.add( CompletableFuture.supplyAsync(
+                () -> producerTemplate.requestBodyAndHeader( "direct:start", null, SingleFlight.KEY_HEADER,
+                    "broken" ), executorService ) );
+        }
+
+        // the leader is building, the follower is waiting for it
+        while ( builds.get() + meterRegistry.counter( "esavi.singleflight.coalesced" ).count() < 2 )
+        {
+            Thread.sleep( 10 );
+        }
+
+        release.countDown();
+
+        for ( CompletableFuture<Object> result : results )
+        {
+            ExecutionException e = assertThrows( ExecutionException.class, () -> result.get( 10, TimeUnit.SECONDS ) );
+            assertTrue( e.getCause().getCause() instanceof IllegalArgumentException, e.getCause().toString() );
+        }
+
+        assertEquals( 1, builds.get() );
+        assertEquals( 1, meterRegistry.counter( "esavi.singleflight.coalesced" ).count() );
+
+        executorService.shutdown();
+    }
+}
@@ -0,0 +1,81 @@
+package org.hisp.dhis.fhir.esavi.paho.metrics;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hisp.dhis.integration.esavi.metrics.StageMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StageMetricsTestCase
+{
+    private CamelContext camelContext;
+
+    private ProducerTemplate producerTemplate;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        meterRegistry = new SimpleMeterRegistry();
+        StageMetrics stageMetrics = new StageMetrics( meterRegistry );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.getManagementStrategy().addEventNotifier( stageMetrics );
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:convert" )
+                    .routeId( "Convert" )
+                    .process( stageMetrics.start( StageMetrics.CONVERT ) )
+                    .process( exchange -> {
+                        if ( exchange.getIn().getBody( String.class ).isEmpty() )
+                        {
+                            throw new IllegalArgumentException( "empty" );
+                        }
+                    } )
+                    .process( stageMetrics.stop( StageMetrics.CONVERT ) )
+                    .process( stageMetrics.size( "questionnaire-response" ) );
+            }
+        } );
+        camelContext.start();
+
+        producerTemplate = camelContext.createProducerTemplate();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void testStagesAreTaggedByRouteAndOutcome()
+    {
+        producerTemplate.sendBody( "direct:convert", "{}" );
+        producerTemplate.sendBody( "direct:convert", "{}" );
+        assertThrows( Exception.class, () -> producerTemplate.requestBody( "direct:convert", "" ) );
+
+        assertEquals( 2, timer( "success" ).count() );
+        assertEquals( 1, timer( "failure" ).count() );
+        assertEquals( 4, meterRegistry.get( StageMetrics.PAYLOAD_SIZE ).tag( "routeId", "Convert" )
+            .tag( "payload", "questionnaire-response" ).summary().totalAmount() );
+    }
+
+    private Timer timer( String outcome )
+    {
+        return meterRegistry.get( StageMetrics.STAGE_TIMER ).tag( "stage", StageMetrics.CONVERT )
+            .tag( "routeId", "Convert" ).tag( "outcome", outcome ).timer();
+    }
+}
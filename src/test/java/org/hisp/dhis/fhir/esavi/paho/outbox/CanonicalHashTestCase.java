@@ -0,0 +1,60 @@
+package org.hisp.dhis.fhir.esavi.paho.outbox;
+
+import org.hisp.dhis.integration.esavi.outbox.CanonicalHash;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class CanonicalHashTestCase
+{
+    private static final String RESPONSE = "{\"resourceType\":\"QuestionnaireResponse\",\"id\":\"Qe7eK1Kq4VZ\","
+        + "\"meta\":{\"profile\":[\"https://paho.org/fhir/esavi/StructureDefinition/ESAVIQuestionnaireResponse\"]%s},"
+        + "\"text\":{\"status\":\"generated\",\"div\":\"<div>%s</div>\"},"
+        + "\"item\":[{\"linkId\":\"nombreOrganizacionNotificadora\",\"text\":\"Organizacion\","
+        + "\"answer\":[{\"valueString\":\"%s\"}]}]}";
+
+    @Test
+    public void testVolatileMetadataAndFormattingAreIgnored()
+        throws Exception
+    {
+        String first = String.format( RESPONSE, "", "first", "Acme" );
+        String second = String.format( RESPONSE, ",\"lastUpdated\":\"2023-11-09T10:00:00Z\",\"versionId\":\"2\"",
+            "second", "Acme" ).replace( ",", ",\n  " );
+
+        assertEquals( hash( first ), hash( second ) );
+    }
+
+    @Test
+    public void testMemberOrderIsIgnored()
+        throws Exception
+    {
+        assertEquals( hash( "{\"resourceType\":\"Bundle\",\"type\":\"batch\"}" ),
+            hash( "{\"type\":\"batch\",\"resourceType\":\"Bundle\"}" ) );
+    }
+
+    @Test
+    public void testChangedAnswerChangesHash()
+        throws Exception
+    {
+        assertNotEquals( hash( String.format( RESPONSE, "", "", "Acme" ) ),
+            hash( String.format( RESPONSE, "", "", "Acme Corp" ) ) );
+    }
+
+    @Test
+    public void testItemTextIsNotIgnored()
+        throws Exception
+    {
+        String response = String.format( RESPONSE, "", "", "Acme" );
+
+        assertNotEquals( hash( response ), hash( response.replace( "\"Organizacion\"", "\"Organizacion notificadora\"" ) ) );
+    }
+
+    private static String hash( String json )
+        throws Exception
+    {
+        return CanonicalHash.of( json.getBytes( StandardCharsets.UTF_8 ) );
+    }
+}
@@ -0,0 +1,175 @@
+package org.hisp.dhis.fhir.esavi.paho.outbox;
+
+import org.hisp.dhis.integration.esavi.outbox.Journal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JournalTestCase
+{
+    private static final long SEGMENT_SIZE = 256;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRecordsArePolledInOrderAcrossSegments()
+        throws Exception
+    {
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            for ( int i = 0; i < 50; i++ )
+            {
+                journal.append( payload( i ) );
+            }
+
+            assertTrue( segments().size() > 1 );
+            assertEquals( 50, journal.depth() );
+
+            List<Journal.Record> records = journal.poll( 100 );
+
+            assertEquals( 50, records.size() );
+
+            for ( int i = 0; i < 50; i++ )
+            {
+                assertEquals( "record-" + i, text( records.get( i ) ) );
+            }
+
+            assertTrue( journal.poll( 100 ).isEmpty() );
+        }
+    }
+
+    @Test
+    public void testUncommittedRecordsAreRedeliveredAfterReopening()
+        throws Exception
+    {
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            for ( int i = 0; i < 20; i++ )
+            {
+                journal.append( payload( i ) );
+            }
+
+            List<Journal.Record> records = journal.poll( 8 );
+            journal.commit( records.get( 7 ).getNext() );
+            journal.poll( 8 );
+
+            assertEquals( 12, journal.depth() );
+        }
+
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            assertEquals( 12, journal.depth() );
+
+            List<Journal.Record> records = journal.poll( 100 );
+
+            assertEquals( 12, records.size() );
+            assertEquals( "record-8", text( records.get( 0 ) ) );
+
+            journal.commit( records.get( 11 ).getNext() );
+
+            assertEquals( 0, journal.depth() );
+            assertEquals( 1, segments().size() );
+        }
+    }
+
+    @Test
+    public void testRewindHandsOutUncommittedRecordsAgain()
+        throws Exception
+    {
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            for ( int i = 0; i < 20; i++ )
+            {
+                journal.append( payload( i ) );
+            }
+
+            journal.commit( journal.poll( 5 ).get( 4 ).getNext() );
+            journal.poll( 10 );
+            journal.rewind();
+
+            List<Journal.Record> records = journal.poll( 100 );
+
+            assertEquals( 15, records.size() );
+            assertEquals( "record-5", text( records.get( 0 ) ) );
+            assertEquals( 15, journal.depth() );
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded()
+        throws Exception
+    {
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            journal.append( payload( 0 ) );
+            journal.append( payload( 1 ) );
+        }
+
+        // corrupts the payload of the second record
+        Path segment = segments().get( 0 );
+        int secondPayload = 2 * Integer.BYTES + payload( 0 ).length + 2 * Integer.BYTES;
+
+        try ( FileChannel channel = FileChannel.open( segment, StandardOpenOption.WRITE ) )
+        {
+            channel.write( ByteBuffer.wrap( new byte[] { 'X' } ), secondPayload );
+        }
+
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            assertEquals( 1, journal.depth() );
+
+            journal.append( payload( 2 ) );
+            List<Journal.Record> records = journal.poll( 100 );
+
+            assertEquals( 2, records.size() );
+            assertEquals( "record-0", text( records.get( 0 ) ) );
+            assertEquals( "record-2", text( records.get( 1 ) ) );
+        }
+    }
+
+    @Test
+    public void testRecordLargerThanSegmentIsRejected()
+        throws Exception
+    {
+        try ( Journal journal = new Journal( directory, SEGMENT_SIZE ) )
+        {
+            assertThrows( IllegalArgumentException.class, () -> journal.append( new byte[(int) SEGMENT_SIZE] ) );
+        }
+    }
+
+    private List<Path> segments()
+        throws IOException
+    {
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            return files.filter( file -> file.getFileName().toString().endsWith( ".log" ) )
+                .sorted()
+                .collect( Collectors.toList() );
+        }
+    }
+
+    private static byte[] payload( int i )
+    {
+        return ("record-" + i).getBytes( StandardCharsets.UTF_8 );
+    }
+
+    private static String text( Journal.Record record )
+    {
+        return new String( record.getPayload(), StandardCharsets.UTF_8 );
+    }
+}
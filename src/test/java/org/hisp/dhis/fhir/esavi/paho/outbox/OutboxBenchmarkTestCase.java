@@ -0,0 +1,88 @@
+package org.hisp.dhis.fhir.esavi.paho.outbox;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hisp.dhis.fhir.esavi.paho.Benchmark;
+import org.hisp.dhis.fhir.esavi.paho.FhirStub;
+import org.hisp.dhis.integration.esavi.config.properties.OutboxProperties;
+import org.hisp.dhis.integration.esavi.outbox.Outbox;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Queues converted bundles faster than the FHIR stand-in accepts them, and
+ * reports how quickly they are queued and how quickly they are delivered,
+ * with a share of the deliveries failing and being retried.
+ */
+@Tag( "benchmark" )
+public class OutboxBenchmarkTestCase
+{
+    private static final int BUNDLES = 5000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testThroughput()
+        throws Exception
+    {
+        byte[] bundle = Thread.currentThread().getContextClassLoader()
+            .getResourceAsStream( "expected-QuestionnaireResponse.fhir.json" ).readAllBytes();
+
+        try ( FhirStub fhirStub = new FhirStub() )
+        {
+            fhirStub.setDelay( Duration.ofMillis( 2 ) );
+            fhirStub.setFailureRate( 0.05 );
+
+            FhirContext fhirContext = FhirContext.forR4Cached();
+            fhirContext.getRestfulClientFactory().setServerValidationMode( ServerValidationModeEnum.NEVER );
+            IGenericClient fhirClient = fhirContext.newRestfulGenericClient( fhirStub.getBaseUrl() );
+
+            OutboxProperties properties = new OutboxProperties();
+            properties.setEnabled( true );
+            properties.setDirectory( directory.toString() );
+            properties.setConcurrency( 8 );
+            properties.setInitialBackoff( Duration.ofMillis( 10 ) );
+            properties.setMaxBackoff( Duration.ofMillis( 100 ) );
+
+            Outbox outbox = new Outbox( properties, fhirClient, new SimpleMeterRegistry() );
+            outbox.start();
+
+            try
+            {
+                long start = System.nanoTime();
+
+                for ( int i = 0; i < BUNDLES; i++ )
+                {
+                    outbox.submit( "TEI" + i, bundle );
+                }
+
+                long queued = System.nanoTime() - start;
+
+                assertTrue( outbox.drain( Duration.ofMinutes( 5 ) ) );
+
+                long delivered = System.nanoTime() - start;
+
+                Benchmark.report( "outbox queue", BUNDLES / (queued / 1e9), "bundles/s" );
+                Benchmark.report( "outbox delivery", BUNDLES / (delivered / 1e9), "bundles/s" );
+                Benchmark.report( "outbox delivery retries", fhirStub.getFailures(), "retries" );
+
+                assertEquals( BUNDLES, fhirStub.getTransactions() );
+                assertEquals( 0, outbox.getDeadLettered() );
+            }
+            finally
+            {
+                outbox.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package org.hisp.dhis.fhir.esavi.paho.outbox;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hisp.dhis.integration.esavi.config.properties.OutboxProperties;
+import org.hisp.dhis.integration.esavi.outbox.Journal;
+import org.hisp.dhis.integration.esavi.outbox.Outbox;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboxTestCase
+{
+    private static final byte[] BUNDLE = "{\"resourceType\":\"Bundle\"}".getBytes( StandardCharsets.UTF_8 );
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testQueuedBundlesAreDelivered()
+        throws Exception
+    {
+        Set<String> delivered = ConcurrentHashMap.newKeySet();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> delivered.add( trackedEntityId ) );
+
+        try
+        {
+            for ( int i = 0; i < 100; i++ )
+            {
+                outbox.submit( "TEI" + i, BUNDLE );
+            }
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 100, delivered.size() );
+            assertEquals( 0, outbox.getDepth() );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+    }
+
+    @Test
+    public void testFailedDeliveryIsRetried()
+        throws Exception
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> {
+            if ( attempts.incrementAndGet() < 3 )
+            {
+                throw new InternalErrorException( "FHIR server unavailable" );
+            }
+        } );
+
+        try
+        {
+            outbox.submit( "Qe7eK1Kq4VZ", BUNDLE );
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 3, attempts.get() );
+            assertEquals( 0, outbox.getDeadLettered() );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+    }
+
+    @Test
+    public void testFailedBatchEntryIsRetried()
+        throws Exception
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> Outbox.checkResponse( batchResponse(
+            attempts.incrementAndGet() < 3 ? "503 Service Unavailable" : "200 OK", "201 Created" ) ) );
+
+        try
+        {
+            outbox.submit( "Qe7eK1Kq4VZ", BUNDLE );
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 3, attempts.get() );
+            assertEquals( 0, outbox.getDeadLettered() );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+    }
+
+    @Test
+    public void testRejectedBatchEntryIsDeadLettered()
+        throws Exception
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> {
+            attempts.incrementAndGet();
+            Outbox.checkResponse( batchResponse( "200 OK", "422 Unprocessable Entity" ) );
+        } );
+
+        try
+        {
+            outbox.submit( "Qe7eK1Kq4VZ", BUNDLE );
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 1, attempts.get() );
+            assertEquals( 1, outbox.getDeadLettered() );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+    }
+
+    @Test
+    public void testRetryableBatchEntryWins()
+    {
+        BaseServerResponseException e = assertThrows( BaseServerResponseException.class,
+            () -> Outbox.checkResponse( batchResponse( "400 Bad Request", "429 Too Many Requests" ) ) );
+
+        assertEquals( 429, e.getStatusCode() );
+    }
+
+    @Test
+    public void testRejectedBundleIsDeadLettered()
+        throws Exception
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> {
+            attempts.incrementAndGet();
+            throw new InvalidRequestException( "Invalid bundle" );
+        } );
+
+        try
+        {
+            outbox.submit( "Qe7eK1Kq4VZ", BUNDLE );
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 1, attempts.get() );
+            assertEquals( 1, outbox.getDeadLettered() );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+
+        try ( Journal deadLetter = new Journal( directory.resolve( Outbox.DEAD_LETTER ),
+            properties().getSegmentSize().toBytes() ) )
+        {
+            List<Journal.Record> records = deadLetter.poll( 10 );
+
+            assertEquals( 1, records.size() );
+            assertTrue( new String( records.get( 0 ).getPayload(), StandardCharsets.UTF_8 ).contains( "Qe7eK1Kq4VZ" ) );
+        }
+    }
+
+    @Test
+    public void testBatchIsDeliveredAgainWhenDeadLetteringFails()
+        throws Exception
+    {
+        long segmentSize = 256;
+        Path deadLetterDirectory = directory.resolve( Outbox.DEAD_LETTER );
+
+        // fills the first dead letter segment, so the next dead letter needs a new one
+        try ( Journal deadLetter = new Journal( deadLetterDirectory, segmentSize ) )
+        {
+            deadLetter.append( new byte[(int) segmentSize - 32] );
+        }
+
+        Set<String> delivered = ConcurrentHashMap.newKeySet();
+        OutboxProperties properties = properties();
+        properties.setSegmentSize( DataSize.ofBytes( segmentSize ) );
+
+        Outbox outbox = new Outbox( properties, ( trackedEntityId, bundle ) -> {
+            if ( trackedEntityId.equals( "Qe7eK1Kq4VZ" ) )
+            {
+                throw new InvalidRequestException( "Invalid bundle" );
+            }
+
+            delivered.add( trackedEntityId );
+        }, new SimpleMeterRegistry() );
+        outbox.start();
+
+        // the new dead letter segment cannot be created
+        Path blocked = Files.createDirectory( deadLetterDirectory.resolve( "journal-00000002.log" ) );
+
+        try
+        {
+            outbox.submit( "Qe7eK1Kq4VZ", BUNDLE );
+            outbox.submit( "PQfMcpmXeFE", BUNDLE );
+
+            // the bundle after the one that could not be dead lettered does not commit over it
+            assertFalse( outbox.drain( Duration.ofMillis( 500 ) ) );
+            assertTrue( delivered.contains( "PQfMcpmXeFE" ) );
+            assertEquals( 2, outbox.getDepth() );
+            assertEquals( 0, outbox.getDeadLettered() );
+
+            Files.delete( blocked );
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 1, outbox.getDeadLettered() );
+
+            // the dead lettered case is submitted again even though it did not change
+            assertTrue( outbox.submit( "Qe7eK1Kq4VZ", BUNDLE ) );
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+
+        try ( Journal deadLetter = new Journal( deadLetterDirectory, segmentSize ) )
+        {
+            List<Journal.Record> records = deadLetter.poll( 10 );
+
+            assertEquals( 3, records.size() );
+            assertTrue( new String( records.get( 1 ).getPayload(), StandardCharsets.UTF_8 ).contains( "Qe7eK1Kq4VZ" ) );
+        }
+    }
+
+    @Test
+    public void testUndeliveredBundlesSurviveRestart()
+        throws Exception
+    {
+        Outbox unavailable = start( ( trackedEntityId, bundle ) -> {
+            throw new InternalErrorException( "FHIR server unavailable" );
+        } );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            unavailable.submit( "TEI" + i, BUNDLE );
+        }
+
+        unavailable.stop();
+
+        Set<String> delivered = ConcurrentHashMap.newKeySet();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> delivered.add( trackedEntityId ) );
+
+        try
+        {
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( Set.of( "TEI0", "TEI1", "TEI2", "TEI3", "TEI4" ), delivered );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+    }
+
+    @Test
+    public void testUnchangedBundleIsNotSubmittedAgain()
+        throws Exception
+    {
+        AtomicInteger deliveries = new AtomicInteger();
+        Outbox outbox = start( ( trackedEntityId, bundle ) -> deliveries.incrementAndGet() );
+
+        try
+        {
+            assertTrue( outbox.submit( "Qe7eK1Kq4VZ", BUNDLE ) );
+            assertFalse( outbox.submit( "Qe7eK1Kq4VZ", BUNDLE ) );
+            assertTrue( outbox.submit( "Qe7eK1Kq4VZ",
+                "{\"resourceType\":\"Bundle\",\"type\":\"batch\"}".getBytes( StandardCharsets.UTF_8 ) ) );
+            assertTrue( outbox.submit( "PQfMcpmXeFE", BUNDLE ) );
+
+            assertTrue( outbox.drain( Duration.ofSeconds( 10 ) ) );
+            assertEquals( 3, deliveries.get() );
+            assertEquals( 0.25, outbox.getSuppressionRatio() );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+
+        Outbox restarted = start( ( trackedEntityId, bundle ) -> deliveries.incrementAndGet() );
+
+        try
+        {
+            assertFalse( restarted.submit( "PQfMcpmXeFE", BUNDLE ) );
+        }
+        finally
+        {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    public void testFetchIsHeldBackAboveHighWatermark()
+        throws Exception
+    {
+        CountDownLatch available = new CountDownLatch( 1 );
+        OutboxProperties properties = properties();
+        properties.setHighWatermark( 2 );
+        properties.setBackpressureWait( Duration.ofMillis( 100 ) );
+
+        Outbox outbox = new Outbox( properties, ( trackedEntityId, bundle ) -> available.await(),
+            new SimpleMeterRegistry() );
+        outbox.start();
+
+        try
+        {
+            for ( int i = 0; i < 5; i++ )
+            {
+                outbox.submit( "TEI" + i, BUNDLE );
+            }
+
+            assertThrows( RejectedExecutionException.class, outbox::awaitCapacity );
+
+            available.countDown();
+            properties.setBackpressureWait( Duration.ofSeconds( 10 ) );
+            outbox.awaitCapacity();
+
+            assertTrue( outbox.getDepth() < 2 );
+        }
+        finally
+        {
+            outbox.stop();
+        }
+    }
+
+    private Outbox start( Outbox.FhirSink fhirSink )
+        throws Exception
+    {
+        Outbox outbox = new Outbox( properties(), fhirSink, new SimpleMeterRegistry() );
+        outbox.start();
+
+        return outbox;
+    }
+
+    private OutboxProperties properties()
+    {
+        OutboxProperties properties = new OutboxProperties();
+        properties.setEnabled( true );
+        properties.setDirectory( directory.toString() );
+        properties.setInitialBackoff( Duration.ofMillis( 10 ) );
+        properties.setMaxBackoff( Duration.ofMillis( 50 ) );
+
+        return properties;
+    }
+
+    private static Bundle batchResponse( String... statuses )
+    {
+        Bundle response = new Bundle().setType( Bundle.BundleType.BATCHRESPONSE );
+
+        for ( String status : statuses )
+        {
+            response.addEntry().getResponse().setStatus( status );
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,123 @@
+package org.hisp.dhis.fhir.esavi.paho.replay;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hisp.dhis.integration.esavi.replay.Replay;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.ESAVI_PROGRAM_STAGE_ID;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.fixture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplayTestCase
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testReplaysEveryFormat()
+        throws Exception
+    {
+        byte[] page = fixture();
+        String trackedEntity = OBJECT_MAPPER.writeValueAsString( OBJECT_MAPPER.readTree( page ).get( "instances" )
+            .get( 0 ) );
+
+        Path input = Files.createDirectories( directory.resolve( "input" ) );
+        Files.write( input.resolve( "page.json" ), page );
+        Files.writeString( input.resolve( "cases.ndjson" ), trackedEntity + "\n" + trackedEntity + "\n" );
+        // archive segments hold one gzip member per record, including records that are not DHIS2 payloads
+        Files.write( input.resolve( "segment-000001.gz" ), concat( gzip( page ),
+            gzip( "{\"resourceType\":\"QuestionnaireResponse\"}".getBytes( StandardCharsets.UTF_8 ) ),
+            gzip( trackedEntity.getBytes( StandardCharsets.UTF_8 ) ) ) );
+        Files.writeString( input.resolve( "README.txt" ), "not a payload" );
+
+        Replay.Options options = Replay.Options.parse( "--threads", "2", "--output",
+            directory.resolve( "out/replay.ndjson" ).toString(), input.toString() );
+        Replay.Summary summary = new Replay( options, new PrintStream( OutputStream.nullOutputStream() ) ).replay();
+
+        assertEquals( 3, summary.getFiles() );
+        assertEquals( 5, summary.getRead() );
+        assertEquals( 5, summary.getConverted() );
+        assertEquals( 0, summary.getFailed() );
+        assertEquals( 1, summary.getSkipped() );
+        assertTrue( summary.getFailures().isEmpty() );
+
+        String expected = FhirContext.forR4Cached().newJsonParser().encodeResourceToString( EsaviProfile.create(
+            new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID ).read( new ByteArrayInputStream( page ) ).get( 0 ) ) );
+        List<String> lines = Files.readAllLines( directory.resolve( "out/replay.ndjson" ) );
+        assertEquals( 5, lines.size() );
+        lines.forEach( line -> assertEquals( expected, line ) );
+    }
+
+    @Test
+    public void testFailuresAreSummarized()
+        throws Exception
+    {
+        // not enrolled, so the mapping cannot find the ESAVI event
+        Path input = directory.resolve( "cases.ndjson" );
+        Files.writeString( input, "{\"trackedEntity\":\"Qe7eK1Kq4VZ\",\"enrollments\":[]}\n"
+            + "{\"trackedEntity\":\"xyzQe7eK1Kq\",\"enrollments\":[]}\n" );
+
+        Replay.Options options = Replay.Options.parse( "--output", directory.resolve( "replay.ndjson" ).toString(),
+            input.toString() );
+        Replay.Summary summary = new Replay( options, new PrintStream( OutputStream.nullOutputStream() ) ).replay();
+
+        assertEquals( 2, summary.getRead() );
+        assertEquals( 0, summary.getConverted() );
+        assertEquals( 2, summary.getFailed() );
+        assertEquals( 2, summary.getFailures().values().stream().mapToLong( f -> f.getCount().get() ).sum() );
+        assertTrue( Files.readAllLines( directory.resolve( "replay.ndjson" ) ).isEmpty() );
+    }
+
+    @Test
+    public void testInvalidArguments()
+    {
+        assertThrows( IllegalArgumentException.class, Replay.Options::parse );
+        assertThrows( IllegalArgumentException.class, () -> Replay.Options.parse( "--threads" ) );
+        assertThrows( IllegalArgumentException.class, () -> Replay.Options.parse( "--verbose", "cases.ndjson" ) );
+        assertEquals( 2, Replay.run( "--threads", "0", "cases.ndjson" ) );
+    }
+
+    private static byte[] gzip( byte[] bytes )
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try ( GZIPOutputStream gzip = new GZIPOutputStream( out ) )
+        {
+            gzip.write( bytes );
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] concat( byte[]... parts )
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for ( byte[] part : parts )
+        {
+            out.write( part );
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,122 @@
+package org.hisp.dhis.fhir.esavi.paho.routes;
+
+import org.apache.camel.test.spring.junit5.CamelSpringBootTest;
+import org.hisp.dhis.fhir.esavi.paho.Benchmark;
+import org.hisp.dhis.fhir.esavi.paho.Dhis2Stub;
+import org.hisp.dhis.fhir.esavi.paho.SyntheticCases;
+import org.hisp.dhis.integration.esavi.Application;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sends more concurrent requests than there are servlet container threads
+ * against a DHIS2 stub that answers slowly. With the asynchronous pipeline the
+ * number of cases in flight is bounded by dhis2-to-esavi.pipeline.max-in-flight
+ * and not by server.tomcat.threads.max. Every request is for a distinct
+ * tracked entity, concurrent requests for the same one would share a build.
+ */
+@Tag( "benchmark" )
+@SpringBootTest( webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = Application.class, properties = {
+    "server.tomcat.threads.max=" + ConcurrentCasesLoadTestCase.CONTAINER_THREADS,
+    "server.tomcat.threads.min-spare=1",
+    "dhis2-to-esavi.pipeline.max-in-flight=" + ConcurrentCasesLoadTestCase.CONCURRENT_REQUESTS,
+    "dhis2-to-esavi.fhir.server-url=http://localhost/fhir",
+    "dhis2-to-esavi.fhir.validation.mode=embedded",
+    "dhis2-to-esavi.archive.enabled=false" } )
+@CamelSpringBootTest
+public class ConcurrentCasesLoadTestCase
+{
+    static final int CONTAINER_THREADS = 4;
+
+    static final int CONCURRENT_REQUESTS = 32;
+
+    private static final Duration DHIS2_LATENCY = Duration.ofMillis( 500 );
+
+    private static final SyntheticCases SYNTHETIC_CASES = new SyntheticCases( 33 );
+
+    private static final Dhis2Stub DHIS2_STUB = newDhis2Stub();
+
+    @LocalServerPort
+    protected int serverPort;
+
+    @DynamicPropertySource
+    static void dhis2Properties( DynamicPropertyRegistry registry )
+    {
+        registry.add( "dhis2-to-esavi.dhis2.base-url", DHIS2_STUB::getBaseUrl );
+    }
+
+    @AfterAll
+    public static void afterAll()
+    {
+        DHIS2_STUB.close();
+    }
+
+    @Test
+    public void testCasesInFlightAreNotBoundByContainerThreads()
+    {
+        DHIS2_STUB.setCases( SYNTHETIC_CASES );
+        HttpClient httpClient = HttpClient.newBuilder().executor( Runnable::run ).build();
+
+        // warm-up, loads the validator and the conversion code paths
+        httpClient.sendAsync( request( 0 ), HttpResponse.BodyHandlers.discarding() ).join();
+        DHIS2_STUB.reset();
+        DHIS2_STUB.setDelay( DHIS2_LATENCY );
+
+        long start = System.nanoTime();
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+
+        for ( int i = 1; i <= CONCURRENT_REQUESTS; i++ )
+        {
+            responses.add( httpClient.sendAsync( request( i ), HttpResponse.BodyHandlers.discarding() ) );
+        }
+
+        responses.forEach( response -> assertEquals( 200, response.join().statusCode() ) );
+        Duration elapsed = Duration.ofNanos( System.nanoTime() - start );
+
+        String name = String.format( "%d requests, %d container threads", CONCURRENT_REQUESTS, CONTAINER_THREADS );
+        Benchmark.report( name, elapsed.toMillis(), "ms" );
+        Benchmark.report( name, DHIS2_STUB.getMaxInFlight(), "max DHIS2 calls in flight" );
+
+        assertEquals( CONCURRENT_REQUESTS, DHIS2_STUB.getRequests() );
+        assertTrue( DHIS2_STUB.getMaxInFlight() > CONTAINER_THREADS );
+    }
+
+    private HttpRequest request( int index )
+    {
+        return HttpRequest.newBuilder( URI.create( "http://localhost:" + serverPort
+                + "/fhir/baseR4/QuestionnaireResponse/" + SYNTHETIC_CASES.trackedEntityId( index ) ) )
+            .timeout( Duration.ofMinutes( 1 ) )
+            .build();
+    }
+
+    private static Dhis2Stub newDhis2Stub()
+    {
+        try
+        {
+            return new Dhis2Stub();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.hisp.dhis.fhir.esavi.paho.routes;
+
+import org.apache.camel.test.spring.junit5.CamelSpringBootTest;
+import org.hisp.dhis.fhir.esavi.paho.Benchmark;
+import org.hisp.dhis.fhir.esavi.paho.Dhis2Stub;
+import org.hisp.dhis.fhir.esavi.paho.FhirStub;
+import org.hisp.dhis.fhir.esavi.paho.SyntheticCases;
+import org.hisp.dhis.integration.esavi.Application;
+import org.hisp.dhis.integration.esavi.outbox.Outbox;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * End to end throughput and latency of distinct synthetic cases, fetched from
+ * the in-process DHIS2 stub, converted, validated with the embedded validator
+ * and submitted through the outbox to the in-process FHIR stub. No Docker and
+ * no network beyond the loopback interface.
+ */
+@Tag( "benchmark" )
+@SpringBootTest( webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = Application.class, properties = {
+    "dhis2-to-esavi.pipeline.max-in-flight=" + SyntheticCasesThroughputTestCase.CONCURRENCY,
+    "dhis2-to-esavi.fhir.validation.mode=embedded",
+    "dhis2-to-esavi.outbox.enabled=true",
+    "dhis2-to-esavi.archive.enabled=false" } )
+@CamelSpringBootTest
+public class SyntheticCasesThroughputTestCase
+{
+    static final int CONCURRENCY = 32;
+
+    private static final int WARMUP_CASES = 500;
+
+    private static final int CASES = 5_000;
+
+    private static final Duration DHIS2_LATENCY = Duration.ofMillis( 20 );
+
+    private static final Duration FHIR_LATENCY = Duration.ofMillis( 20 );
+
+    private static final SyntheticCases SYNTHETIC_CASES = new SyntheticCases( 2023 );
+
+    private static final Dhis2Stub DHIS2_STUB = newDhis2Stub();
+
+    private static final FhirStub FHIR_STUB = newFhirStub();
+
+    @LocalServerPort
+    protected int serverPort;
+
+    @Autowired
+    private Outbox outbox;
+
+    @DynamicPropertySource
+    static void stubProperties( DynamicPropertyRegistry registry )
+        throws IOException
+    {
+        String outboxDirectory = Files.createTempDirectory( "outbox" ).toString();
+
+        registry.add( "dhis2-to-esavi.dhis2.base-url", DHIS2_STUB::getBaseUrl );
+        registry.add( "dhis2-to-esavi.fhir.server-url", FHIR_STUB::getBaseUrl );
+        registry.add( "dhis2-to-esavi.outbox.directory", () -> outboxDirectory );
+    }
+
+    @AfterAll
+    public static void afterAll()
+    {
+        DHIS2_STUB.close();
+        FHIR_STUB.close();
+    }
+
+    @Test
+    public void benchmarkSyntheticCases()
+        throws Exception
+    {
+        DHIS2_STUB.setCases( SYNTHETIC_CASES );
+        HttpClient httpClient = HttpClient.newHttpClient();
+
+        run( httpClient, 0, WARMUP_CASES );
+        assertTrue( outbox.drain( Duration.ofMinutes( 1 ) ) );
+        DHIS2_STUB.reset();
+        FHIR_STUB.reset();
+        DHIS2_STUB.setDelay( DHIS2_LATENCY );
+        FHIR_STUB.setDelay( FHIR_LATENCY );
+
+        long start = System.nanoTime();
+        long[] latencies = run( httpClient, WARMUP_CASES, CASES );
+        Duration elapsed = Duration.ofNanos( System.nanoTime() - start );
+
+        assertTrue( outbox.drain( Duration.ofMinutes( 5 ) ) );
+        Duration delivered = Duration.ofNanos( System.nanoTime() - start );
+
+        Arrays.sort( latencies );
+        String name = String.format( "%d synthetic cases, %d concurrent", CASES, CONCURRENCY );
+        Benchmark.report( name + ", served", CASES / (elapsed.toNanos() / 1e9), "cases/s" );
+        Benchmark.report( name + ", delivered", CASES / (delivered.toNanos() / 1e9), "cases/s" );
+        Benchmark.report( name + ", p50", percentile( latencies, 0.50 ), "ms" );
+        Benchmark.report( name + ", p95", percentile( latencies, 0.95 ), "ms" );
+        Benchmark.report( name + ", p99", percentile( latencies, 0.99 ), "ms" );
+        Benchmark.report( name + ", max", latencies[latencies.length - 1] / 1_000_000, "ms" );
+
+        assertEquals( CASES, DHIS2_STUB.getRequests() );
+        assertEquals( CASES, FHIR_STUB.getTransactions() );
+        assertEquals( 0, outbox.getDeadLettered() );
+    }
+
+    /**
+     * Requests the cases {@code from} to {@code from + count}, at most
+     * {@link #CONCURRENCY} at a time.
+     *
+     * @return the latency of each request, in nanoseconds
+     */
+    private long[] run( HttpClient httpClient, int from, int count )
+        throws InterruptedException
+    {
+        Semaphore permits = new Semaphore( CONCURRENCY );
+        long[] latencies = new long[count];
+        List<CompletableFuture<Void>> responses = new ArrayList<>();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            int index = i;
+            HttpRequest request = HttpRequest.newBuilder( URI.create( "http://localhost:" + serverPort
+                    + "/fhir/baseR4/QuestionnaireResponse/" + SYNTHETIC_CASES.trackedEntityId( from + i ) ) )
+                .timeout( Duration.ofMinutes( 1 ) )
+                .build();
+
+            permits.acquire();
+            long start = System.nanoTime();
+
+            responses.add( httpClient.sendAsync( request, HttpResponse.BodyHandlers.discarding() )
+                .whenComplete( ( response, error ) -> permits.release() )
+                .thenAccept( response -> {
+                    latencies[index] = System.nanoTime() - start;
+                    assertEquals( 200, response.statusCode() );
+                } ) );
+        }
+
+        responses.forEach( CompletableFuture::join );
+
+        return latencies;
+    }
+
+    private static long percentile( long[] sorted, double percentile )
+    {
+        return sorted[(int) Math.ceil( percentile * sorted.length ) - 1] / 1_000_000;
+    }
+
+    private static Dhis2Stub newDhis2Stub()
+    {
+        try
+        {
+            return new Dhis2Stub();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private static FhirStub newFhirStub()
+    {
+        try
+        {
+            return new FhirStub();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+}
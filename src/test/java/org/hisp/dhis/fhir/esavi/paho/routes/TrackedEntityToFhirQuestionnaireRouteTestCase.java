@@ -17,6 +17,7 @@ import org.hisp.dhis.api.model.v2_38_1.OrganisationUnitLevel;
 import org.hisp.dhis.api.model.v2_38_1.TrackedEntity;
 import org.hisp.dhis.api.model.v2_38_1.WebMessage;
 import org.hisp.dhis.integration.esavi.Application;
+import org.hisp.dhis.integration.esavi.archive.OutputArchive;
 import org.hisp.dhis.integration.sdk.Dhis2ClientBuilder;
 import org.hisp.dhis.integration.sdk.api.Dhis2Client;
 import org.hisp.dhis.integration.sdk.internal.security.BasicCredentialsSecurityContext;
@@ -37,8 +38,7 @@ import org.testcontainers.utility.DockerImageName;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
@@ -48,6 +48,7 @@ import java.util.List;
 import java.util.Map;
 
 import static net.javacrumbs.jsonunit.assertj.JsonAssertions.assertThatJson;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest( webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = Application.class )
 @CamelSpringBootTest
@@ -60,9 +61,6 @@ public class TrackedEntityToFhirQuestionnaireRouteTestCase
     @Container
     public static GenericContainer<?> DHIS2_CONTAINER;
 
-    @Container
-    public static GenericContainer<?> FHIR_CONTAINER;
-
     @Value( "${dhis2-to-esavi.dhis2.esavi-program-stage-id}" )
     protected String esaviProgramStageId;
 
@@ -75,6 +73,9 @@ public class TrackedEntityToFhirQuestionnaireRouteTestCase
     @Autowired
     protected ProducerTemplate producerTemplate;
 
+    @Autowired
+    protected OutputArchive outputArchive;
+
     private static final String ADMIN_USER_ID = "M5zQapPyTZI";
 
     private static boolean doBeforeEach = true;
@@ -104,12 +105,6 @@ public class TrackedEntityToFhirQuestionnaireRouteTestCase
             .withEnv( "WAIT_FOR_DB_CONTAINER", "db" + ":" + 5432 + " -t 0" );
     }
 
-    private static GenericContainer<?> newFhirContainer()
-    {
-        return new GenericContainer<>( DockerImageName.parse( "hapiproject/hapi:v6.6.0" ) ).withExposedPorts( 8080 )
-            .waitingFor( new HttpWaitStrategy().forStatusCode( 200 ).withStartupTimeout( Duration.ofSeconds( 120 ) ) );
-    }
-
     @BeforeAll
     public static void beforeAll()
     {
@@ -117,15 +112,15 @@ public class TrackedEntityToFhirQuestionnaireRouteTestCase
         POSTGRESQL_CONTAINER.start();
         DHIS2_CONTAINER = newDhis2Container( POSTGRESQL_CONTAINER );
         DHIS2_CONTAINER.start();
-        FHIR_CONTAINER = newFhirContainer();
-        FHIR_CONTAINER.start();
 
         dhis2Url = String.format( "http://localhost:%s/api", DHIS2_CONTAINER.getFirstMappedPort() );
 
         System.setProperty( "dhis2-to-esavi.dhis2.base-url", dhis2Url );
         System.setProperty( "dhis2-to-esavi.dhis2.username", "admin" );
         System.setProperty( "dhis2-to-esavi.dhis2.password", "district" );
-        System.setProperty( "dhis2-to-esavi.fhir.server-url", String.format( "http://localhost:%s/fhir", FHIR_CONTAINER.getFirstMappedPort() ) );
+        // validation runs in-process, the FHIR server is never called
+        System.setProperty( "dhis2-to-esavi.fhir.server-url", "http://localhost/fhir" );
+        System.setProperty( "dhis2-to-esavi.fhir.validation.mode", "embedded" );
     }
 
     @BeforeEach
@@ -239,14 +234,21 @@ public class TrackedEntityToFhirQuestionnaireRouteTestCase
                 Thread.currentThread().getContextClassLoader().getResourceAsStream( "expected-QuestionnaireResponse.fhir.json" )
                     .readAllBytes(), Charset.defaultCharset() ).replace( "<TRACKED_ENTITY_ID>", trackedEntityId ) );
 
-        assertThatJson( Files.readString( Paths.get( "output/QuestionnaireResponse.fhir.json" ) ) ).isEqualTo(
+        assertTrue( outputArchive.flush( Duration.ofSeconds( 10 ) ) );
+
+        assertThatJson( archived( OutputArchive.QUESTIONNAIRE_RESPONSE ) ).isEqualTo(
             new String(
                 Thread.currentThread().getContextClassLoader().getResourceAsStream( "expected-QuestionnaireResponse.fhir.json" )
                     .readAllBytes(), Charset.defaultCharset() ).replace( "<TRACKED_ENTITY_ID>", trackedEntityId ) );
 
-        assertThatJson( Files.readString( Paths.get( "output/validate.fhir.json" ) ) ).isEqualTo(
+        assertThatJson( archived( OutputArchive.VALIDATE ) ).isEqualTo(
             new String(
                 Thread.currentThread().getContextClassLoader().getResourceAsStream( "expected-validate.fhir.json" )
                     .readAllBytes(), Charset.defaultCharset() ) );
     }
+
+    private String archived( String type )
+    {
+        return new String( outputArchive.read( trackedEntityId, type ).orElseThrow(), StandardCharsets.UTF_8 );
+    }
 }
@@ -0,0 +1,97 @@
+package org.hisp.dhis.fhir.esavi.paho.routes;
+
+import org.apache.camel.test.spring.junit5.CamelSpringBootTest;
+import org.hisp.dhis.fhir.esavi.paho.Dhis2Stub;
+import org.hisp.dhis.integration.esavi.Application;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Posts a burst of DHIS2 change notifications for one tracked entity to the
+ * hook and checks that the DHIS2 stand-in is asked for it once.
+ */
+@SpringBootTest( webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = Application.class, properties = {
+    "dhis2-to-esavi.hook.enabled=true",
+    "dhis2-to-esavi.hook.token=secret",
+    "dhis2-to-esavi.hook.debounce=500ms",
+    "dhis2-to-esavi.fhir.server-url=http://localhost/fhir",
+    "dhis2-to-esavi.fhir.validation.mode=embedded",
+    "dhis2-to-esavi.archive.enabled=false" } )
+@CamelSpringBootTest
+public class TrackerHookRouteTestCase
+{
+    private static final Dhis2Stub DHIS2_STUB = newDhis2Stub();
+
+    @LocalServerPort
+    protected int serverPort;
+
+    @DynamicPropertySource
+    static void dhis2Properties( DynamicPropertyRegistry registry )
+    {
+        registry.add( "dhis2-to-esavi.dhis2.base-url", DHIS2_STUB::getBaseUrl );
+    }
+
+    @AfterAll
+    public static void afterAll()
+    {
+        DHIS2_STUB.close();
+    }
+
+    @Test
+    public void testBurstOfNotificationsIsFetchedOnce()
+        throws Exception
+    {
+        HttpClient httpClient = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder(
+                URI.create( "http://localhost:" + serverPort + "/fhir/baseR4/hooks/tracker" ) )
+            .header( "Content-Type", "application/json" )
+            .header( "X-Hook-Token", "secret" )
+            .POST( HttpRequest.BodyPublishers.ofString( "{\"trackedEntity\":\"Qe7eK1Kq4VZ\"}" ) )
+            .build();
+
+        DHIS2_STUB.reset();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertEquals( 202, httpClient.send( request, HttpResponse.BodyHandlers.discarding() ).statusCode() );
+        }
+
+        long deadline = System.nanoTime() + Duration.ofSeconds( 30 ).toNanos();
+
+        while ( DHIS2_STUB.getRequests() == 0 && System.nanoTime() < deadline )
+        {
+            Thread.sleep( 100 );
+        }
+
+        // leaves time for a second, unexpected fetch
+        Thread.sleep( 1000 );
+
+        assertEquals( 1, DHIS2_STUB.getRequests() );
+    }
+
+    private static Dhis2Stub newDhis2Stub()
+    {
+        try
+        {
+            return new Dhis2Stub();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+}
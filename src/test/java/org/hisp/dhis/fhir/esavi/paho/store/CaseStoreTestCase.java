@@ -0,0 +1,156 @@
+package org.hisp.dhis.fhir.esavi.paho.store;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.esavi.config.properties.StoreProperties;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hisp.dhis.integration.esavi.http.ConditionalGet;
+import org.hisp.dhis.integration.esavi.store.CaseStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaseStoreTestCase
+{
+    private static final String TRACKED_ENTITY_ID = "Qe7eK1Kq4VZ";
+
+    private static final byte[] PAYLOAD = "{\"resourceType\":\"Bundle\"}".getBytes( StandardCharsets.UTF_8 );
+
+    private static final Instant UPDATED_AT = Instant.now().truncatedTo( ChronoUnit.MILLIS ).minusSeconds( 3600 );
+
+    @TempDir
+    Path directory;
+
+    private StoreProperties storeProperties;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private CaseStore caseStore;
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        storeProperties = new StoreProperties();
+        storeProperties.setEnabled( true );
+        storeProperties.setFile( directory.resolve( "cases.mv" ).toString() );
+
+        meterRegistry = new SimpleMeterRegistry();
+        caseStore = open();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        caseStore.stop();
+    }
+
+    @Test
+    public void testEntriesSurviveRestart()
+        throws Exception
+    {
+        caseStore.put( TRACKED_ENTITY_ID, UPDATED_AT, PAYLOAD );
+        caseStore.stop();
+
+        caseStore = open();
+        CaseStore.Entry entry = caseStore.get( TRACKED_ENTITY_ID ).orElseThrow();
+
+        assertEquals( UPDATED_AT, entry.getUpdatedAt() );
+        assertEquals( EsaviProfile.VERSION, entry.getMappingVersion() );
+        assertArrayEquals( PAYLOAD, entry.getPayload() );
+        assertEquals( 1, caseStore.size() );
+    }
+
+    @Test
+    public void testFreshEntryIsServedWithoutProbe()
+        throws Exception
+    {
+        caseStore.put( TRACKED_ENTITY_ID, UPDATED_AT, PAYLOAD );
+
+        Exchange exchange = exchange();
+
+        assertFalse( caseStore.needsRevalidation( exchange ) );
+        assertTrue( caseStore.isCurrent( exchange ) );
+
+        caseStore.serve().process( exchange );
+
+        assertEquals( 200, exchange.getMessage().getHeader( Exchange.HTTP_RESPONSE_CODE ) );
+        assertNotNull( exchange.getMessage().getHeader( "ETag" ) );
+        assertArrayEquals( PAYLOAD, exchange.getMessage().getBody( byte[].class ) );
+        assertEquals( 1, meterRegistry.counter( "esavi.store.lookup", "result", "fresh" ).count() );
+    }
+
+    @Test
+    public void testStaleEntryIsServedOnceProbeConfirmsIt()
+    {
+        storeProperties.setFreshFor( Duration.ZERO );
+        caseStore.put( TRACKED_ENTITY_ID, UPDATED_AT, PAYLOAD );
+        Instant stored = caseStore.get( TRACKED_ENTITY_ID ).orElseThrow().getVerifiedAt();
+
+        Exchange unchanged = exchange();
+        assertTrue( caseStore.needsRevalidation( unchanged ) );
+        unchanged.setProperty( ConditionalGet.UPDATED_AT, UPDATED_AT );
+        assertTrue( caseStore.isCurrent( unchanged ) );
+        assertFalse( caseStore.get( TRACKED_ENTITY_ID ).orElseThrow().getVerifiedAt().isBefore( stored ) );
+
+        Exchange changed = exchange();
+        changed.setProperty( ConditionalGet.UPDATED_AT, UPDATED_AT.plusSeconds( 1 ) );
+        assertFalse( caseStore.isCurrent( changed ) );
+
+        assertEquals( 1, meterRegistry.counter( "esavi.store.lookup", "result", "revalidated" ).count() );
+        assertEquals( 1, meterRegistry.counter( "esavi.store.lookup", "result", "outdated" ).count() );
+    }
+
+    @Test
+    public void testWriterStoresMarshalledResponse()
+        throws Exception
+    {
+        Exchange exchange = exchange();
+        exchange.setProperty( ConditionalGet.UPDATED_AT, UPDATED_AT );
+        exchange.getIn().setBody( new String( PAYLOAD, StandardCharsets.UTF_8 ) );
+
+        caseStore.writer().process( exchange );
+
+        assertArrayEquals( PAYLOAD, caseStore.get( TRACKED_ENTITY_ID ).orElseThrow().getPayload() );
+        assertTrue( caseStore.isCurrent( exchange() ) );
+    }
+
+    @Test
+    public void testMissingEntryIsNotCurrent()
+    {
+        assertFalse( caseStore.needsRevalidation( exchange() ) );
+        assertFalse( caseStore.isCurrent( exchange() ) );
+    }
+
+    private CaseStore open()
+        throws Exception
+    {
+        CaseStore store = new CaseStore( storeProperties, new ConditionalGet(), meterRegistry );
+        store.start();
+
+        return store;
+    }
+
+    private static Exchange exchange()
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getIn().setHeader( "trackedEntityId", TRACKED_ENTITY_ID );
+
+        return exchange;
+    }
+}
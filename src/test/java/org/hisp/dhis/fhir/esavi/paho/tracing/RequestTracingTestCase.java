@@ -0,0 +1,124 @@
+package org.hisp.dhis.fhir.esavi.paho.tracing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hisp.dhis.integration.esavi.config.properties.TracingProperties;
+import org.hisp.dhis.integration.esavi.metrics.StageMetrics;
+import org.hisp.dhis.integration.esavi.tracing.RequestTracing;
+import org.hisp.dhis.integration.esavi.tracing.SpanExporter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RequestTracingTestCase
+{
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    private final List<JsonNode> exportRequests = new CopyOnWriteArrayList<>();
+
+    private HttpServer collector;
+
+    private SpanExporter spanExporter;
+
+    private CamelContext camelContext;
+
+    private ProducerTemplate producerTemplate;
+
+    @BeforeEach
+    public void beforeEach()
+        throws Exception
+    {
+        // local stand-in for an OTLP/HTTP collector
+        collector = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        collector.createContext( "/v1/traces", exchange -> {
+            exportRequests.add( new ObjectMapper().readTree( exchange.getRequestBody() ) );
+            exchange.sendResponseHeaders( 200, -1 );
+            exchange.close();
+        } );
+        collector.start();
+
+        TracingProperties tracingProperties = new TracingProperties();
+        tracingProperties.setExporter( TracingProperties.Exporter.OTLP );
+        tracingProperties.setEndpoint( "http://localhost:" + collector.getAddress().getPort() );
+        spanExporter = new SpanExporter( tracingProperties );
+        spanExporter.start();
+
+        RequestTracing requestTracing = new RequestTracing( spanExporter );
+        StageMetrics stageMetrics = new StageMetrics( new SimpleMeterRegistry() );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:start" )
+                    .onCompletion().modeBeforeConsumer()
+                        .process( requestTracing.end() )
+                    .end()
+                    .process( requestTracing.begin() )
+                    .process( stageMetrics.start( StageMetrics.CONVERT ) )
+                    .delay( 20 )
+                    .process( stageMetrics.stop( StageMetrics.CONVERT ) );
+            }
+        } );
+        camelContext.start();
+        producerTemplate = camelContext.createProducerTemplate();
+    }
+
+    @AfterEach
+    public void afterEach()
+        throws Exception
+    {
+        camelContext.stop();
+        spanExporter.stop();
+        collector.stop( 0 );
+    }
+
+    @Test
+    public void testServerTimingAndServerSpan()
+        throws Exception
+    {
+        Exchange exchange = producerTemplate.request( "direct:start", e -> e.getIn().setHeaders( Map.of(
+            RequestTracing.TRACEPARENT, "00-" + TRACE_ID + "-00f067aa0ba902b7-01",
+            "trackedEntityId", "Qe7eK1Kq4VZ" ) ) );
+
+        String serverTiming = exchange.getMessage().getHeader( RequestTracing.SERVER_TIMING, String.class );
+        assertTrue( serverTiming.matches( "convert;dur=\\d+\\.\\d, total;dur=\\d+\\.\\d" ), serverTiming );
+        assertEquals( TRACE_ID, exchange.getMessage().getHeader( RequestTracing.CORRELATION_ID ) );
+
+        assertTrue( spanExporter.flush( Duration.ofSeconds( 10 ) ) );
+        assertEquals( 1, exportRequests.size() );
+
+        JsonNode span = exportRequests.get( 0 ).at( "/resourceSpans/0/scopeSpans/0/spans/0" );
+        assertEquals( TRACE_ID, span.path( "traceId" ).asText() );
+        assertEquals( "00f067aa0ba902b7", span.path( "parentSpanId" ).asText() );
+        assertEquals( 2, span.path( "kind" ).asInt() );
+    }
+
+    @Test
+    public void testCorrelationIdIsKept()
+    {
+        Exchange exchange = producerTemplate.request( "direct:start",
+            e -> e.getIn().setHeader( RequestTracing.CORRELATION_ID, "case-review-42" ) );
+
+        assertEquals( "case-review-42", exchange.getMessage().getHeader( RequestTracing.CORRELATION_ID ) );
+        assertTrue( RequestTracing.outgoingHeaders().isEmpty() );
+    }
+}
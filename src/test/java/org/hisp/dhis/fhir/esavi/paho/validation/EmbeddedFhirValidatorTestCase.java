@@ -0,0 +1,120 @@
+package org.hisp.dhis.fhir.esavi.paho.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContext;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviContextReader;
+import org.hisp.dhis.integration.esavi.converters.v1.EsaviProfile;
+import org.hisp.dhis.integration.esavi.validation.EmbeddedFhirValidator;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.ESAVI_PROGRAM_STAGE_ID;
+import static org.hisp.dhis.fhir.esavi.paho.converters.EsaviContextReaderTestCase.fixture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validates against the minimal IG package in {@code src/test/resources/esavi-ig/package}, which holds the
+ * ESAVIQuestionnaireResponse profile (identifier and questionnaire required) but not the Questionnaire.
+ */
+public class EmbeddedFhirValidatorTestCase
+{
+    private static final String PROFILE = "https://paho.org/fhir/esavi/StructureDefinition/ESAVIQuestionnaireResponse";
+
+    private static EmbeddedFhirValidator embeddedFhirValidator;
+
+    @BeforeAll
+    public static void beforeAll()
+        throws Exception
+    {
+        FhirProperties fhirProperties = new FhirProperties();
+        fhirProperties.getValidation().setMode( FhirProperties.ValidationMode.EMBEDDED );
+        fhirProperties.getValidation().setPackageDirectory( Paths.get( Thread.currentThread()
+            .getContextClassLoader().getResource( "esavi-ig/package" ).toURI() ).toString() );
+
+        FhirContext fhirContext = FhirContext.forR4Cached();
+        embeddedFhirValidator = new EmbeddedFhirValidator( fhirContext, new FhirJson( fhirContext ),
+            fhirProperties );
+        embeddedFhirValidator.init();
+    }
+
+    @Test
+    public void testCaseIsValidatedAgainstPackageProfile()
+        throws Exception
+    {
+        EsaviContext ctx = new EsaviContextReader( ESAVI_PROGRAM_STAGE_ID ).read(
+            new ByteArrayInputStream( fixture() ) ).get( 0 );
+
+        OperationOutcome operationOutcome = embeddedFhirValidator.validate( EsaviProfile.create( ctx ) );
+
+        // the profile is resolved from the package, only the Questionnaire is missing from it
+        assertEquals( List.of(), errors( operationOutcome ) );
+        assertFalse( messageIds( operationOutcome ).stream()
+            .anyMatch( messageId -> messageId.startsWith( "VALIDATION_VAL_PROFILE" ) ) );
+        assertTrue( messageIds( operationOutcome ).contains( "Questionnaire_QR_Q_NotFound" ) );
+    }
+
+    @Test
+    public void testPackageProfileConstraintsAreEnforced()
+    {
+        QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse();
+        questionnaireResponse.getMeta().addProfile( PROFILE );
+        questionnaireResponse.setStatus( QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED );
+        questionnaireResponse.setQuestionnaire( "https://paho.org/fhir/esavi/Questionnaire/CuestionarioESAVI" );
+
+        List<String> errors = errors( embeddedFhirValidator.validate( questionnaireResponse ) );
+
+        assertEquals( 1, errors.size(), errors::toString );
+        assertTrue( errors.get( 0 ).contains( "QuestionnaireResponse.identifier" ), errors::toString );
+
+        questionnaireResponse.getIdentifier().setSystem( "http://ops.org/esavi/PRY" )
+            .setValue( "DEM_2023_11_09_000002" );
+
+        assertEquals( List.of(), errors( embeddedFhirValidator.validate( questionnaireResponse ) ) );
+    }
+
+    @Test
+    public void testCachedResultsAreCopies()
+    {
+        QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse();
+        questionnaireResponse.setStatus( QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED );
+
+        OperationOutcome first = embeddedFhirValidator.validate( questionnaireResponse );
+        OperationOutcome second = embeddedFhirValidator.validate( questionnaireResponse );
+
+        assertNotSame( first, second );
+        assertTrue( first.equalsDeep( second ) );
+    }
+
+    /**
+     * Diagnostics and locations of the errors.
+     */
+    private static List<String> errors( OperationOutcome operationOutcome )
+    {
+        return operationOutcome.getIssue().stream()
+            .filter( issue -> issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR
+                || issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL )
+            .map( issue -> issue.getDiagnostics() + " @ " + issue.getLocation() )
+            .collect( Collectors.toList() );
+    }
+
+    private static List<String> messageIds( OperationOutcome operationOutcome )
+    {
+        return operationOutcome.getIssue().stream()
+            .flatMap( issue -> issue.getDetails().getCoding().stream() )
+            .filter( coding -> "http://hl7.org/fhir/java-core-messageId".equals( coding.getSystem() ) )
+            .map( coding -> coding.getCode() )
+            .collect( Collectors.toList() );
+    }
+}
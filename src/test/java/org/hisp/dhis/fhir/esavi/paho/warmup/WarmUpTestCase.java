@@ -0,0 +1,65 @@
+package org.hisp.dhis.fhir.esavi.paho.warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hisp.dhis.integration.esavi.config.properties.DhisProperties;
+import org.hisp.dhis.integration.esavi.config.properties.FhirProperties;
+import org.hisp.dhis.integration.esavi.config.properties.WarmUpProperties;
+import org.hisp.dhis.integration.esavi.converters.FhirJson;
+import org.hisp.dhis.integration.esavi.converters.TrackedEntityToBundleConverter;
+import org.hisp.dhis.integration.esavi.warmup.WarmUp;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WarmUpTestCase
+{
+    @Test
+    public void testWarmUpConvertsFixturesUntilLimit()
+    {
+        WarmUpProperties warmUpProperties = new WarmUpProperties();
+        warmUpProperties.setBatchSize( 10 );
+        warmUpProperties.setMaxIterations( 100 );
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        WarmUp warmUp = newWarmUp( warmUpProperties, meterRegistry );
+        warmUp.run( null );
+
+        WarmUp.Result result = warmUp.getResult();
+        assertNotNull( result );
+        assertTrue( result.getIterations() >= 10 && result.getIterations() <= 100 );
+        assertTrue( result.getFirstMedianNanos() > 0 );
+        assertEquals( 3, meterRegistry.find( "esavi.warmup.duration" ).meters().size()
+            + meterRegistry.find( "esavi.warmup.conversion.first" ).meters().size()
+            + meterRegistry.find( "esavi.warmup.conversion.last" ).meters().size() );
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        WarmUpProperties warmUpProperties = new WarmUpProperties();
+        warmUpProperties.setEnabled( false );
+
+        WarmUp warmUp = newWarmUp( warmUpProperties, new SimpleMeterRegistry() );
+        warmUp.run( null );
+
+        assertNull( warmUp.getResult() );
+    }
+
+    private static WarmUp newWarmUp( WarmUpProperties warmUpProperties, SimpleMeterRegistry meterRegistry )
+    {
+        DhisProperties dhisProperties = new DhisProperties();
+        dhisProperties.setEsaviProgramStageId( "lSpdre0srBn" );
+
+        DefaultCamelContext camelContext = new DefaultCamelContext();
+        camelContext.getTypeConverterRegistry().addTypeConverters( new TrackedEntityToBundleConverter( dhisProperties,
+            new FhirProperties() ) );
+
+        return new WarmUp( warmUpProperties, dhisProperties, camelContext, new FhirJson( FhirContext.forR4Cached() ),
+            meterRegistry );
+    }
+}